@@ -26,6 +26,7 @@ package org.lenskit.api;
 
 import javax.annotation.Nonnull;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -65,4 +66,27 @@ public interface ItemScorer {
      */
     @Nonnull
     ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items);
+
+    /**
+     * Score a collection of items for each of a batch of users.  Implementations that can share work
+     * between users (e.g. by walking a model row once for the whole batch) should override this method;
+     * the default implementation simply calls {@link #score(long, Collection)} for each user.
+     *
+     * @param users The users for whom to generate scores.
+     * @param items The items to score for each user.
+     * @return A map from user IDs to the scores for that user's items.  Each user's scores may not contain
+     * all requested items.
+     * @since 3.0
+     */
+    @Nonnull
+    default Map<Long,Map<Long,Double>> scoreUsers(@Nonnull Collection<Long> users,
+                                                  @Nonnull Collection<Long> items) {
+        Map<Long,Map<Long,Double>> results = new HashMap<>();
+        for (Long user: users) {
+            if (!results.containsKey(user)) {
+                results.put(user, score(user, items));
+            }
+        }
+        return results;
+    }
 }
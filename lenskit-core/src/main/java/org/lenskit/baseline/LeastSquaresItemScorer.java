@@ -28,10 +28,13 @@ import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import it.unimi.dsi.fastutil.longs.Long2DoubleSortedMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongIterators;
+import org.apache.commons.lang3.time.StopWatch;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.grouplens.lenskit.iterative.IterationCount;
 import org.grouplens.lenskit.iterative.LearningRate;
+import org.grouplens.lenskit.iterative.MinimumIterations;
 import org.grouplens.lenskit.iterative.RegularizationTerm;
+import org.grouplens.lenskit.iterative.StoppingThreshold;
 import org.lenskit.api.Result;
 import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
@@ -50,8 +53,10 @@ import javax.inject.Inject;
 import javax.inject.Provider;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.IntStream;
 
 
 /**
@@ -98,13 +103,37 @@ public class LeastSquaresItemScorer extends AbstractItemScorer implements Serial
 
     /**
      * The builder for the least squares predictor.
+     *
+     * <p>Training stops after {@link IterationCount} passes over the ratings, or earlier once at least
+     * {@link MinimumIterations} passes are done and the training RMSE changes by no more than the
+     * {@link StoppingThreshold}.  If {@link ParallelTraining} is enabled, users and items are each split
+     * into <var>P</var> groups, one per processor, and each pass runs in <var>P</var> stages; every stage
+     * trains <var>P</var> user/item blocks in parallel that share no users or items, so the updates
+     * never conflict.</p>
      */
     public static class Builder implements Provider<LeastSquaresItemScorer> {
         private final double learningRate;
         private final double regularizationFactor;
         private final int maxIterations;
+        private final int minIterations;
+        private final double stoppingThreshold;
+        private final boolean parallel;
         private RatingMatrix snapshot;
 
+        /**
+         * Create a new sequential builder that runs for a fixed number of iterations.
+         *
+         * @param regFactor The regularization term
+         * @param lrate     The learning rate
+         * @param data      The preference data
+         * @param maxIters  The maximum iteration count
+         */
+        public Builder(@RegularizationTerm double regFactor, @LearningRate double lrate,
+                       @Transient RatingMatrix data,
+                       @IterationCount int maxIters) {
+            this(regFactor, lrate, data, maxIters, maxIters, 0, false);
+        }
+
         /**
          * Create a new builder.
          *
@@ -112,15 +141,24 @@ public class LeastSquaresItemScorer extends AbstractItemScorer implements Serial
          * @param lrate     The learning rate
          * @param data      The preference data
          * @param maxIters  The maximum iteration count
+         * @param minIters  The minimum iteration count
+         * @param threshold The stopping threshold on the change in RMSE
+         * @param parallel  Whether to train in parallel
          */
         @Inject
         public Builder(@RegularizationTerm double regFactor, @LearningRate double lrate,
                        @Transient RatingMatrix data,
-                       @IterationCount int maxIters) {
+                       @IterationCount int maxIters,
+                       @MinimumIterations int minIters,
+                       @StoppingThreshold double threshold,
+                       @ParallelTraining boolean parallel) {
             regularizationFactor = regFactor;
             learningRate = lrate;
             snapshot = data;
             maxIterations = maxIters;
+            minIterations = minIters;
+            stoppingThreshold = threshold;
+            this.parallel = parallel;
         }
 
         @Override
@@ -128,37 +166,55 @@ public class LeastSquaresItemScorer extends AbstractItemScorer implements Serial
             Collection<RatingMatrixEntry> ratings = snapshot.getRatings();
             logger.debug("training predictor on {} ratings", ratings.size());
 
+            final int n = ratings.size();
+            final int[] users = new int[n];
+            final int[] items = new int[n];
+            final double[] values = new double[n];
             double sum = 0.0;
-            double n = 0;
+            int j = 0;
             for (RatingMatrixEntry r : ratings) {
-                sum += r.getValue();
-                n += 1;
+                users[j] = r.getUserIndex();
+                items[j] = r.getItemIndex();
+                values[j] = r.getValue();
+                sum += values[j];
+                j++;
             }
             final double mean = n > 0 ? sum / n : 0;
             logger.debug("mean rating is {}", mean);
 
-            // TODO Use vectorz vectors instead of raw arrays
             double uoff[] = new double[snapshot.getUserIds().size()];
             double ioff[] = new double[snapshot.getItemIds().size()];
 
-            double rmse = 0.0;
-            for (int i = 0; i < maxIterations; i++) {
+            int nblocks = parallel ? Math.max(1, Runtime.getRuntime().availableProcessors()) : 1;
+            Blocks blocks = new Blocks(users, items, nblocks);
+
+            StopWatch timer = new StopWatch();
+            timer.start();
+            double rmse = Double.POSITIVE_INFINITY;
+            int epochs = 0;
+            while (epochs < maxIterations) {
                 double sse = 0;
-                for (RatingMatrixEntry r : ratings) {
-                    final int uidx = r.getUserIndex();
-                    final int iidx = r.getItemIndex();
-                    final double p = mean + uoff[uidx] + ioff[iidx];
-                    final double err = r.getValue() - p;
-                    uoff[uidx] += learningRate * (err - regularizationFactor * Math.abs(uoff[uidx]));
-                    ioff[iidx] += learningRate * (err - regularizationFactor * Math.abs(ioff[iidx]));
-                    sse += err * err;
+                for (int stage = 0; stage < nblocks; stage++) {
+                    final int s = stage;
+                    sse += IntStream.range(0, nblocks)
+                                    .parallel()
+                                    .mapToDouble(g -> trainBlock(blocks, g, (g + s) % nblocks,
+                                                                 users, items, values, mean, uoff, ioff))
+                                    .sum();
                 }
-                rmse = Math.sqrt(sse / ratings.size());
+                epochs += 1;
+                double oldRmse = rmse;
+                rmse = Math.sqrt(sse / n);
 
-                logger.debug("finished iteration {} (RMSE={})", i, rmse);
+                logger.debug("finished iteration {} (RMSE={})", epochs, rmse);
+                if (epochs >= minIterations && Math.abs(oldRmse - rmse) <= stoppingThreshold) {
+                    break;
+                }
             }
+            timer.stop();
 
-            logger.info("trained baseline on {} ratings in {} iterations (final rmse={})", ratings.size(), maxIterations, rmse);
+            logger.info("trained baseline on {} ratings in {} iterations and {} (final rmse={})",
+                        n, epochs, timer, rmse);
 
             // Convert the uoff array to a SparseVector
 
@@ -167,5 +223,59 @@ public class LeastSquaresItemScorer extends AbstractItemScorer implements Serial
             Long2DoubleMap svioff = Long2DoubleSortedArrayMap.fromArray(snapshot.itemIndex(), ioff);
             return new LeastSquaresItemScorer(svuoff, svioff, mean);
         }
+
+        /**
+         * Train on one block of ratings.
+         *
+         * @return The sum of squared errors of the block's ratings before their updates.
+         */
+        private double trainBlock(Blocks blocks, int ug, int ig,
+                                  int[] users, int[] items, double[] values, double mean,
+                                  double[] uoff, double[] ioff) {
+            double sse = 0;
+            int b = ug * blocks.count + ig;
+            for (int k = blocks.offsets[b], end = blocks.offsets[b + 1]; k < end; k++) {
+                final int r = blocks.order[k];
+                final int uidx = users[r];
+                final int iidx = items[r];
+                final double p = mean + uoff[uidx] + ioff[iidx];
+                final double err = values[r] - p;
+                uoff[uidx] += learningRate * (err - regularizationFactor * Math.abs(uoff[uidx]));
+                ioff[iidx] += learningRate * (err - regularizationFactor * Math.abs(ioff[iidx]));
+                sse += err * err;
+            }
+            return sse;
+        }
+    }
+
+    /**
+     * Ratings grouped into blocks by user group and item group, keeping their original order within
+     * each block.  User and item <var>i</var> are in group <var>i</var> mod <var>P</var>.
+     */
+    private static class Blocks {
+        final int count;
+        final int[] offsets;
+        final int[] order;
+
+        Blocks(int[] users, int[] items, int count) {
+            this.count = count;
+            int n = users.length;
+            offsets = new int[count * count + 1];
+            for (int r = 0; r < n; r++) {
+                offsets[block(users[r], items[r]) + 1] += 1;
+            }
+            for (int b = 0; b < count * count; b++) {
+                offsets[b + 1] += offsets[b];
+            }
+            order = new int[n];
+            int[] cursors = Arrays.copyOf(offsets, count * count);
+            for (int r = 0; r < n; r++) {
+                order[cursors[block(users[r], items[r])]++] = r;
+            }
+        }
+
+        private int block(int user, int item) {
+            return (user % count) * count + item % count;
+        }
     }
 }
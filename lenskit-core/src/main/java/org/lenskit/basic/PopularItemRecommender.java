@@ -24,11 +24,15 @@
  */
 package org.lenskit.basic;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.api.ItemBasedItemRecommender;
 import org.lenskit.api.ItemRecommender;
+import org.lenskit.api.Result;
 import org.lenskit.api.ResultList;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.entities.CommonAttributes;
@@ -38,14 +42,15 @@ import org.lenskit.util.collections.LongUtils;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.function.LongPredicate;
-import java.util.stream.IntStream;
-import java.util.stream.LongStream;
 
 /**
- * Recommend the most popular items. More efficient than using a popularity rank scorer.
+ * Recommend the most popular items. More efficient than using a popularity rank scorer: recommendations are found by
+ * scanning a prefix of the precomputed {@linkplain InteractionStatistics#getItemsByPopularity() popularity ranking},
+ * skipping excluded items, and stop as soon as enough items are found.
  */
 public class PopularItemRecommender extends AbstractItemRecommender implements ItemRecommender, ItemBasedItemRecommender {
     private final DataAccessObject data;
@@ -61,21 +66,28 @@ public class PopularItemRecommender extends AbstractItemRecommender implements I
         statistics = stats;
     }
 
-    private LongList recommendWithPredicate(int n, LongPredicate filter) {
+    /**
+     * Scan the popularity ranking for the top items passing a filter.
+     * @param n The number of items to find (non-positive for all).
+     * @param filter The filter, or `null` to accept all items.
+     * @return The popularity ranks of the accepted items.
+     */
+    private IntList rankWithPredicate(int n, @Nullable LongPredicate filter) {
         LongList items = statistics.getItemsByPopularity();
-        LongList list = new LongArrayList(items.size());
-        LongStream str = IntStream.range(0, items.size()).mapToLong(items::getLong);
-        if (filter != null) {
-            str = str.filter(filter);
-        }
-        if (n > 0) {
-            str = str.limit(n);
+        int size = items.size();
+        IntList ranks = new IntArrayList(n > 0 ? Math.min(n, size) : size);
+        for (int r = 0; r < size; r++) {
+            if (filter == null || filter.test(items.getLong(r))) {
+                ranks.add(r);
+                if (ranks.size() == n) {
+                    break;
+                }
+            }
         }
-        str.forEachOrdered(list::add);
-        return list;
+        return ranks;
     }
 
-    private LongList recommendWithSets(int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
+    private IntList rankWithSets(int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
         LongSet cs = LongUtils.asLongSet(candidates);
         LongSet es = LongUtils.asLongSet(exclude);
         LongPredicate f;
@@ -91,9 +103,33 @@ public class PopularItemRecommender extends AbstractItemRecommender implements I
             f = null;
         }
 
-        return recommendWithPredicate(n, f);
+        return rankWithPredicate(n, f);
     }
 
+    private LongList recommendWithPredicate(int n, @Nullable LongPredicate filter) {
+        return itemsAtRanks(rankWithPredicate(n, filter));
+    }
+
+    private LongList itemsAtRanks(IntList ranks) {
+        LongList items = statistics.getItemsByPopularity();
+        LongList list = new LongArrayList(ranks.size());
+        IntIterator iter = ranks.iterator();
+        while (iter.hasNext()) {
+            list.add(items.getLong(iter.nextInt()));
+        }
+        return list;
+    }
+
+    private ResultList resultsAtRanks(IntList ranks) {
+        LongList items = statistics.getItemsByPopularity();
+        List<Result> results = new ArrayList<>(ranks.size());
+        IntIterator iter = ranks.iterator();
+        while (iter.hasNext()) {
+            int r = iter.nextInt();
+            results.add(Results.create(items.getLong(r), statistics.getInteractionCountAtRank(r)));
+        }
+        return Results.newResultList(results);
+    }
 
     @Override
     public List<Long> recommendRelatedItems(long reference) {
@@ -118,33 +154,31 @@ public class PopularItemRecommender extends AbstractItemRecommender implements I
 
     @Override
     public LongList recommendRelatedItems(Set<Long> basket, int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
-        return recommendWithSets(n, candidates, exclude);
+        return itemsAtRanks(rankWithSets(n, candidates, exclude));
     }
 
 
     @Override
     public ResultList recommendRelatedItemsWithDetails(Set<Long> basket, int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
-        return recommendRelatedItems(basket, n, candidates, exclude)
-                .stream()
-                .map(i -> Results.create(i, statistics.getInteractionCount(i)))
-                .collect(Results.listCollector());
+        return resultsAtRanks(rankWithSets(n, candidates, exclude));
     }
 
     @Override
     protected LongList recommend(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        return itemsAtRanks(rankForUser(user, n, candidates, exclude));
+    }
+
+    @Override
+    protected ResultList recommendWithDetails(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        return resultsAtRanks(rankForUser(user, n, candidates, exclude));
+    }
+
+    private IntList rankForUser(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
         if (exclude == null) {
             exclude = data.query(statistics.getEntityType())
                           .withAttribute(CommonAttributes.USER_ID, user)
                           .valueSet(CommonAttributes.ITEM_ID);
         }
-        return recommendWithSets(n, candidates, exclude);
-    }
-
-    @Override
-    protected ResultList recommendWithDetails(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
-        return recommend(user, n, candidates, exclude)
-                .stream()
-                .map(i -> Results.create(i, statistics.getInteractionCount(i)))
-                .collect(Results.listCollector());
+        return rankWithSets(n, candidates, exclude);
     }
 }
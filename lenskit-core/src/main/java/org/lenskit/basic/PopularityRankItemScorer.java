@@ -55,14 +55,12 @@ public class PopularityRankItemScorer extends AbstractItemScorer implements Seri
     @Inject
     public PopularityRankItemScorer(final InteractionStatistics stats) {
         statistics = stats;
-        long[] items = stats.getKnownItems().toLongArray();
-        LongArrays.quickSort(items, (l1, l2) -> Integer.compare(stats.getInteractionCount(l2), stats.getInteractionCount(l1)));
-        Long2IntMap ranks = LongUtils.itemRanks(LongArrayList.wrap(items));
-        SortedKeyIndex keys = SortedKeyIndex.fromCollection(ranks.keySet());
+        // use the ranking precomputed by the statistics
+        SortedKeyIndex keys = SortedKeyIndex.fromCollection(stats.getKnownItems());
         int n = keys.size();
         double[] values = new double[n];
         for (int i = 0; i < n; i++) {
-            values[i] = 1.0 - ranks.get(keys.getKey(i)) / ((double) n);
+            values[i] = 1.0 - stats.getPopularityRank(keys.getKey(i)) / ((double) n);
         }
         rankScores = Long2DoubleSortedArrayMap.wrap(keys, values);
     }
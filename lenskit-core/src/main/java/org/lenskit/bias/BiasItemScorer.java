@@ -32,6 +32,7 @@ import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.keys.KeyIndex;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
@@ -42,6 +43,9 @@ import java.util.Map;
 
 /**
  * Score items using a user-item bias model.  This scorer is good as a baseline scorer for many situations.
+ *
+ * <p>If the model is a {@link DenseBiasModel}, items are scored in bulk through
+ * {@link DenseBiasModel#scoreItems(long, int[], int, double[])}.</p>
  */
 public class BiasItemScorer extends AbstractItemScorer {
     private final BiasModel model;
@@ -71,6 +75,10 @@ public class BiasItemScorer extends AbstractItemScorer {
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
+        if (model instanceof DenseBiasModel) {
+            return scoreDense((DenseBiasModel) model, user, items);
+        }
+
         List<Result> results = new ArrayList<>();
         double base = model.getIntercept() + model.getUserBias(user);
         LongIterator iter = LongIterators.asLongIterator(items.iterator());
@@ -80,4 +88,27 @@ public class BiasItemScorer extends AbstractItemScorer {
         }
         return Results.newResultMap(results);
     }
+
+    private ResultMap scoreDense(DenseBiasModel dense, long user, Collection<Long> items) {
+        KeyIndex index = dense.getItemIndex();
+        int n = items.size();
+        long[] ids = new long[n];
+        int[] indexes = new int[n];
+        int j = 0;
+        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            ids[j] = item;
+            indexes[j] = index.tryGetIndex(item);
+            j++;
+        }
+
+        double[] scores = new double[n];
+        dense.scoreItems(user, indexes, n, scores);
+        List<Result> results = new ArrayList<>(n);
+        for (j = 0; j < n; j++) {
+            results.add(Results.create(ids[j], scores[j]));
+        }
+        return Results.newResultMap(results);
+    }
 }
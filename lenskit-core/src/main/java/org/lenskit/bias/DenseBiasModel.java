@@ -0,0 +1,179 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.bias;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.KeyIndex;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+
+import net.jcip.annotations.Immutable;
+import java.io.Serializable;
+
+/**
+ * Bias model that stores global, user, and item biases in arrays aligned with user and item key indexes.
+ *
+ * <p>Besides the {@link BiasModel} interface, this model can score a batch of items given by their
+ * positions in its item index, via {@link #scoreItems(long, int[], int, double[])}.  When the item index
+ * is shared with another model (e.g. a matrix factorization model built from the same
+ * {@link org.lenskit.data.ratings.RatingMatrix}), scorers can look up item indexes once and use them for
+ * both models.</p>
+ */
+@Shareable
+@Immutable
+@DefaultProvider(DenseBiasModelProvider.class)
+public class DenseBiasModel implements BiasModel, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final double intercept;
+    private final KeyIndex userIndex;
+    private final double[] userBiases;
+    private final KeyIndex itemIndex;
+    private final double[] itemBiases;
+
+    /**
+     * Construct a new dense bias model.  The arrays are used as-is, not copied.
+     *
+     * @param global The global bias.
+     * @param users The user index.
+     * @param ubs The user biases, indexed by {@code users}.
+     * @param items The item index.
+     * @param ibs The item biases, indexed by {@code items}.
+     */
+    public DenseBiasModel(double global, KeyIndex users, double[] ubs, KeyIndex items, double[] ibs) {
+        Preconditions.checkArgument(ubs.length == users.size(), "user bias count mismatch");
+        Preconditions.checkArgument(ibs.length == items.size(), "item bias count mismatch");
+        intercept = global;
+        userIndex = users;
+        userBiases = ubs;
+        itemIndex = items;
+        itemBiases = ibs;
+    }
+
+    /**
+     * Copy another bias model into a dense bias model over the specified indexes.
+     *
+     * @param model The bias model to copy.
+     * @param users The user index.
+     * @param items The item index.
+     * @return A dense model with the same biases as {@code model} for the users and items in the indexes.
+     */
+    public static DenseBiasModel fromModel(BiasModel model, KeyIndex users, KeyIndex items) {
+        double[] ubs = new double[users.size()];
+        for (int i = 0; i < ubs.length; i++) {
+            ubs[i] = model.getUserBias(users.getKey(i));
+        }
+        double[] ibs = new double[items.size()];
+        for (int i = 0; i < ibs.length; i++) {
+            ibs[i] = model.getItemBias(items.getKey(i));
+        }
+        return new DenseBiasModel(model.getIntercept(), users, ubs, items, ibs);
+    }
+
+    @Override
+    public double getIntercept() {
+        return intercept;
+    }
+
+    /**
+     * Get the index of users in this model.
+     * @return The user index.
+     */
+    public KeyIndex getUserIndex() {
+        return userIndex;
+    }
+
+    /**
+     * Get the index of items in this model.
+     * @return The item index.
+     */
+    public KeyIndex getItemIndex() {
+        return itemIndex;
+    }
+
+    @Override
+    public double getUserBias(long user) {
+        int idx = userIndex.tryGetIndex(user);
+        return idx >= 0 ? userBiases[idx] : 0;
+    }
+
+    @Override
+    public Long2DoubleMap getUserBiases(LongSet users) {
+        return getUserBiases().subMap(users);
+    }
+
+    @Override
+    public Long2DoubleSortedArrayMap getUserBiases() {
+        return Long2DoubleSortedArrayMap.fromArray(userIndex, userBiases);
+    }
+
+    @Override
+    public double getItemBias(long item) {
+        int idx = itemIndex.tryGetIndex(item);
+        return idx >= 0 ? itemBiases[idx] : 0;
+    }
+
+    /**
+     * Get the bias of an item by its index.
+     * @param idx The item's index in {@link #getItemIndex()}.
+     * @return The item bias.
+     */
+    public double getItemBiasByIndex(int idx) {
+        return itemBiases[idx];
+    }
+
+    @Override
+    public Long2DoubleMap getItemBiases(LongSet items) {
+        return getItemBiases().subMap(items);
+    }
+
+    @Override
+    public Long2DoubleSortedArrayMap getItemBiases() {
+        return Long2DoubleSortedArrayMap.fromArray(itemIndex, itemBiases);
+    }
+
+    /**
+     * Compute the baseline scores of several items for a user.
+     *
+     * @param user The user ID.
+     * @param items The items' indexes in {@link #getItemIndex()}; negative indexes denote unknown items, which
+     *              get no item bias.
+     * @param n The number of items.
+     * @param scores The array to receive the scores; entry <var>j</var> is set to the intercept plus the
+     *               user's bias plus the bias of item {@code items[j]}.
+     */
+    public void scoreItems(long user, int[] items, int n, double[] scores) {
+        Preconditions.checkArgument(items.length >= n && scores.length >= n, "arrays too short");
+        final double base = intercept + getUserBias(user);
+        final double[] ibs = itemBiases;
+        for (int j = 0; j < n; j++) {
+            int idx = items[j];
+            scores[j] = idx >= 0 ? base + ibs[idx] : base;
+        }
+    }
+}
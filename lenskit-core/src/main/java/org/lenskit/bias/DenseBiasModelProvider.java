@@ -0,0 +1,90 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.bias;
+
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.Transient;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.List;
+
+/**
+ * Compute a dense user-item bias model from a rating matrix.  The biases are the same damped averages as those
+ * of {@link UserItemAverageRatingBiasModelProvider}, and the model uses the rating matrix's user and item indexes.
+ */
+public class DenseBiasModelProvider implements Provider<DenseBiasModel> {
+    private final RatingMatrix snapshot;
+    private final double damping;
+
+    @Inject
+    public DenseBiasModelProvider(@Transient RatingMatrix rm, @BiasDamping double damp) {
+        snapshot = rm;
+        damping = damp;
+    }
+
+    @Override
+    public DenseBiasModel get() {
+        List<RatingMatrixEntry> ratings = snapshot.getRatings();
+        int nusers = snapshot.userIndex().size();
+        int nitems = snapshot.itemIndex().size();
+
+        double sum = 0;
+        for (RatingMatrixEntry r: ratings) {
+            sum += r.getValue();
+        }
+        double intercept = ratings.isEmpty() ? 0 : sum / ratings.size();
+
+        double[] itemBiases = new double[nitems];
+        int[] itemCounts = new int[nitems];
+        for (RatingMatrixEntry r: ratings) {
+            int i = r.getItemIndex();
+            itemBiases[i] += r.getValue() - intercept;
+            itemCounts[i] += 1;
+        }
+        for (int i = 0; i < nitems; i++) {
+            if (itemCounts[i] > 0) {
+                itemBiases[i] /= itemCounts[i] + damping;
+            }
+        }
+
+        double[] userBiases = new double[nusers];
+        int[] userCounts = new int[nusers];
+        for (RatingMatrixEntry r: ratings) {
+            int u = r.getUserIndex();
+            userBiases[u] += r.getValue() - intercept - itemBiases[r.getItemIndex()];
+            userCounts[u] += 1;
+        }
+        for (int u = 0; u < nusers; u++) {
+            if (userCounts[u] > 0) {
+                userBiases[u] /= userCounts[u] + damping;
+            }
+        }
+
+        return new DenseBiasModel(intercept, snapshot.userIndex(), userBiases,
+                                  snapshot.itemIndex(), itemBiases);
+    }
+}
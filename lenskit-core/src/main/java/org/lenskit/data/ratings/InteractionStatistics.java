@@ -24,7 +24,7 @@
  */
 package org.lenskit.data.ratings;
 
-import com.google.common.primitives.Doubles;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.longs.*;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.data.dao.DataAccessObject;
@@ -45,17 +45,22 @@ import java.io.Serializable;
 /**
  * Interaction statistics, counting the number of times an item has been interacted with.
  * The interaction entity must have {@link CommonAttributes#ITEM_ID} attributes.
+ *
+ * The popularity ranking is computed once, when the statistics are built, so that popularity-based components can
+ * answer requests by scanning a prefix of it.  Items with equal counts are ranked in increasing order of ID.
  */
 @Shareable
 @Immutable
 @DefaultProvider(InteractionStatistics.ISProvider.class)
 public class InteractionStatistics implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private final EntityType entityType;
     private final SortedKeyIndex items;
     private final int[] interactionCounts;
     private final LongArrayList itemList;
+    private final int[] rankedCounts;
+    private final int[] itemRanks;
 
     /**
      * Construct a new interaction statistics object.
@@ -71,8 +76,26 @@ public class InteractionStatistics implements Serializable {
         for (int i = 0; i < n; i++) {
             interactionCounts[i] = counts.get(items.getKey(i));
         }
-        long[] iarray = items.keySet().toLongArray();
-        LongArrays.quickSort(iarray, (l1, l2) -> Doubles.compare(counts.get(l2), counts.get(l1)));
+
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        // sort by decreasing count; index order breaks ties by item ID
+        IntArrays.quickSort(order, (i1, i2) -> {
+            int cmp = Integer.compare(interactionCounts[i2], interactionCounts[i1]);
+            return cmp != 0 ? cmp : Integer.compare(i1, i2);
+        });
+
+        long[] iarray = new long[n];
+        rankedCounts = new int[n];
+        itemRanks = new int[n];
+        for (int r = 0; r < n; r++) {
+            int idx = order[r];
+            iarray[r] = items.getKey(idx);
+            rankedCounts[r] = interactionCounts[idx];
+            itemRanks[idx] = r;
+        }
         itemList = LongArrayList.wrap(iarray);
     }
 
@@ -117,6 +140,31 @@ public class InteractionStatistics implements Serializable {
         }
     }
 
+    /**
+     * Get the popularity rank of an item.
+     * @param item The item.
+     * @return The 0-based position of `item` in {@link #getItemsByPopularity()}, or -1 if the item is unknown.
+     */
+    public int getPopularityRank(long item) {
+        int idx = items.tryGetIndex(item);
+        if (idx >= 0) {
+            return itemRanks[idx];
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the number of interactions for the item at a popularity rank.  This avoids looking up items when scanning
+     * the popularity ranking.
+     * @param rank The 0-based popularity rank.
+     * @return The number of interactions for the item at position `rank` in {@link #getItemsByPopularity()}.
+     * @throws IndexOutOfBoundsException if `rank` is not a valid rank.
+     */
+    public int getInteractionCountAtRank(int rank) {
+        return rankedCounts[rank];
+    }
+
     /**
      * Get the set of known items.
      * @return The set of known items.
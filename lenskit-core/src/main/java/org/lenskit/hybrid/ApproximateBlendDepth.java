@@ -0,0 +1,54 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.hybrid;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Depth of the approximate top-$D$ blend for {@link RankBlendingItemRecommender}.
+ *
+ * If the depth $D$ is positive, the blending recommender requests only the top $D$ from each sub-recommender and
+ * ranks items by their positions in those prefixes, with rank fraction $1-\frac{k}{D-1}$.  This is an
+ * <em>approximation</em> of the default blend, which normalizes ranks by each full list's length $n$: the two agree
+ * only when both full lists have exactly $D$ items, and otherwise the blended ranking may differ.  If the depth is 0
+ * (the default), each recommender's full list is fetched and blended exactly.
+ *
+ * Each sub-recommender still scores every candidate once; the saving is that it keeps a top-$D$ heap instead of
+ * sorting all $m$ scored items, $O(m \log D)$ rather than $O(m \log m)$, and the blend touches at most $2D$
+ * items.  Items ranked below $D$ by both sides get no rank credit, so $D$ should be comfortably larger than the
+ * number of recommendations requested.
+ */
+@Qualifier
+@Documented
+@Parameter(Integer.class)
+@DefaultInteger(0)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+public @interface ApproximateBlendDepth {
+}
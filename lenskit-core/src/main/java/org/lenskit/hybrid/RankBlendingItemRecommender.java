@@ -51,12 +51,18 @@ import java.lang.annotation.*;
  * The final ranking is done by linearly blending the sub-recommender rank scores using the specified blending weight.
  *
  * This method was devised by Max Harper for use in MovieLens.
+ *
+ * If a positive {@link ApproximateBlendDepth} $D$ is configured, the recommender instead computes an approximate
+ * top-$D$ blend: each sub-recommender is asked once for its top $D$, and rank fractions are computed over that fixed
+ * depth, $1-\frac{k}{D-1}$.  This avoids sorting the full lists, but since ranks are no longer normalized by each
+ * full list's length, the result can differ from the default blend.  See {@link ApproximateBlendDepth}.
  */
 public class RankBlendingItemRecommender extends AbstractItemRecommender {
     private static final Logger logger = LoggerFactory.getLogger(RankBlendingItemRecommender.class);
     private final ItemRecommender leftRecommender;
     private final ItemRecommender rightRecommender;
     private final double blendWeight;
+    private final int blendDepth;
 
     /**
      * Construct a new rank-blending recommender.
@@ -64,15 +70,32 @@ public class RankBlendingItemRecommender extends AbstractItemRecommender {
      * @param right The right recommender.
      * @param w The blending weight.
      */
-    @Inject
     public RankBlendingItemRecommender(@Left ItemRecommender left, @Right ItemRecommender right, @BlendWeight double w) {
+        this(left, right, w, 0);
+    }
+
+    /**
+     * Construct a new rank-blending recommender.
+     * @param left The left recommender.
+     * @param right The right recommender.
+     * @param w The blending weight.
+     * @param depth The depth of the approximate top-D blend, or 0 to blend full lists exactly.
+     */
+    @Inject
+    public RankBlendingItemRecommender(@Left ItemRecommender left, @Right ItemRecommender right,
+                                       @BlendWeight double w, @ApproximateBlendDepth int depth) {
         leftRecommender = left;
         rightRecommender = right;
         blendWeight = w;
+        blendDepth = depth;
     }
 
     @Override
     protected ResultList recommendWithDetails(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        if (blendDepth > 0 && n >= 0) {
+            return recommendTopDepth(user, n, candidates, exclude);
+        }
+
         ResultList left = leftRecommender.recommendWithDetails(user, -1, candidates, exclude);
         ResultList right = rightRecommender.recommendWithDetails(user, -1, candidates, exclude);
         logger.debug("recommending for user {} with {} left and {} right recommendations",
@@ -81,7 +104,31 @@ public class RankBlendingItemRecommender extends AbstractItemRecommender {
         return merge(n, left, right, blendWeight);
     }
 
+    /**
+     * Compute the approximate blend of the top-D prefixes of the two recommenders' lists.
+     */
+    private ResultList recommendTopDepth(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        ResultList left = leftRecommender.recommendWithDetails(user, blendDepth, candidates, exclude);
+        ResultList right = rightRecommender.recommendWithDetails(user, blendDepth, candidates, exclude);
+        logger.debug("blending top {} for user {} from lists of depth {}", n, user, blendDepth);
+        return merge(n, left, right, blendWeight, blendDepth);
+    }
+
     static ResultList merge(int n, ResultList left, ResultList right, double weight) {
+        return merge(n, left, right, weight, 0);
+    }
+
+    /**
+     * Blend two recommendation lists.
+     *
+     * @param n The number of items to return.
+     * @param left The left list.
+     * @param right The right list.
+     * @param weight The blending weight.
+     * @param depth The rank depth for rank fractions, or 0 to use each list's length.
+     * @return The blended list.
+     */
+    static ResultList merge(int n, ResultList left, ResultList right, double weight, int depth) {
         Long2IntMap leftRanks = LongUtils.itemRanks(LongUtils.asLongList(left.idList()));
         Long2IntMap rightRanks = LongUtils.itemRanks(LongUtils.asLongList(right.idList()));
         int nl = left.size();
@@ -95,12 +142,12 @@ public class RankBlendingItemRecommender extends AbstractItemRecommender {
             long item = iter.nextLong();
             int rl = leftRanks.get(item);
             int rr = rightRanks.get(item);
-            double s1 = rankToScore(rl, nl);
-            double s2 = rankToScore(rr, nr);
+            double s1 = depth > 0 ? depthRankScore(rl, depth) : rankToScore(rl, nl);
+            double s2 = depth > 0 ? depthRankScore(rr, depth) : rankToScore(rr, nr);
             double score = weight * s1 + (1.0-weight) * s2;
             accum.add(new RankBlendResult(item, score,
                                           rl >= 0 ? left.get(rl) : null, rl,
-                                          rr >= 0 ? right.get(rr) : null, rl));
+                                          rr >= 0 ? right.get(rr) : null, rr));
         }
         return accum.finish();
     }
@@ -115,6 +162,22 @@ public class RankBlendingItemRecommender extends AbstractItemRecommender {
         }
     }
 
+    /**
+     * Compute the rank fraction of a rank within a fixed depth.
+     * @param rank The rank, or a negative value for an unranked item.
+     * @param depth The depth.
+     * @return The rank fraction; 0 for unranked items and for ranks at or beyond the depth.
+     */
+    static double depthRankScore(int rank, int depth) {
+        if (rank < 0 || rank >= depth) {
+            return 0;
+        } else if (depth == 1) {
+            return 1;
+        } else {
+            return 1.0 - rank / (depth - 1.0);
+        }
+    }
+
     /**
      * The 'left' recommender for the blending recommender.
      */
@@ -26,6 +26,10 @@ package org.lenskit.rerank;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
+import it.unimi.dsi.fastutil.ints.IntHeapIndirectPriorityQueue;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.api.ItemRecommender;
 import org.lenskit.api.Result;
@@ -38,6 +42,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -51,6 +56,10 @@ import java.util.List;
  * and each candidate item. The item with the highest score is then added to the recommended list. This process repeates
  * until enough items are recommended.
  *
+ * If the strategy is an {@link IncrementalGreedyRerankStrategy}, candidate gains are kept in a priority queue and
+ * only the gains of candidates affected by each pick are recomputed, rather than rescanning all candidates for each
+ * recommended item.
+ *
  * @author Daniel Kluver
  */
 public class GreedyRerankingItemRecommender extends AbstractItemRecommender {
@@ -73,6 +82,9 @@ public class GreedyRerankingItemRecommender extends AbstractItemRecommender {
         if (n<0) {
             n = candidates.size();
         }
+        if (strategy instanceof IncrementalGreedyRerankStrategy) {
+            return rerankIncrementally((IncrementalGreedyRerankStrategy) strategy, user, n, candidates);
+        }
 
         List<Result> results = new ArrayList<>(n);
         for (int i = 0; i<n; i++) {
@@ -91,4 +103,81 @@ public class GreedyRerankingItemRecommender extends AbstractItemRecommender {
         }
         return Results.newResultList(results);
     }
+
+    /**
+     * Re-rank candidates with an incremental strategy, keeping candidates in a priority queue by gain.
+     */
+    private ResultList rerankIncrementally(IncrementalGreedyRerankStrategy strat, long user, int n,
+                                           List<Result> candidates) {
+        int size = candidates.size();
+        List<Result> results = new ArrayList<>(Math.min(n, size));
+        List<Result> selected = Collections.unmodifiableList(results);
+
+        Long2IntMap positions = new Long2IntOpenHashMap(size);
+        positions.defaultReturnValue(-1);
+        int[] refs = new int[size];
+        final double[] gains = new double[size];
+        boolean[] used = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Result candidate = candidates.get(i);
+            positions.put(candidate.getId(), i);
+            refs[i] = i;
+            gains[i] = computeGain(strat, user, n, selected, candidate);
+        }
+
+        // best gain first, breaking ties by the base ranking
+        IntHeapIndirectPriorityQueue queue = new IntHeapIndirectPriorityQueue(refs, size, (i1, i2) -> {
+            int cmp = Double.compare(gains[i2], gains[i1]);
+            return cmp != 0 ? cmp : Integer.compare(i1, i2);
+        });
+        for (int i = 0; i < size; i++) {
+            queue.enqueue(i);
+        }
+
+        int updates = 0;
+        while (results.size() < n && !queue.isEmpty()) {
+            int best = queue.dequeue();
+            if (gains[best] == Double.NEGATIVE_INFINITY) {
+                // no remaining candidate satisfies the constraints
+                break;
+            }
+            used[best] = true;
+            Result picked = Results.rescore(candidates.get(best), gains[best]);
+            results.add(picked);
+            if (results.size() >= n) {
+                break;
+            }
+
+            LongSet affected = strat.affectedCandidates(user, n, selected, picked);
+            if (affected == null) {
+                for (int i = 0; i < size; i++) {
+                    if (!used[i]) {
+                        gains[i] = computeGain(strat, user, n, selected, candidates.get(i));
+                        updates++;
+                    }
+                }
+                queue.allChanged();
+            } else {
+                LongIterator iter = affected.iterator();
+                while (iter.hasNext()) {
+                    int i = positions.get(iter.nextLong());
+                    if (i >= 0 && !used[i]) {
+                        gains[i] = computeGain(strat, user, n, selected, candidates.get(i));
+                        queue.changed(i);
+                        updates++;
+                    }
+                }
+            }
+        }
+        logger.debug("selected {} of {} candidates with {} gain updates", results.size(), size, updates);
+
+        return Results.newResultList(results);
+    }
+
+    private static double computeGain(IncrementalGreedyRerankStrategy strat, long user, int n,
+                                      List<Result> items, Result candidate) {
+        double gain = strat.gain(user, n, items, candidate);
+        // unusable gains sort last
+        return Double.isNaN(gain) ? Double.NEGATIVE_INFINITY : gain;
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.rerank;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.api.Result;
+import org.lenskit.results.Results;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * A greedy re-ranking strategy whose candidate gains can be maintained incrementally. Instead of rescanning every
+ * candidate for each slot, {@link GreedyRerankingItemRecommender} computes each candidate's gain once, keeps the
+ * candidates in a priority queue by gain, and after each pick recomputes only the gains of the candidates reported by
+ * {@link #affectedCandidates(long, int, List, Result)}.
+ *
+ * For this to select the same items as {@link #nextItem(long, int, List, List)}, a candidate's gain must depend only
+ * on the selected items and the candidate, and must not change when an item outside its affected set is picked.
+ * For example, a diversity strategy that penalizes items sharing a genre with already-selected items only needs to
+ * update the candidates that share a genre with the last pick.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface IncrementalGreedyRerankStrategy extends GreedyRerankStrategy {
+    /**
+     * Compute the gain of adding a candidate item to the recommendation list.
+     *
+     * @param userId the id of the user to recommend for
+     * @param n the number of recommended items requested
+     * @param items the list of items already chosen for recommendation
+     * @param candidate the candidate item to recommend
+     * @return the candidate's gain, with larger values considered better; {@link Double#NEGATIVE_INFINITY} (or NaN)
+     * if the candidate cannot be added without violating a constraint.
+     */
+    double gain(long userId, int n, List<? extends Result> items, Result candidate);
+
+    /**
+     * Get the candidates whose gains may have changed after an item was picked.
+     *
+     * @param userId the id of the user to recommend for
+     * @param n the number of recommended items requested
+     * @param items the list of items chosen for recommendation, ending with the item just picked
+     * @param picked the item just picked
+     * @return the IDs of the items whose gains must be recomputed (IDs of items that are no longer candidates are
+     * ignored), or {@code null} to recompute all remaining candidates.
+     */
+    @Nullable
+    LongSet affectedCandidates(long userId, int n, List<? extends Result> items, Result picked);
+
+    /**
+     * {@inheritDoc}
+     *
+     * The default implementation scans the candidates for the first one with the largest finite {@linkplain
+     * #gain(long, int, List, Result) gain}, and returns it rescored with that gain.
+     */
+    @Nullable
+    @Override
+    default Result nextItem(long userId, int n, List<? extends Result> items, List<? extends Result> candidates) {
+        Result bestResult = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (Result candidate: candidates) {
+            double score = gain(userId, n, items, candidate);
+            if (score > bestScore) {
+                bestResult = candidate;
+                bestScore = score;
+            }
+        }
+
+        if (bestResult != null) {
+            bestResult = Results.rescore(bestResult, bestScore);
+        }
+        return bestResult;
+    }
+}
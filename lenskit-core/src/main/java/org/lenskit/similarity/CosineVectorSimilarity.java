@@ -65,6 +65,14 @@ public class CosineVectorSimilarity implements VectorSimilarity, Serializable {
         dampingFactor = damping;
     }
 
+    /**
+     * Get the damping term added to the denominator.
+     * @return The damping factor.
+     */
+    public double getDampingFactor() {
+        return dampingFactor;
+    }
+
     @Override
     public double similarity(Long2DoubleMap vec1, Long2DoubleMap vec2) {
         final double dot = Vectors.dotProduct(vec1, vec2);
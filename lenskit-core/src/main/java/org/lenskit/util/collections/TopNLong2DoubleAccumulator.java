@@ -105,6 +105,29 @@ public final class TopNLong2DoubleAccumulator implements Long2DoubleAccumulator
         return size;
     }
 
+    /**
+     * Query whether the accumulator holds its target number of items.
+     *
+     * @return {@code true} if further items will only be retained by displacing existing ones.
+     */
+    public boolean isFull() {
+        return size >= targetCount;
+    }
+
+    /**
+     * Get the lowest score currently retained by the accumulator.  Once the accumulator holds
+     * <var>n</var> items, an item must score strictly higher than this to be retained.
+     *
+     * @return The lowest retained score, or {@link Double#NaN} if the accumulator is empty.
+     */
+    public double getMinimumScore() {
+        if (heap == null || heap.isEmpty()) {
+            return Double.NaN;
+        } else {
+            return scores.getDouble(heap.firstInt());
+        }
+    }
+
     @Override
     public void put(long item, double score) {
         assert slot <= targetCount;
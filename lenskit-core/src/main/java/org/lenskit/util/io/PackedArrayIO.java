@@ -0,0 +1,234 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.util.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Utilities for writing and reading flat primitive arrays to and from file channels.  Arrays are
+ * stored in native byte order with no framing, so files written with these methods are only portable
+ * between machines of the same endianness; callers are expected to write a header recording array
+ * sizes.  Reads memory-map the file in chunks of at most 1 GiB and bulk-copy into heap arrays.
+ *
+ * @since 3.0
+ */
+public final class PackedArrayIO {
+    /**
+     * The maximum number of bytes to map at once.
+     */
+    private static final int MAP_CHUNK_SIZE = 1 << 30;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private PackedArrayIO() {
+    }
+
+    /**
+     * Write the remaining contents of a buffer to a channel.
+     *
+     * @param chan The channel.
+     * @param buf The buffer to write.
+     * @throws IOException if there is an error writing the data.
+     */
+    public static void writeFully(FileChannel chan, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            chan.write(buf);
+        }
+    }
+
+    /**
+     * Write an array of longs.
+     *
+     * @param chan The channel.
+     * @param data The data to write.
+     * @throws IOException if there is an error writing the data.
+     */
+    public static void writeLongs(FileChannel chan, long[] data) throws IOException {
+        ByteBuffer buf = writeBuffer();
+        int capacity = buf.capacity() / Long.BYTES;
+        for (int start = 0; start < data.length; start += capacity) {
+            int n = Math.min(capacity, data.length - start);
+            buf.clear();
+            buf.asLongBuffer().put(data, start, n);
+            buf.limit(n * Long.BYTES);
+            writeFully(chan, buf);
+        }
+    }
+
+    /**
+     * Write an array of ints.
+     *
+     * @param chan The channel.
+     * @param data The data to write.
+     * @throws IOException if there is an error writing the data.
+     */
+    public static void writeInts(FileChannel chan, int[] data) throws IOException {
+        ByteBuffer buf = writeBuffer();
+        int capacity = buf.capacity() / Integer.BYTES;
+        for (int start = 0; start < data.length; start += capacity) {
+            int n = Math.min(capacity, data.length - start);
+            buf.clear();
+            buf.asIntBuffer().put(data, start, n);
+            buf.limit(n * Integer.BYTES);
+            writeFully(chan, buf);
+        }
+    }
+
+    /**
+     * Write an array of doubles.
+     *
+     * @param chan The channel.
+     * @param data The data to write.
+     * @throws IOException if there is an error writing the data.
+     */
+    public static void writeDoubles(FileChannel chan, double[] data) throws IOException {
+        ByteBuffer buf = writeBuffer();
+        int capacity = buf.capacity() / Double.BYTES;
+        for (int start = 0; start < data.length; start += capacity) {
+            int n = Math.min(capacity, data.length - start);
+            buf.clear();
+            buf.asDoubleBuffer().put(data, start, n);
+            buf.limit(n * Double.BYTES);
+            writeFully(chan, buf);
+        }
+    }
+
+    /**
+     * Write an array of floats.
+     *
+     * @param chan The channel.
+     * @param data The data to write.
+     * @throws IOException if there is an error writing the data.
+     */
+    public static void writeFloats(FileChannel chan, float[] data) throws IOException {
+        ByteBuffer buf = writeBuffer();
+        int capacity = buf.capacity() / Float.BYTES;
+        for (int start = 0; start < data.length; start += capacity) {
+            int n = Math.min(capacity, data.length - start);
+            buf.clear();
+            buf.asFloatBuffer().put(data, start, n);
+            buf.limit(n * Float.BYTES);
+            writeFully(chan, buf);
+        }
+    }
+
+    /**
+     * Read an array of longs.
+     *
+     * @param chan The channel.
+     * @param pos The file position to start reading.
+     * @param data The array to fill.
+     * @return The file position after the data.
+     * @throws IOException if there is an error reading the data or the file is too short.
+     */
+    public static long readLongs(FileChannel chan, long pos, long[] data) throws IOException {
+        int chunk = MAP_CHUNK_SIZE / Long.BYTES;
+        for (int start = 0; start < data.length; start += chunk) {
+            int n = Math.min(chunk, data.length - start);
+            map(chan, pos, n * (long) Long.BYTES).asLongBuffer().get(data, start, n);
+            pos += n * (long) Long.BYTES;
+        }
+        return pos;
+    }
+
+    /**
+     * Read an array of ints.
+     *
+     * @param chan The channel.
+     * @param pos The file position to start reading.
+     * @param data The array to fill.
+     * @return The file position after the data.
+     * @throws IOException if there is an error reading the data or the file is too short.
+     */
+    public static long readInts(FileChannel chan, long pos, int[] data) throws IOException {
+        int chunk = MAP_CHUNK_SIZE / Integer.BYTES;
+        for (int start = 0; start < data.length; start += chunk) {
+            int n = Math.min(chunk, data.length - start);
+            map(chan, pos, n * (long) Integer.BYTES).asIntBuffer().get(data, start, n);
+            pos += n * (long) Integer.BYTES;
+        }
+        return pos;
+    }
+
+    /**
+     * Read an array of doubles.
+     *
+     * @param chan The channel.
+     * @param pos The file position to start reading.
+     * @param data The array to fill.
+     * @return The file position after the data.
+     * @throws IOException if there is an error reading the data or the file is too short.
+     */
+    public static long readDoubles(FileChannel chan, long pos, double[] data) throws IOException {
+        int chunk = MAP_CHUNK_SIZE / Double.BYTES;
+        for (int start = 0; start < data.length; start += chunk) {
+            int n = Math.min(chunk, data.length - start);
+            map(chan, pos, n * (long) Double.BYTES).asDoubleBuffer().get(data, start, n);
+            pos += n * (long) Double.BYTES;
+        }
+        return pos;
+    }
+
+    /**
+     * Read an array of floats.
+     *
+     * @param chan The channel.
+     * @param pos The file position to start reading.
+     * @param data The array to fill.
+     * @return The file position after the data.
+     * @throws IOException if there is an error reading the data or the file is too short.
+     */
+    public static long readFloats(FileChannel chan, long pos, float[] data) throws IOException {
+        int chunk = MAP_CHUNK_SIZE / Float.BYTES;
+        for (int start = 0; start < data.length; start += chunk) {
+            int n = Math.min(chunk, data.length - start);
+            map(chan, pos, n * (long) Float.BYTES).asFloatBuffer().get(data, start, n);
+            pos += n * (long) Float.BYTES;
+        }
+        return pos;
+    }
+
+    /**
+     * Memory-map a read-only region of a file in native byte order.
+     *
+     * @param chan The channel.
+     * @param pos The start of the region.
+     * @param size The size of the region.
+     * @return The mapped buffer.
+     * @throws IOException if the region extends past the end of the file or cannot be mapped.
+     */
+    public static ByteBuffer map(FileChannel chan, long pos, long size) throws IOException {
+        if (pos + size > chan.size()) {
+            throw new IOException("file truncated");
+        }
+        return chan.map(FileChannel.MapMode.READ_ONLY, pos, size).order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer writeBuffer() {
+        return ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    }
+}
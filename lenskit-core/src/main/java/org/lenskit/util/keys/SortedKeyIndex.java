@@ -57,6 +57,26 @@ public abstract class SortedKeyIndex implements KeyIndex, Serializable {
         return new FullSortedKeyIndex(keys, 0, size);
     }
 
+    /**
+     * Wrap a range of a key array into a key set.  The resulting index uses positions in the
+     * full array as its indexes, so it can be paired with a value array that is parallel to
+     * {@code keys} (e.g. in {@link Long2DoubleSortedArrayMap#wrap(SortedKeyIndex, double[])}).
+     * This allows many sorted segments to be packed into a single array.
+     *
+     * @param keys The key array.  The range {@code [lb,ub)} must be sorted and must not contain
+     *             duplicates; as with {@link #wrap(long[], int)}, this is only checked when assertions
+     *             are enabled.
+     * @param lb The lower bound (inclusive) of the range to use.
+     * @param ub The upper bound (exclusive) of the range to use.
+     * @return The key set.
+     */
+    public static SortedKeyIndex wrap(long[] keys, int lb, int ub) {
+        Preconditions.checkArgument(lb >= 0 && lb <= ub, "invalid lower bound");
+        Preconditions.checkArgument(ub <= keys.length, "upper bound too large");
+        assert MoreArrays.isSorted(keys, lb, ub);
+        return new FullSortedKeyIndex(keys, lb, ub);
+    }
+
     /**
      * Create a key set from a collection of keys.
      *
@@ -0,0 +1,111 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.baseline;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.PackedRatingMatrixProvider;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LeastSquaresItemScorerTest {
+    private List<Rating> ratings;
+    private RatingMatrix snapshot;
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (long user = 1; user <= 60; user++) {
+            for (long item = 100; item < 140; item++) {
+                if (rng.nextDouble() < 0.3) {
+                    ratings.add(Rating.create(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+        StandardRatingVectorPDAO dao = new StandardRatingVectorPDAO(StaticDataSource.fromList(ratings).get());
+        snapshot = new PackedRatingMatrixProvider(dao, new Random(1)).get();
+    }
+
+    private double trainingRMSE(LeastSquaresItemScorer scorer) {
+        double sse = 0;
+        for (Rating r: ratings) {
+            Result score = scorer.score(r.getUserId(), r.getItemId());
+            double err = r.getValue() - score.getScore();
+            sse += err * err;
+        }
+        return Math.sqrt(sse / ratings.size());
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        LeastSquaresItemScorer seq =
+                new LeastSquaresItemScorer.Builder(0.001, 0.005, snapshot, 50, 50, 0, false).get();
+        LeastSquaresItemScorer par =
+                new LeastSquaresItemScorer.Builder(0.001, 0.005, snapshot, 50, 50, 0, true).get();
+
+        double seqRMSE = trainingRMSE(seq);
+        assertThat(trainingRMSE(par), closeTo(seqRMSE, 0.01));
+        for (Rating r: ratings) {
+            assertThat(par.score(r.getUserId(), r.getItemId()).getScore(),
+                       closeTo(seq.score(r.getUserId(), r.getItemId()).getScore(), 0.1));
+        }
+    }
+
+    @Test
+    public void testParallelIsDeterministic() {
+        LeastSquaresItemScorer s1 =
+                new LeastSquaresItemScorer.Builder(0.001, 0.005, snapshot, 20, 20, 0, true).get();
+        LeastSquaresItemScorer s2 =
+                new LeastSquaresItemScorer.Builder(0.001, 0.005, snapshot, 20, 20, 0, true).get();
+        for (Rating r: ratings) {
+            assertThat(s2.score(r.getUserId(), r.getItemId()).getScore(),
+                       equalTo(s1.score(r.getUserId(), r.getItemId()).getScore()));
+        }
+    }
+
+    @Test
+    public void testEarlyStopping() {
+        // a huge threshold stops as soon as the minimum iterations are done
+        LeastSquaresItemScorer stopped =
+                new LeastSquaresItemScorer.Builder(0.001, 0.005, snapshot, 100, 3, 1000, false).get();
+        LeastSquaresItemScorer fixed =
+                new LeastSquaresItemScorer.Builder(0.001, 0.005, snapshot, 3).get();
+        for (Rating r: ratings) {
+            assertThat(stopped.score(r.getUserId(), r.getItemId()).getScore(),
+                       equalTo(fixed.score(r.getUserId(), r.getItemId()).getScore()));
+        }
+    }
+}
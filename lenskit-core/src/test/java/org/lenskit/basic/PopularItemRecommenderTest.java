@@ -37,6 +37,7 @@ import org.lenskit.data.ratings.Rating;
 import java.util.List;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 
 public class PopularItemRecommenderTest {
@@ -120,4 +121,26 @@ public class PopularItemRecommenderTest {
         List<Long> results = recommender.recommend(100, 1);
         assertThat(results, contains(1L));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRecommendDetailsHaveCounts() {
+        ResultList results = recommender.recommendWithDetails(17, -1, null, null);
+        assertThat(results.get(0).getScore(), equalTo(2.0));
+        assertThat(results.get(1).getScore(), equalTo(1.0));
+    }
+
+    @Test
+    public void testRecommendLimitSkipsExcluded() {
+        List<Long> results = recommender.recommend(100, 1, null, ImmutableSet.of(1L));
+        assertThat(results, contains(2L));
+    }
+
+    @Test
+    public void testPopularityRanks() {
+        assertThat(statistics.getPopularityRank(1), equalTo(0));
+        assertThat(statistics.getPopularityRank(2), equalTo(1));
+        assertThat(statistics.getPopularityRank(3), equalTo(-1));
+        assertThat(statistics.getInteractionCountAtRank(0), equalTo(2));
+        assertThat(statistics.getInteractionCountAtRank(1), equalTo(1));
+    }
+}
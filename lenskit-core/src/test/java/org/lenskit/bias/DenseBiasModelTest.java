@@ -0,0 +1,123 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.bias;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.data.dao.EntityCollectionDAOBuilder;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.keys.FrozenHashKeyIndex;
+import org.lenskit.util.keys.KeyIndex;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DenseBiasModelTest {
+    @Test
+    public void testComputeAllMeans() {
+        EntityFactory efac = new EntityFactory();
+        EntityCollectionDAOBuilder daoBuilder = new EntityCollectionDAOBuilder();
+        daoBuilder.addEntities(efac.rating(100, 200, 3.0),
+                               efac.rating(101, 200, 4.0),
+                               efac.rating(102, 201, 2.5),
+                               efac.rating(102, 203, 4.5),
+                               efac.rating(101, 203, 3.5));
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.addRoot(BiasModel.class);
+        config.bind(BiasModel.class).to(DenseBiasModel.class);
+
+        LenskitRecommender rec = LenskitRecommender.build(config, daoBuilder.build());
+        BiasModel model = rec.get(BiasModel.class);
+
+        assertThat(model, instanceOf(DenseBiasModel.class));
+        assertThat(model.getIntercept(), closeTo(3.5, 1.0e-3));
+        assertThat(model.getItemBias(200), closeTo(0.0, 1.0e-3));
+        assertThat(model.getItemBias(201), closeTo(-1.0, 1.0e-3));
+        assertThat(model.getItemBias(203), closeTo(0.5, 1.0e-3));
+        assertThat(model.getItemBias(204), equalTo(0.0));
+        assertThat(model.getUserBias(100), closeTo(-0.5, 1.0e-3));
+        assertThat(model.getUserBias(101), closeTo(0, 1.0e-3));
+        assertThat(model.getUserBias(102), closeTo(0.25, 1.0e-3));
+        assertThat(model.getUserBias(103), equalTo(0.0));
+    }
+
+    @Test
+    public void testFromModel() {
+        Long2DoubleMap users = new Long2DoubleOpenHashMap();
+        users.put(1, 0.5);
+        users.put(2, -0.25);
+        Long2DoubleMap items = new Long2DoubleOpenHashMap();
+        items.put(10, 1.0);
+        items.put(20, -1.0);
+        BiasModel base = new UserItemBiasModel(3.0, users, items);
+
+        KeyIndex userIndex = FrozenHashKeyIndex.create(LongUtils.packedSet(2, 1, 3));
+        KeyIndex itemIndex = FrozenHashKeyIndex.create(LongUtils.packedSet(30, 20, 10));
+        DenseBiasModel dense = DenseBiasModel.fromModel(base, userIndex, itemIndex);
+
+        assertThat(dense.getIntercept(), equalTo(3.0));
+        assertThat(dense.getUserBias(1), equalTo(0.5));
+        assertThat(dense.getUserBias(3), equalTo(0.0));
+        assertThat(dense.getItemBias(20), equalTo(-1.0));
+        assertThat(dense.getItemBias(30), equalTo(0.0));
+        assertThat(dense.getItemBiases().size(), equalTo(3));
+        assertThat(dense.getItemBiases().get(10), equalTo(1.0));
+    }
+
+    @Test
+    public void testScoreItems() {
+        Long2DoubleMap users = new Long2DoubleOpenHashMap();
+        users.put(1, 0.5);
+        Long2DoubleMap items = new Long2DoubleOpenHashMap();
+        items.put(10, 1.0);
+        items.put(20, -1.0);
+        DenseBiasModel dense = DenseBiasModel.fromModel(new UserItemBiasModel(3.0, users, items),
+                                                        FrozenHashKeyIndex.create(LongUtils.packedSet(1)),
+                                                        FrozenHashKeyIndex.create(LongUtils.packedSet(10, 20)));
+
+        KeyIndex idx = dense.getItemIndex();
+        int[] cands = {idx.getIndex(20), -1, idx.getIndex(10)};
+        double[] scores = new double[3];
+        dense.scoreItems(1, cands, 3, scores);
+        assertThat(scores[0], closeTo(2.5, 1.0e-10));
+        assertThat(scores[1], closeTo(3.5, 1.0e-10));
+        assertThat(scores[2], closeTo(4.5, 1.0e-10));
+
+        ResultMap results = new BiasItemScorer(dense).scoreWithDetails(1, Arrays.asList(10L, 20L, 30L));
+        assertThat(results.size(), equalTo(3));
+        Result r = results.get(30L);
+        assertThat(r, notNullValue());
+        assertThat(r.getScore(), closeTo(3.5, 1.0e-10));
+        assertThat(results.getScore(10L), closeTo(4.5, 1.0e-10));
+    }
+}
@@ -24,10 +24,17 @@
  */
 package org.lenskit.hybrid;
 
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.junit.Test;
+import org.lenskit.api.Result;
 import org.lenskit.api.ResultList;
+import org.lenskit.basic.AbstractItemRecommender;
 import org.lenskit.results.Results;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 import static org.lenskit.hybrid.RankBlendingItemRecommender.merge;
@@ -61,4 +68,84 @@ public class RankBlendingItemRecommenderTest {
         assertThat(res.get(3).getScore(),
                    closeTo(0.0, 1.0e-6));
     }
+
+    @Test
+    public void testTopDepthScores() {
+        ResultList left = Results.newResultList(Results.create(1, 2.0),
+                                                Results.create(2, 1.5));
+        ResultList right = Results.newResultList(Results.create(2, 2.0),
+                                                 Results.create(3, 1.5));
+        ResultList res = merge(-1, left, right, 0.5, 3);
+        assertThat(res.idList(), contains(2L, 1L, 3L));
+        // 2nd of left (1/2), 1st of right
+        assertThat(res.get(0).getScore(), closeTo(0.75, 1.0e-6));
+        assertThat(res.get(1).getScore(), closeTo(0.5, 1.0e-6));
+        assertThat(res.get(2).getScore(), closeTo(0.25, 1.0e-6));
+        assertThat(res.get(2).as(RankBlendResult.class).getRightRank(), equalTo(1));
+    }
+
+    private static FixedRecommender[] makeRecommenders() {
+        List<Result> leftItems = new ArrayList<>();
+        List<Result> rightItems = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            leftItems.add(Results.create(i, 100 - i));
+            rightItems.add(Results.create((i * 7) % 100, 100 - i));
+        }
+        return new FixedRecommender[]{new FixedRecommender(Results.newResultList(leftItems)),
+                                      new FixedRecommender(Results.newResultList(rightItems))};
+    }
+
+    @Test
+    public void testApproximateTopDepthBlend() {
+        FixedRecommender[] recs = makeRecommenders();
+        FixedRecommender left = recs[0];
+        FixedRecommender right = recs[1];
+        RankBlendingItemRecommender rec = new RankBlendingItemRecommender(left, right, 0.6, 20);
+
+        ResultList res = rec.recommendWithDetails(42, 5, null, null);
+        ResultList expected = merge(5, Results.newResultList(left.results.subList(0, 20)),
+                                    Results.newResultList(right.results.subList(0, 20)), 0.6, 20);
+        assertThat(res.idList(), equalTo(expected.idList()));
+        // each side is asked once, for exactly the blend depth
+        assertThat(left.calls, equalTo(1));
+        assertThat(right.calls, equalTo(1));
+        assertThat(left.maxDepth, equalTo(20));
+        assertThat(right.maxDepth, equalTo(20));
+    }
+
+    @Test
+    public void testTopDepthAtListLengthMatchesFullBlend() {
+        FixedRecommender[] recs = makeRecommenders();
+        FixedRecommender left = recs[0];
+        FixedRecommender right = recs[1];
+        // with D equal to both full list lengths, the approximation is exact
+        RankBlendingItemRecommender rec = new RankBlendingItemRecommender(left, right, 0.6, 100);
+        ResultList res = rec.recommendWithDetails(42, 5, null, null);
+        ResultList expected = merge(5, left.results, right.results, 0.6);
+        assertThat(res.idList(), equalTo(expected.idList()));
+        for (int i = 0; i < 5; i++) {
+            assertThat(res.get(i).getScore(), closeTo(expected.get(i).getScore(), 1.0e-9));
+        }
+    }
+
+    /**
+     * Recommender returning prefixes of a fixed list, and recording how often and how deep it was asked to go.
+     */
+    private static class FixedRecommender extends AbstractItemRecommender {
+        final ResultList results;
+        int calls = 0;
+        int maxDepth = 0;
+
+        FixedRecommender(ResultList res) {
+            results = res;
+        }
+
+        @Override
+        protected ResultList recommendWithDetails(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+            int size = n < 0 ? results.size() : Math.min(n, results.size());
+            calls += 1;
+            maxDepth = Math.max(maxDepth, size);
+            return Results.newResultList(results.subList(0, size));
+        }
+    }
 }
@@ -24,6 +24,7 @@
  */
 package org.lenskit.rerank;
 
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.junit.Test;
 import org.lenskit.api.ItemRecommender;
@@ -240,4 +241,90 @@ public class GreedyRerankingItemRecommenderTest {
         ResultList result = gr.recommendWithDetails(0, 0, null, null);
         assertEquals(0, result.size());
     }
+
+    /**
+     * Diversity strategy treating {@code id % 3} as the item's genre, penalizing genres already recommended.
+     */
+    private static class GenrePenaltyStrategy implements IncrementalGreedyRerankStrategy {
+        int gainCalls = 0;
+
+        @Override
+        public double gain(long userId, int n, List<? extends Result> items, Result candidate) {
+            gainCalls++;
+            int count = 0;
+            for (Result item: items) {
+                if (item.getId() % 3 == candidate.getId() % 3) {
+                    count++;
+                }
+            }
+            return candidate.getScore() - 10 * count;
+        }
+
+        @Nullable
+        @Override
+        public LongSet affectedCandidates(long userId, int n, List<? extends Result> items, Result picked) {
+            LongSet affected = new LongOpenHashSet();
+            for (long i = picked.getId() % 3; i < 100; i += 3) {
+                affected.add(i);
+            }
+            return affected;
+        }
+    }
+
+    @Test
+    public void testIncrementalMatchesScan() {
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(Results.create(i, (i * 37) % 100));
+        }
+        ResultList rl = Results.newResultList(results);
+
+        final GenrePenaltyStrategy incremental = new GenrePenaltyStrategy();
+        GreedyRerankStrategy scanning = new GreedyRerankStrategy() {
+            @Nullable
+            @Override
+            public Result nextItem(long userId, int n, List<? extends Result> items, List<? extends Result> candidates) {
+                return incremental.nextItem(userId, n, items, candidates);
+            }
+        };
+
+        ResultList expected = new GreedyRerankingItemRecommender(preSeededItemRecommender(rl), scanning)
+                .recommendWithDetails(0, 20, null, null);
+        int scanCalls = incremental.gainCalls;
+        incremental.gainCalls = 0;
+        ResultList result = new GreedyRerankingItemRecommender(preSeededItemRecommender(rl), incremental)
+                .recommendWithDetails(0, 20, null, null);
+
+        assertEquals(20, result.size());
+        assertEquals(expected.idList(), result.idList());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(expected.get(i).getScore(), result.get(i).getScore(), 1.0e-6);
+        }
+        assertTrue(incremental.gainCalls < scanCalls);
+    }
+
+    @Test
+    public void testIncrementalStopsWhenNothingSatisfies() {
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            results.add(Results.create(i, i));
+        }
+        ResultList rl = Results.newResultList(results);
+
+        IncrementalGreedyRerankStrategy strategy = new GenrePenaltyStrategy() {
+            @Override
+            public double gain(long userId, int n, List<? extends Result> items, Result candidate) {
+                // at most one item per genre
+                double gain = super.gain(userId, n, items, candidate);
+                return gain < candidate.getScore() ? Double.NEGATIVE_INFINITY : gain;
+            }
+        };
+
+        ResultList result = new GreedyRerankingItemRecommender(preSeededItemRecommender(rl), strategy)
+                .recommendWithDetails(0, 5, null, null);
+        assertEquals(3, result.size());
+        assertEquals(5, result.get(0).getId());
+        assertEquals(4, result.get(1).getId());
+        assertEquals(3, result.get(2).getId());
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.api.ResultList;
+import org.lenskit.basic.TopNItemRecommender;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.knn.item.model.SimilarityMatrixModel;
+import org.lenskit.results.ResultAccumulator;
+import org.lenskit.util.collections.Long2DoubleAccumulator;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+import org.lenskit.util.collections.UnlimitedLong2DoubleAccumulator;
+import org.lenskit.util.math.Vectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * Top-N recommender specialized for item-item CF.  An item can only receive an item-item score
+ * if it has one of the user's rated items in its neighborhood, so instead of scoring every candidate
+ * item this recommender expands from the user's rated items through the reverse neighborhoods of the
+ * {@link SimilarityMatrixModel} and only scores the items it reaches.  This makes recommendation
+ * cost proportional to the number of ratings times the neighborhood size, rather than the size of the
+ * item catalog.
+ *
+ * <p>Scores are identical to those produced by {@link ItemItemScorer}.  If the scorer's model is not
+ * a {@link SimilarityMatrixModel}, this recommender falls back to the standard top-N behavior.</p>
+ *
+ * @since 3.0
+ */
+public class ItemItemRecommender extends TopNItemRecommender {
+    private static final Logger logger = LoggerFactory.getLogger(ItemItemRecommender.class);
+    private final ItemItemScorer itemScorer;
+
+    @Inject
+    public ItemItemRecommender(DataAccessObject data, ItemItemScorer scorer) {
+        super(data, scorer);
+        itemScorer = scorer;
+    }
+
+    @Override
+    protected List<Long> recommend(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        SimilarityMatrixModel matrix = getMatrix();
+        if (matrix == null) {
+            return super.recommend(user, n, candidates, exclude);
+        }
+
+        Long2DoubleMap scores = new Long2DoubleOpenHashMap();
+        itemScorer.scoreReachableItems(user, matrix, makeFilter(user, candidates, exclude),
+                                       ItemItemScoreAccumulator.basic(scores));
+        logger.debug("selecting {} recommendations for user {} from {} reachable items",
+                     n, user, scores.size());
+
+        Long2DoubleAccumulator accum;
+        if (n >= 0) {
+            accum = new TopNLong2DoubleAccumulator(n);
+        } else {
+            accum = new UnlimitedLong2DoubleAccumulator();
+        }
+        for (Long2DoubleMap.Entry e: Vectors.fastEntries(scores)) {
+            accum.put(e.getLongKey(), e.getDoubleValue());
+        }
+        return accum.finishList();
+    }
+
+    @Override
+    protected ResultList recommendWithDetails(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        SimilarityMatrixModel matrix = getMatrix();
+        if (matrix == null) {
+            return super.recommendWithDetails(user, n, candidates, exclude);
+        }
+
+        List<ItemItemResult> results = new ArrayList<>();
+        itemScorer.scoreReachableItems(user, matrix, makeFilter(user, candidates, exclude),
+                                       ItemItemScoreAccumulator.detailed(results));
+        logger.debug("selecting {} recommendations for user {} from {} reachable items",
+                     n, user, results.size());
+
+        ResultAccumulator accum = ResultAccumulator.create(n);
+        for (ItemItemResult r: results) {
+            accum.add(r);
+        }
+        return accum.finish();
+    }
+
+    /**
+     * Build the filter for reachable items.  Unlike the standard top-N recommender, this does not
+     * materialize the candidate set when none is provided; any reachable item is a candidate.
+     */
+    private LongPredicate makeFilter(long user, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        final LongSet excl = exclude != null ? exclude : getDefaultExcludes(user);
+        if (candidates == null) {
+            return item -> !excl.contains(item);
+        } else {
+            return item -> candidates.contains(item) && !excl.contains(item);
+        }
+    }
+
+    @Nullable
+    private SimilarityMatrixModel getMatrix() {
+        if (itemScorer.model instanceof SimilarityMatrixModel) {
+            return (SimilarityMatrixModel) itemScorer.model;
+        } else {
+            return null;
+        }
+    }
+}
@@ -24,22 +24,26 @@
  */
 package org.lenskit.knn.item;
 
-import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
-import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongIterators;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.*;
 import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.data.ratings.RatingVectorPDAO;
 import org.lenskit.knn.MinNeighbors;
 import org.lenskit.knn.NeighborhoodSize;
 import org.lenskit.knn.item.model.ItemItemModel;
+import org.lenskit.knn.item.model.SimilarityMatrixModel;
 import org.lenskit.results.Results;
 import org.lenskit.transform.normalize.UserVectorNormalizer;
 import org.lenskit.util.InvertibleFunction;
 import org.lenskit.util.collections.Long2DoubleAccumulator;
+import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
 import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.math.Vectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +53,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.function.LongPredicate;
 
 /**
  * Score items using an item-item CF model. User ratings are <b>not</b> supplied
@@ -124,6 +129,106 @@ public class ItemItemScorer extends AbstractItemScorer {
         return Results.newResultMap(results);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation normalizes each user's ratings once, builds an inverted index from items
+     * to the batch users who rated them, and then walks each target item's neighbor row a single time
+     * to assemble the neighborhoods of every user in the batch.  Results are identical to scoring
+     * the users one at a time.
+     *
+     * If {@link MinNeighbors} is 0 or less, every user must be offered every item even with no usable
+     * neighbors, which the inverted index cannot skip; such batches are scored one user at a time.
+     */
+    @Nonnull
+    @Override
+    public Map<Long, Map<Long, Double>> scoreUsers(@Nonnull Collection<Long> users, @Nonnull Collection<Long> items) {
+        if (minNeighbors <= 0) {
+            return super.scoreUsers(users, items);
+        }
+
+        SortedKeyIndex userIds = SortedKeyIndex.fromCollection(users);
+        final int nusers = userIds.size();
+        logger.debug("scoring {} items for batch of {} users", items.size(), nusers);
+
+        Long2DoubleMap[] userScores = new Long2DoubleMap[nusers];
+        List<InvertibleFunction<Long2DoubleMap, Long2DoubleMap>> transforms = new ArrayList<>(nusers);
+        Long2DoubleMap[] results = new Long2DoubleMap[nusers];
+        ItemItemScoreAccumulator[] accums = new ItemItemScoreAccumulator[nusers];
+        Long2ObjectMap<IntList> postings = new Long2ObjectOpenHashMap<>();
+
+        for (int i = 0; i < nusers; i++) {
+            long user = userIds.getKey(i);
+            Long2DoubleMap ratings = Long2DoubleSortedArrayMap.create(rvDAO.userRatingVector(user));
+            InvertibleFunction<Long2DoubleMap, Long2DoubleMap> transform = normalizer.makeTransformation(user, ratings);
+            userScores[i] = transform.apply(ratings);
+            transforms.add(transform);
+            results[i] = new Long2DoubleOpenHashMap();
+            accums[i] = ItemItemScoreAccumulator.basic(results[i]);
+
+            LongIterator riter = userScores[i].keySet().iterator();
+            while (riter.hasNext()) {
+                long ratedItem = riter.nextLong();
+                IntList post = postings.get(ratedItem);
+                if (post == null) {
+                    post = new IntArrayList();
+                    postings.put(ratedItem, post);
+                }
+                post.add(i);
+            }
+        }
+
+        // per-user scratch space for the neighborhood of the current item
+        LongArrayList[] nbrIds = new LongArrayList[nusers];
+        DoubleArrayList[] nbrSims = new DoubleArrayList[nusers];
+        for (int i = 0; i < nusers; i++) {
+            nbrIds[i] = new LongArrayList();
+            nbrSims[i] = new DoubleArrayList();
+        }
+        IntArrayList touched = new IntArrayList();
+
+        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        while (iter.hasNext()) {
+            final long item = iter.nextLong();
+            Long2DoubleMap allNeighbors = model.getNeighbors(item);
+            for (Long2DoubleMap.Entry nbr: Vectors.fastEntries(allNeighbors)) {
+                IntList post = postings.get(nbr.getLongKey());
+                if (post == null) {
+                    continue;
+                }
+                int np = post.size();
+                for (int j = 0; j < np; j++) {
+                    int u = post.getInt(j);
+                    if (nbrIds[u].isEmpty()) {
+                        touched.add(u);
+                    }
+                    nbrIds[u].add(nbr.getLongKey());
+                    nbrSims[u].add(nbr.getDoubleValue());
+                }
+            }
+
+            int nt = touched.size();
+            for (int j = 0; j < nt; j++) {
+                int u = touched.getInt(j);
+                Long2DoubleMap neighborhood =
+                        Long2DoubleSortedArrayMap.wrapUnsorted(nbrIds[u].toLongArray(),
+                                                               nbrSims[u].toDoubleArray());
+                scoreNeighborhood(item, neighborhood, allNeighbors.size(), userScores[u], accums[u]);
+                nbrIds[u].clear();
+                nbrSims[u].clear();
+            }
+            touched.clear();
+        }
+
+        Long2ObjectMap<Map<Long,Double>> batchResults = new Long2ObjectOpenHashMap<>(nusers);
+        for (int i = 0; i < nusers; i++) {
+            accums[i].applyReversedTransform(transforms.get(i));
+            batchResults.put(userIds.getKey(i), results[i]);
+        }
+        logger.debug("scored items for batch of {} users", nusers);
+        return batchResults;
+    }
+
     /**
      * Score all items into an accumulator.
      * @param user The user.
@@ -146,11 +251,73 @@ public class ItemItemScorer extends AbstractItemScorer {
         accum.applyReversedTransform(transform);
     }
 
+    /**
+     * Score the items reachable from a user's ratings.  Rather than examining every candidate item,
+     * this expands from each item the user has rated through the model's reverse neighborhoods, so
+     * the only items visited are those that have at least one of the user's items as a neighbor.
+     * For each item reached, the resulting neighborhood is exactly the one used by
+     * {@link #scoreWithDetails(long, Collection)}.
+     *
+     * @param user The user.
+     * @param matrix The similarity matrix (this scorer's model).
+     * @param accept A filter selecting the reachable items to score.
+     * @param accum The accumulator.
+     */
+    void scoreReachableItems(long user, SimilarityMatrixModel matrix, LongPredicate accept,
+                             ItemItemScoreAccumulator accum) {
+        Long2DoubleMap ratings = Long2DoubleSortedArrayMap.create(rvDAO.userRatingVector(user));
+
+        logger.trace("user has {} ratings", ratings.size());
+        InvertibleFunction<Long2DoubleMap, Long2DoubleMap> transform = normalizer.makeTransformation(user, ratings);
+        Long2DoubleMap itemScores = transform.apply(ratings);
+
+        // accumulate, for each reachable item, its neighbors that the user has rated
+        Long2ObjectMap<Long2DoubleMap> neighborhoods = new Long2ObjectOpenHashMap<>();
+        LongIterator riter = itemScores.keySet().iterator();
+        while (riter.hasNext()) {
+            final long rated = riter.nextLong();
+            for (Long2DoubleMap.Entry e: Vectors.fastEntries(matrix.getReverseNeighbors(rated))) {
+                long item = e.getLongKey();
+                if (!accept.test(item)) {
+                    continue;
+                }
+                Long2DoubleMap nbrs = neighborhoods.get(item);
+                if (nbrs == null) {
+                    nbrs = new Long2DoubleOpenHashMap();
+                    neighborhoods.put(item, nbrs);
+                }
+                nbrs.put(rated, e.getDoubleValue());
+            }
+        }
+        logger.debug("reached {} items from {} ratings of user {}",
+                     neighborhoods.size(), itemScores.size(), user);
+
+        for (Long2ObjectMap.Entry<Long2DoubleMap> e: Long2ObjectMaps.fastIterable(neighborhoods)) {
+            long item = e.getLongKey();
+            scoreNeighborhood(item, LongUtils.frozenMap(e.getValue()),
+                              matrix.getNeighbors(item).size(), itemScores, accum);
+        }
+
+        accum.applyReversedTransform(transform);
+    }
+
     protected void scoreItem(Long2DoubleMap userData, long item, ItemItemScoreAccumulator accum) {
         // find the usable neighbors
         Long2DoubleSortedArrayMap allNeighbors = Long2DoubleSortedArrayMap.create(model.getNeighbors(item));
         Long2DoubleMap neighborhood = allNeighbors.subMap(userData.keySet());
+        scoreNeighborhood(item, neighborhood, allNeighbors.size(), userData, accum);
+    }
 
+    /**
+     * Truncate an item's usable neighborhood and score it.
+     * @param item The item to score.
+     * @param neighborhood The neighbors of {@code item} that the user has rated.
+     * @param nAllNeighbors The total number of neighbors of {@code item} (for logging).
+     * @param userData The user's normalized ratings.
+     * @param accum The accumulator.
+     */
+    private void scoreNeighborhood(long item, Long2DoubleMap neighborhood, int nAllNeighbors,
+                                   Long2DoubleMap userData, ItemItemScoreAccumulator accum) {
         if (neighborhoodSize > 0) {
             if (logger.isTraceEnabled()) {
                 logger.trace("truncating {} neighbors to {}", neighborhood.size(), neighborhoodSize);
@@ -168,7 +335,7 @@ public class ItemItemScorer extends AbstractItemScorer {
         }
         if (logger.isTraceEnabled()) {
             logger.trace("scoring item {} with {} of {} neighbors",
-                         item, neighborhood.size(), allNeighbors.size());
+                         item, neighborhood.size(), nAllNeighbors);
         }
         scorer.score(item, neighborhood, userData, accum);
     }
@@ -25,18 +25,26 @@
 package org.lenskit.knn.item.model;
 
 import com.google.common.base.Preconditions;
-import it.unimi.dsi.fastutil.longs.Long2DoubleSortedMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
-import it.unimi.dsi.fastutil.longs.LongSortedSet;
-import it.unimi.dsi.fastutil.longs.LongSortedSets;
+import it.unimi.dsi.fastutil.longs.*;
 import net.jcip.annotations.Immutable;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.inject.Shareable;
 import org.lenskit.inject.Transient;
+import org.lenskit.util.io.PackedArrayIO;
+import org.lenskit.util.io.StagedWrite;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
 import org.lenskit.util.keys.SortedKeyIndex;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Encapsulation of data needed during an item-item model build.  This class
@@ -44,7 +52,15 @@ import java.io.Serializable;
  * up the model in the accumulator.
  *
  * <p>This is shareable to make it more usable in the evaluator.  Typical built models
- * will not include it, and any dependencies on it should be {@link Transient}.</p>
+ * will not include it, and any dependencies on it should be {@link Transient}.  Since the
+ * context depends only on the rating data and the user vector normalizer, a single context
+ * (cached in memory or on disk by the evaluator) is reused by all model variants that differ
+ * only in model parameters such as model size, similarity threshold, or minimum common users.</p>
+ *
+ * <p>The data is stored in packed compressed-row form: the item vectors are segments of a
+ * single pair of user ID and value arrays, and the user item sets are segments of a single
+ * item ID array.  This form is also used for serialization, and can be written to and read from
+ * a flat binary file with {@link #write(Path)} and {@link #read(Path)}.</p>
  *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  * @see ItemItemModelProvider
@@ -53,17 +69,31 @@ import java.io.Serializable;
 @Shareable
 @Immutable
 public class ItemItemBuildContext implements Serializable {
-    private static final long serialVersionUID = 2L;
+    private static final long serialVersionUID = 3L;
+    /**
+     * Magic number identifying packed build context files ('LKBC').
+     */
+    private static final int FILE_MAGIC = 0x4C4B4243;
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_SIZE = 6 * Integer.BYTES;
 
     @Nonnull
-    private
-    SortedKeyIndex items;
+    private final SortedKeyIndex items;
     @Nonnull
-    private
-    Long2DoubleSortedMap[] itemVectors;
+    private final int[] itemOffsets;
+    @Nonnull
+    private final long[] ratingUsers;
+    @Nonnull
+    private final double[] ratingValues;
 
     @Nonnull
-    private Long2ObjectMap<LongSortedSet> userItems;
+    private final SortedKeyIndex users;
+    @Nonnull
+    private final int[] userOffsets;
+    @Nonnull
+    private final long[] userItemIds;
+
+    private transient Long2DoubleSortedArrayMap[] itemVectors;
 
     /**
      * Set up a new item build context.
@@ -74,9 +104,79 @@ public class ItemItemBuildContext implements Serializable {
     ItemItemBuildContext(@Nonnull SortedKeyIndex universe,
                          @Nonnull Long2DoubleSortedMap[] vectors,
                          @Nonnull Long2ObjectMap<LongSortedSet> userItems) {
-        this.userItems = userItems;
         items = universe;
-        itemVectors = vectors;
+        int n = universe.size();
+        itemOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            itemOffsets[i+1] = itemOffsets[i] + vectors[i].size();
+        }
+        ratingUsers = new long[itemOffsets[n]];
+        ratingValues = new double[itemOffsets[n]];
+        for (int i = 0; i < n; i++) {
+            int pos = itemOffsets[i];
+            for (Long2DoubleMap.Entry e: vectors[i].long2DoubleEntrySet()) {
+                ratingUsers[pos] = e.getLongKey();
+                ratingValues[pos] = e.getDoubleValue();
+                pos++;
+            }
+        }
+
+        users = SortedKeyIndex.fromCollection(userItems.keySet());
+        int nu = users.size();
+        userOffsets = new int[nu + 1];
+        for (int u = 0; u < nu; u++) {
+            userOffsets[u+1] = userOffsets[u] + userItems.get(users.getKey(u)).size();
+        }
+        userItemIds = new long[userOffsets[nu]];
+        for (int u = 0; u < nu; u++) {
+            LongIterator iter = userItems.get(users.getKey(u)).iterator();
+            int pos = userOffsets[u];
+            while (iter.hasNext()) {
+                userItemIds[pos++] = iter.nextLong();
+            }
+        }
+
+        makeVectors();
+    }
+
+    /**
+     * Set up a new item build context from packed arrays.  The arrays are used as-is, not copied.
+     *
+     * @param universe The set of items for the model.
+     * @param itemOffs The start of each item's vector in {@code rUsers} and {@code rValues}, followed
+     *                 by the total number of ratings.
+     * @param rUsers The user IDs of each item's ratings, sorted within each item.
+     * @param rValues The normalized rating values.
+     * @param userIds The users with candidate items.
+     * @param userOffs The start of each user's item set in {@code uItems}, followed by the total size.
+     * @param uItems The item IDs of each user's candidate items, sorted within each user.
+     */
+    ItemItemBuildContext(@Nonnull SortedKeyIndex universe, @Nonnull int[] itemOffs,
+                         @Nonnull long[] rUsers, @Nonnull double[] rValues,
+                         @Nonnull SortedKeyIndex userIds, @Nonnull int[] userOffs,
+                         @Nonnull long[] uItems) {
+        Preconditions.checkArgument(itemOffs.length == universe.size() + 1, "item offset count mismatch");
+        Preconditions.checkArgument(rUsers.length == rValues.length, "rating array size mismatch");
+        Preconditions.checkArgument(itemOffs[universe.size()] == rUsers.length, "rating count mismatch");
+        Preconditions.checkArgument(userOffs.length == userIds.size() + 1, "user offset count mismatch");
+        Preconditions.checkArgument(userOffs[userIds.size()] == uItems.length, "user item count mismatch");
+        items = universe;
+        itemOffsets = itemOffs;
+        ratingUsers = rUsers;
+        ratingValues = rValues;
+        users = userIds;
+        userOffsets = userOffs;
+        userItemIds = uItems;
+        makeVectors();
+    }
+
+    private void makeVectors() {
+        int n = items.size();
+        itemVectors = new Long2DoubleSortedArrayMap[n];
+        for (int i = 0; i < n; i++) {
+            SortedKeyIndex keys = SortedKeyIndex.wrap(ratingUsers, itemOffsets[i], itemOffsets[i+1]);
+            itemVectors[i] = Long2DoubleSortedArrayMap.wrap(keys, ratingValues);
+        }
     }
 
     /**
@@ -104,6 +204,16 @@ public class ItemItemBuildContext implements Serializable {
         return itemVectors[idx];
     }
 
+    /**
+     * Get the set of users with item sets.  Users with fewer than two rated items are omitted.
+     *
+     * @return The users for which {@link #getUserItems(long)} returns a non-empty set.
+     */
+    @Nonnull
+    public LongSortedSet getUsers() {
+        return users.keySet();
+    }
+
     /**
      * Get the items rated by a particular user.
      * 
@@ -112,10 +222,111 @@ public class ItemItemBuildContext implements Serializable {
      */
     @Nonnull
     public LongSortedSet getUserItems(long user) {
-        LongSortedSet items = userItems.get(user);
-        if (items == null) {
-            items = LongSortedSets.EMPTY_SET;
+        int idx = users.tryGetIndex(user);
+        if (idx < 0) {
+            return LongSortedSets.EMPTY_SET;
+        } else {
+            return SortedKeyIndex.wrap(userItemIds, userOffsets[idx], userOffsets[idx+1]).keySet();
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (itemOffsets.length != items.size() + 1 || itemOffsets[items.size()] != ratingUsers.length
+                || ratingValues.length != ratingUsers.length) {
+            throw new InvalidObjectException("inconsistent item data");
+        }
+        if (userOffsets.length != users.size() + 1 || userOffsets[users.size()] != userItemIds.length) {
+            throw new InvalidObjectException("inconsistent user data");
+        }
+        makeVectors();
+    }
+
+    /**
+     * Write this build context to a packed binary file.  The file consists of a small header
+     * followed by the item IDs, item offsets, rating user IDs, rating values, user IDs, user offsets,
+     * and user item IDs, each as a flat array in native byte order.
+     *
+     * @param file The file to write.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void write(Path file) throws IOException {
+        try (StagedWrite stage = StagedWrite.begin(file)) {
+            try (FileChannel chan = FileChannel.open(stage.getStagingFile(),
+                                                     StandardOpenOption.CREATE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING,
+                                                     StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+                header.putInt(FILE_MAGIC)
+                      .putInt(FILE_VERSION)
+                      .putInt(items.size())
+                      .putInt(ratingUsers.length)
+                      .putInt(users.size())
+                      .putInt(userItemIds.length);
+                header.flip();
+                PackedArrayIO.writeFully(chan, header);
+
+                PackedArrayIO.writeLongs(chan, items.getKeyList().toLongArray());
+                PackedArrayIO.writeInts(chan, itemOffsets);
+                PackedArrayIO.writeLongs(chan, ratingUsers);
+                PackedArrayIO.writeDoubles(chan, ratingValues);
+                PackedArrayIO.writeLongs(chan, users.getKeyList().toLongArray());
+                PackedArrayIO.writeInts(chan, userOffsets);
+                PackedArrayIO.writeLongs(chan, userItemIds);
+            }
+            stage.commit();
+        }
+    }
+
+    /**
+     * Read a build context from a file written by {@link #write(Path)}.  The file is memory-mapped
+     * and its arrays are bulk-copied into the context, so loading is bounded by I/O bandwidth rather
+     * than object deserialization.
+     *
+     * @param file The file to read.
+     * @return The build context.
+     * @throws IOException if there is an error reading the file, or it is not a valid context file.
+     */
+    public static ItemItemBuildContext read(Path file) throws IOException {
+        try (FileChannel chan = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = PackedArrayIO.map(chan, 0, HEADER_SIZE);
+            if (header.getInt() != FILE_MAGIC) {
+                throw new IOException(file + ": not an item-item build context file");
+            }
+            int version = header.getInt();
+            if (version != FILE_VERSION) {
+                throw new IOException(file + ": unsupported build context version " + version);
+            }
+            int nitems = header.getInt();
+            int nratings = header.getInt();
+            int nusers = header.getInt();
+            int nuseritems = header.getInt();
+
+            long pos = HEADER_SIZE;
+            long[] itemIds = new long[nitems];
+            pos = PackedArrayIO.readLongs(chan, pos, itemIds);
+            int[] itemOffs = new int[nitems + 1];
+            pos = PackedArrayIO.readInts(chan, pos, itemOffs);
+            long[] rUsers = new long[nratings];
+            pos = PackedArrayIO.readLongs(chan, pos, rUsers);
+            double[] rValues = new double[nratings];
+            pos = PackedArrayIO.readDoubles(chan, pos, rValues);
+            long[] userIds = new long[nusers];
+            pos = PackedArrayIO.readLongs(chan, pos, userIds);
+            int[] userOffs = new int[nusers + 1];
+            pos = PackedArrayIO.readInts(chan, pos, userOffs);
+            long[] uItems = new long[nuseritems];
+            pos = PackedArrayIO.readLongs(chan, pos, uItems);
+            if (pos != chan.size()) {
+                throw new IOException(file + ": unexpected build context file size");
+            }
+
+            try {
+                return new ItemItemBuildContext(SortedKeyIndex.wrap(itemIds, nitems), itemOffs, rUsers, rValues,
+                                                SortedKeyIndex.wrap(userIds, nusers), userOffs, uItems);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ": inconsistent build context data", e);
+            }
         }
-        return items;
     }
 }
@@ -30,16 +30,20 @@ import org.lenskit.inject.Transient;
 import org.lenskit.knn.item.MinCommonUsers;
 import org.lenskit.transform.normalize.UserVectorNormalizer;
 import org.lenskit.util.IdBox;
-import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
 import org.lenskit.util.keys.SortedKeyIndex;
-import org.lenskit.util.math.Vectors;
+import org.lenskit.util.reflect.ClassQueries;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
 
 /**
  * Provider that sets up an {@link ItemItemBuildContext}.
@@ -55,12 +59,14 @@ public class ItemItemBuildContextProvider implements Provider<ItemItemBuildConte
     private final int minCommonUsers;
 
     /**
-     * Construct an item-item build context provider.
+     * Construct an item-item build context provider that prunes rarely-rated items.  Pruning saves
+     * memory, but the resulting context can only be shared by models with at least {@code minCU}
+     * minimum common users.
      *
      * @param rvd The rating vector DAO.
      * @param normalizer The user vector normalizer.
+     * @param minCU The minimum number of ratings an item must have to be retained.
      */
-    @Inject
     public ItemItemBuildContextProvider(@Transient RatingVectorPDAO rvd,
                                         @Transient UserVectorNormalizer normalizer,
                                         @MinCommonUsers int minCU) {
@@ -69,6 +75,15 @@ public class ItemItemBuildContextProvider implements Provider<ItemItemBuildConte
         minCommonUsers = minCU;
     }
 
+    /**
+     * Construct an item-item build context provider.  The context retains all rated items; it does
+     * not depend on {@link MinCommonUsers}, so one context can be shared by model variants with
+     * different minimum common user counts (the model provider applies that restriction itself).
+     *
+     * @param rvd The rating vector DAO.
+     * @param normalizer The user vector normalizer.
+     */
+    @Inject
     public ItemItemBuildContextProvider(@Transient RatingVectorPDAO rvd,
                                         @Transient UserVectorNormalizer normalizer) {
         this(rvd, normalizer, 1);
@@ -77,6 +92,12 @@ public class ItemItemBuildContextProvider implements Provider<ItemItemBuildConte
     /**
      * Constructs and returns a new ItemItemBuildContext.
      *
+     * <p>The build normalizes the user rating vectors (in parallel, if the normalizer is thread-safe),
+     * counts the ratings for each item, and then fills pre-sized packed arrays of item vectors
+     * directly from the normalized user vectors.  Items with fewer than
+     * {@link MinCommonUsers} ratings are dropped after the counting pass, so their vectors are
+     * never built.</p>
+     *
      * @return a new ItemItemBuildContext.
      */
     @Override
@@ -84,86 +105,161 @@ public class ItemItemBuildContextProvider implements Provider<ItemItemBuildConte
         logger.info("constructing build context");
         logger.debug("using normalizer {}", normalizer);
 
-        logger.debug("Building item data");
-        Long2ObjectMap<Long2DoubleMap> itemRatingData = new Long2ObjectOpenHashMap<>(1000);
-        Long2ObjectMap<LongSortedSet> userItems = new Long2ObjectOpenHashMap<>(1000);
-        buildItemRatings(itemRatingData, userItems);
-        int oldN = itemRatingData.size();
-        pruneItems(itemRatingData, userItems);
-        logger.info("retaining data for {} of {} items", itemRatingData.size(), oldN);
-
-        SortedKeyIndex items = SortedKeyIndex.fromCollection(itemRatingData.keySet());
-        final int n = items.size();
-        assert n == itemRatingData.size();
-        // finalize the item data into vectors
-        Long2DoubleSortedMap[] itemRatings = new Long2DoubleSortedMap[n];
-
-        for (int i = 0; i < n; i++) {
-            final long item = items.getKey(i);
-            Long2DoubleMap ratings = itemRatingData.get(item);
-            itemRatings[i] = LongUtils.frozenMap(ratings);
-            // release some memory
-            ratings.clear();
+        boolean parallel = ClassQueries.isThreadSafe(normalizer);
+        if (!parallel) {
+            logger.warn("normalizer {} is not thread-safe, disabling parallel build", normalizer);
         }
 
-        logger.debug("item data completed");
-        return new ItemItemBuildContext(items, itemRatings, userItems);
-    }
-
-    /**
-     * Transpose the user matrix so we have a matrix of item ids to ratings. Accumulate user item vectors into
-     * the candidate sets for each item
-     *  @param itemRatings    mapping from item ids to (userId: rating) maps (to be filled)
-     * @param userItems mapping of user IDs to rated item sets to be filled.
-     */
-    private void buildItemRatings(Long2ObjectMap<Long2DoubleMap> itemRatings,
-                                  Long2ObjectMap<LongSortedSet> userItems) {
-        // initialize the transposed array to collect item vector data
+        logger.debug("normalizing user vectors");
+        List<IdBox<Long2DoubleMap>> rawUsers = new ArrayList<>();
         try (ObjectStream<IdBox<Long2DoubleMap>> stream = rvDAO.streamUsers()) {
             for (IdBox<Long2DoubleMap> user : stream) {
-                long uid = user.getId();
-                Long2DoubleMap ratings = user.getValue();
-                Long2DoubleMap normed = normalizer.makeTransformation(uid, ratings).apply(ratings);
-                assert normed != null;
-
-                Iterator<Long2DoubleMap.Entry> iter = Vectors.fastEntryIterator(normed);
-                while (iter.hasNext()) {
-                    Long2DoubleMap.Entry rating = iter.next();
-                    final long item = rating.getLongKey();
-                    // get the item's rating accumulator
-                    Long2DoubleMap ivect = itemRatings.get(item);
-                    if (ivect == null) {
-                        ivect = new Long2DoubleOpenHashMap();
-                        itemRatings.put(item, ivect);
+                rawUsers.add(user);
+            }
+        }
+        final int nusers = rawUsers.size();
+        final long[] userIds = new long[nusers];
+        final Long2DoubleSortedArrayMap[] userVectors = normalizeUsers(rawUsers, userIds, parallel);
+        // release the raw vectors
+        rawUsers = null;
+
+        logger.debug("counting item ratings");
+        Long2IntOpenHashMap counts = indexRange(nusers, parallel).collect(
+                Long2IntOpenHashMap::new,
+                (acc, u) -> {
+                    LongIterator iter = userVectors[u].keySet().iterator();
+                    while (iter.hasNext()) {
+                        acc.addTo(iter.nextLong(), 1);
                     }
-                    ivect.put(uid, rating.getDoubleValue());
-                }
+                },
+                (a1, a2) -> {
+                    for (Long2IntMap.Entry e: Long2IntMaps.fastIterable(a2)) {
+                        a1.addTo(e.getLongKey(), e.getIntValue());
+                    }
+                });
 
-                // store the user's item set
-                // if the user only has 1 rating, they will never be for a neighborhood
-                if (normed.size() > 1) {
-                    userItems.put(uid, LongUtils.packedSet(normed.keySet()));
-                }
+        LongList retained = new LongArrayList(counts.size());
+        for (Long2IntMap.Entry e: Long2IntMaps.fastIterable(counts)) {
+            if (e.getIntValue() >= minCommonUsers) {
+                retained.add(e.getLongKey());
             }
         }
-    }
+        logger.info("retaining data for {} of {} items", retained.size(), counts.size());
 
-    private void pruneItems(Long2ObjectMap<Long2DoubleMap> itemRatingData, Long2ObjectMap<LongSortedSet> userItems) {
-        if (minCommonUsers <= 0) {
-            return;
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(retained);
+        final int n = items.size();
+        final int[] itemOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            itemOffsets[i+1] = itemOffsets[i] + counts.get(items.getKey(i));
         }
+        final long[] ratingUsers = new long[itemOffsets[n]];
+        final double[] ratingValues = new double[itemOffsets[n]];
+        counts = null;
+
+        logger.debug("filling {} item ratings", ratingUsers.length);
+        AtomicIntegerArray positions = new AtomicIntegerArray(n);
+        long[][] userItemArrays = new long[nusers][];
+        indexRange(nusers, parallel).forEach(u -> {
+            Long2DoubleSortedArrayMap vec = userVectors[u];
+            int size = vec.size();
+            long[] kept = new long[size];
+            int nkept = 0;
+            for (int j = 0; j < size; j++) {
+                long item = vec.getKeyByIndex(j);
+                int idx = items.tryGetIndex(item);
+                if (idx < 0) {
+                    continue;
+                }
+                int pos = itemOffsets[idx] + positions.getAndIncrement(idx);
+                ratingUsers[pos] = userIds[u];
+                ratingValues[pos] = vec.getValueByIndex(j);
+                kept[nkept++] = item;
+            }
+            // store the user's item set
+            // if the user only has 1 rating, they will never be for a neighborhood
+            if (size > 1) {
+                userItemArrays[u] = nkept < size ? Arrays.copyOf(kept, nkept) : kept;
+            }
+            userVectors[u] = null;
+        });
 
-        // copy items to array to all
-        long[] items = itemRatingData.keySet().toLongArray();
-        for (long item: items) {
-            Long2DoubleMap iv = itemRatingData.get(item);
-            if (iv.size() < minCommonUsers) {
-                itemRatingData.remove(item);
+        // sort each item's ratings by user; this does not touch the normalizer, so it is always safe to parallelize
+        indexRange(n, true).forEach(i -> {
+            assert positions.get(i) == itemOffsets[i+1] - itemOffsets[i];
+            sortSegment(ratingUsers, ratingValues, itemOffsets[i], itemOffsets[i+1]);
+        });
+
+        // pack the user item sets in user ID order
+        LongList usersWithItems = new LongArrayList();
+        for (int u = 0; u < nusers; u++) {
+            if (userItemArrays[u] != null) {
+                usersWithItems.add(userIds[u]);
+            }
+        }
+        SortedKeyIndex users = SortedKeyIndex.fromCollection(usersWithItems);
+        final int nu = users.size();
+        int[] userOffsets = new int[nu + 1];
+        for (int u = 0; u < nusers; u++) {
+            if (userItemArrays[u] != null) {
+                userOffsets[users.getIndex(userIds[u]) + 1] = userItemArrays[u].length;
+            }
+        }
+        for (int u = 0; u < nu; u++) {
+            userOffsets[u+1] += userOffsets[u];
+        }
+        long[] userItemIds = new long[userOffsets[nu]];
+        for (int u = 0; u < nusers; u++) {
+            long[] uitems = userItemArrays[u];
+            if (uitems != null) {
+                System.arraycopy(uitems, 0, userItemIds, userOffsets[users.getIndex(userIds[u])], uitems.length);
             }
         }
 
-        for (Long2ObjectMap.Entry<LongSortedSet> e: userItems.long2ObjectEntrySet()) {
-            e.setValue(LongUtils.setIntersect(e.getValue(), itemRatingData.keySet()));
+        logger.debug("item data completed");
+        return new ItemItemBuildContext(items, itemOffsets, ratingUsers, ratingValues,
+                                        users, userOffsets, userItemIds);
+    }
+    /**
+     * Normalize the user rating vectors.
+     *
+     * @param users The user rating vectors.
+     * @param userIds An array to receive the user IDs, in the same order as the returned vectors.
+     * @param parallel Whether to normalize users in parallel.
+     * @return The normalized user vectors.
+     */
+    private Long2DoubleSortedArrayMap[] normalizeUsers(List<IdBox<Long2DoubleMap>> users, long[] userIds,
+                                                      boolean parallel) {
+        Long2DoubleSortedArrayMap[] normed = new Long2DoubleSortedArrayMap[users.size()];
+        indexRange(users.size(), parallel).forEach(u -> {
+            IdBox<Long2DoubleMap> user = users.get(u);
+            Long2DoubleMap ratings = user.getValue();
+            Long2DoubleMap vec = normalizer.makeTransformation(user.getId(), ratings).apply(ratings);
+            assert vec != null;
+            userIds[u] = user.getId();
+            normed[u] = Long2DoubleSortedArrayMap.create(vec);
+        });
+        return normed;
+    }
+
+    /**
+     * Sort a segment of parallel user and value arrays by user ID.
+     */
+    private static void sortSegment(long[] keys, double[] values, int from, int to) {
+        it.unimi.dsi.fastutil.Arrays.quickSort(from, to, (i, j) -> Long.compare(keys[i], keys[j]), (i, j) -> {
+            long kt = keys[i];
+            keys[i] = keys[j];
+            keys[j] = kt;
+            double vt = values[i];
+            values[i] = values[j];
+            values[j] = vt;
+        });
+    }
+
+    private static IntStream indexRange(int n, boolean parallel) {
+        IntStream range = IntStream.range(0, n);
+        if (parallel) {
+            range = range.parallel();
         }
+        return range;
     }
 }
@@ -0,0 +1,286 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.*;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.util.ProgressLogger;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.math.Scalars;
+import org.lenskit.util.math.Vectors;
+import org.lenskit.util.reflect.ClassQueries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Build a truncated item-item model, using similarity upper bounds to skip pairs that cannot
+ * enter an item's top-{@link ModelSize} neighborhood.
+ *
+ * <p>For cosine similarity (an {@link ItemVectorSimilarity} over {@link CosineVectorSimilarity}),
+ * the dot product of two item vectors is bounded by the product of their norms and by each item's
+ * largest absolute rating times the other item's L1 norm.  This builder computes these bounds
+ * for every candidate neighbor of an item, visits candidates in decreasing order of bound, and stops
+ * as soon as the bound falls to the lowest similarity in the item's current top-N, as in all-pairs
+ * similarity search with thresholds.  Every skipped pair has a similarity no greater than the
+ * current N-th best, so the resulting neighborhoods contain the same similarities as those built by
+ * {@link ItemItemModelProvider} (items with tied similarities may be chosen differently).</p>
+ *
+ * <p>Each row is computed independently rather than exploiting similarity symmetry, since pruning
+ * depends on each row's own top-N.  If no model size is configured or the similarity function is
+ * not cosine, this falls back to {@link ItemItemModelProvider}.</p>
+ *
+ * @since 3.0
+ */
+public class PruningItemItemModelProvider implements Provider<ItemItemModel> {
+    private static final Logger logger = LoggerFactory.getLogger(PruningItemItemModelProvider.class);
+    /**
+     * Relative slack added to bounds to absorb floating-point error in similarity computations.
+     */
+    private static final double BOUND_SLACK = 1.0e-9;
+
+    private final ItemSimilarity itemSimilarity;
+    private final ItemItemBuildContext buildContext;
+    private final Threshold threshold;
+    private final NeighborIterationStrategy neighborStrategy;
+    private final int minCommonUsers;
+    private final int modelSize;
+
+    private final AtomicLong candidatePairs = new AtomicLong();
+    private final AtomicLong computedPairs = new AtomicLong();
+    private final AtomicLong prunedPairs = new AtomicLong();
+
+    @Inject
+    public PruningItemItemModelProvider(@Transient ItemSimilarity similarity,
+                                        @Transient ItemItemBuildContext context,
+                                        @Transient @ItemSimilarityThreshold Threshold thresh,
+                                        @Transient NeighborIterationStrategy nbrStrat,
+                                        @MinCommonUsers int minCU,
+                                        @ModelSize int size) {
+        itemSimilarity = similarity;
+        buildContext = context;
+        threshold = thresh;
+        neighborStrategy = nbrStrat;
+        minCommonUsers = minCU;
+        modelSize = size;
+    }
+
+    @Override
+    public SimilarityMatrixModel get() {
+        candidatePairs.set(0);
+        computedPairs.set(0);
+        prunedPairs.set(0);
+
+        CosineVectorSimilarity cosine = getCosineSimilarity();
+        if (modelSize <= 0 || cosine == null) {
+            logger.warn("pruned build requires a model size and cosine similarity, using standard build");
+            return new ItemItemModelProvider(itemSimilarity, buildContext, threshold, neighborStrategy,
+                                             minCommonUsers, modelSize).get();
+        }
+
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(buildContext.getItems());
+        final int nitems = items.size();
+        logger.info("building pruned item-item model for {} items with {} neighbors", nitems, modelSize);
+
+        ItemStats stats = new ItemStats(items);
+        double damping = cosine.getDampingFactor();
+
+        ProgressLogger progress = ProgressLogger.create(logger)
+                                                .setCount(nitems)
+                                                .setLabel("pruned item-item model build")
+                                                .setWindow(50)
+                                                .start();
+        IntStream indices = IntStream.range(0, nitems);
+        if (ClassQueries.isThreadSafe(itemSimilarity)) {
+            indices = indices.parallel();
+        } else {
+            logger.warn("similarity {} is not thread-safe, disabling parallel build", itemSimilarity);
+        }
+        Long2DoubleMap[] rows = new Long2DoubleMap[nitems];
+        indices.forEach(i -> {
+            if (stats.counts[i] >= minCommonUsers) {
+                rows[i] = makeSimilarityRow(items, stats, damping, i);
+            }
+            progress.advance();
+        });
+        progress.finish();
+
+        Long2ObjectMap<Long2DoubleMap> sims = new Long2ObjectOpenHashMap<>(nitems);
+        for (int i = 0; i < nitems; i++) {
+            if (rows[i] != null) {
+                sims.put(items.getKey(i), rows[i]);
+            }
+        }
+
+        logger.info("built model for {} items in {}", sims.size(), progress.elapsedTime());
+        logger.info("computed {} of {} candidate similarities, pruned {} by upper bound",
+                    computedPairs.get(), candidatePairs.get(), prunedPairs.get());
+        return new SimilarityMatrixModel(sims);
+    }
+
+    private Long2DoubleMap makeSimilarityRow(SortedKeyIndex items, ItemStats stats, double damping, int i1) {
+        long itemId1 = items.getKey(i1);
+        Long2DoubleSortedMap vec1 = buildContext.itemVector(itemId1);
+
+        // compute bounds for all candidates
+        LongArrayList candidates = new LongArrayList();
+        DoubleArrayList bounds = new DoubleArrayList();
+        LongIterator iter = neighborStrategy.neighborIterator(buildContext, itemId1, false);
+        while (iter.hasNext()) {
+            long itemId2 = iter.nextLong();
+            int i2 = items.tryGetIndex(itemId2);
+            if (i2 == i1 || i2 < 0 || stats.counts[i2] < minCommonUsers) {
+                continue;
+            }
+            candidates.add(itemId2);
+            bounds.add(stats.bound(i1, i2, damping));
+        }
+
+        long[] cands = candidates.elements();
+        double[] bnds = bounds.elements();
+        int ncands = candidates.size();
+        // sort candidates by decreasing bound
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, ncands, (a, b) -> Double.compare(bnds[b], bnds[a]), (a, b) -> {
+            long ct = cands[a];
+            cands[a] = cands[b];
+            cands[b] = ct;
+            double bt = bnds[a];
+            bnds[a] = bnds[b];
+            bnds[b] = bt;
+        });
+
+        TopNLong2DoubleAccumulator acc = new TopNLong2DoubleAccumulator(modelSize);
+        int ncomputed = 0;
+        for (int k = 0; k < ncands; k++) {
+            if (acc.size() >= modelSize && bnds[k] <= acc.getMinimumScore()) {
+                // no remaining candidate can beat the current top-N
+                break;
+            }
+            long itemId2 = cands[k];
+            Long2DoubleSortedMap vec2 = buildContext.itemVector(itemId2);
+            if (!LongUtils.hasNCommonItems(vec1.keySet(), vec2.keySet(), minCommonUsers)) {
+                continue;
+            }
+            ncomputed += 1;
+            double sim = itemSimilarity.similarity(itemId1, vec1, itemId2, vec2);
+            assert sim <= bnds[k] : "similarity exceeds upper bound";
+            if (threshold.retain(sim)) {
+                acc.put(itemId2, sim);
+            }
+        }
+
+        candidatePairs.addAndGet(ncands);
+        computedPairs.addAndGet(ncomputed);
+        prunedPairs.addAndGet(ncands - ncomputed);
+        return acc.finishMap();
+    }
+
+    private CosineVectorSimilarity getCosineSimilarity() {
+        if (itemSimilarity instanceof ItemVectorSimilarity) {
+            Object vsim = ((ItemVectorSimilarity) itemSimilarity).getDelegate();
+            if (vsim instanceof CosineVectorSimilarity) {
+                return (CosineVectorSimilarity) vsim;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of candidate item pairs considered by the last build.
+     * @return The number of candidate pairs.
+     */
+    public long getCandidatePairCount() {
+        return candidatePairs.get();
+    }
+
+    /**
+     * Get the number of item pairs whose similarity was computed by the last build.
+     * @return The number of computed pairs.
+     */
+    public long getComputedPairCount() {
+        return computedPairs.get();
+    }
+
+    /**
+     * Get the number of candidate item pairs skipped by the last build (by upper bound or
+     * insufficient common users).
+     * @return The number of pruned pairs.
+     */
+    public long getPrunedPairCount() {
+        return prunedPairs.get();
+    }
+
+    /**
+     * Per-item vector statistics used to bound cosine similarities.
+     */
+    private class ItemStats {
+        final int[] counts;
+        final double[] norms;
+        final double[] l1Norms;
+        final double[] maxAbs;
+
+        ItemStats(SortedKeyIndex items) {
+            int n = items.size();
+            counts = new int[n];
+            norms = new double[n];
+            l1Norms = new double[n];
+            maxAbs = new double[n];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                Long2DoubleSortedMap vec = buildContext.itemVector(items.getKey(i));
+                counts[i] = vec.size();
+                norms[i] = Vectors.euclideanNorm(vec);
+                l1Norms[i] = Vectors.sumAbs(vec);
+                double max = 0;
+                for (Long2DoubleMap.Entry e: Vectors.fastEntries(vec)) {
+                    max = Math.max(max, Math.abs(e.getDoubleValue()));
+                }
+                maxAbs[i] = max;
+            });
+        }
+
+        /**
+         * Compute an upper bound on the cosine similarity of two items.
+         */
+        double bound(int i1, int i2, double damping) {
+            double normProduct = norms[i1] * norms[i2];
+            double denom = normProduct + damping;
+            if (Scalars.isZero(denom)) {
+                return 0;
+            }
+            double dotBound = Math.min(normProduct,
+                                       Math.min(maxAbs[i1] * l1Norms[i2], maxAbs[i2] * l1Norms[i1]));
+            return dotBound / denom * (1 + BOUND_SLACK);
+        }
+    }
+}
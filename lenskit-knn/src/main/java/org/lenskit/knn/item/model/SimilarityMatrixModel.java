@@ -25,14 +25,13 @@
 package org.lenskit.knn.item.model;
 
 import com.google.common.collect.ImmutableList;
-import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
-import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
-import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import it.unimi.dsi.fastutil.longs.*;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.api.ResultList;
 import org.lenskit.inject.Shareable;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.math.Vectors;
 import org.lenskit.util.keys.SortedKeyIndex;
 
 import javax.annotation.Nonnull;
@@ -59,6 +58,7 @@ public class SimilarityMatrixModel implements Serializable, ItemItemModel {
     private final SortedKeyIndex itemDomain;
     private final ImmutableList<Long2DoubleMap> neighborhoods;
     private transient volatile String stringValue;
+    private transient volatile ReverseNeighborhoods reverseNeighborhoods;
 
     /**
      * Construct a new item-item model.
@@ -105,6 +105,38 @@ public class SimilarityMatrixModel implements Serializable, ItemItemModel {
         }
     }
 
+    /**
+     * Get the reverse neighbors of an item.  This is the corresponding <em>column</em> of the
+     * similarity matrix: the items that have {@code item} in their neighborhoods, mapped to the
+     * similarity with which they do so.
+     *
+     * <p>The reverse (transposed) view is computed from the neighborhoods on first use and cached
+     * for the life of the model.</p>
+     *
+     * @param item The item to get the reverse neighborhood for.
+     * @return The column of the similarity matrix. If the item does not appear in any neighborhood,
+     *         an empty vector is returned.
+     */
+    @Nonnull
+    public Long2DoubleMap getReverseNeighbors(long item) {
+        ReverseNeighborhoods rev = reverseNeighborhoods;
+        if (rev == null) {
+            synchronized (this) {
+                rev = reverseNeighborhoods;
+                if (rev == null) {
+                    rev = new ReverseNeighborhoods();
+                    reverseNeighborhoods = rev;
+                }
+            }
+        }
+        int idx = rev.items.tryGetIndex(item);
+        if (idx < 0) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        } else {
+            return rev.columns.get(idx);
+        }
+    }
+
     @Override
     public String toString() {
         String val = stringValue;
@@ -118,4 +150,36 @@ public class SimilarityMatrixModel implements Serializable, ItemItemModel {
         }
         return val;
     }
+
+    /**
+     * The transposed similarity matrix.
+     */
+    private class ReverseNeighborhoods {
+        private final SortedKeyIndex items;
+        private final ImmutableList<Long2DoubleMap> columns;
+
+        ReverseNeighborhoods() {
+            Long2ObjectMap<Long2DoubleMap> cols = new Long2ObjectOpenHashMap<>();
+            int n = itemDomain.size();
+            for (int i = 0; i < n; i++) {
+                long item = itemDomain.getKey(i);
+                for (Long2DoubleMap.Entry e: Vectors.fastEntries(neighborhoods.get(i))) {
+                    Long2DoubleMap col = cols.get(e.getLongKey());
+                    if (col == null) {
+                        col = new Long2DoubleOpenHashMap();
+                        cols.put(e.getLongKey(), col);
+                    }
+                    col.put(item, e.getDoubleValue());
+                }
+            }
+
+            items = SortedKeyIndex.fromCollection(cols.keySet());
+            ImmutableList.Builder<Long2DoubleMap> builder = ImmutableList.builder();
+            int ncols = items.size();
+            for (int i = 0; i < ncols; i++) {
+                builder.add(LongUtils.frozenMap(cols.get(items.getKey(i))));
+            }
+            columns = builder.build();
+        }
+    }
 }
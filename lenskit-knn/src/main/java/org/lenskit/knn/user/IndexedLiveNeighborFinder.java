@@ -0,0 +1,172 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.ThreadSafe;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.knn.ScoreNormalizer;
+import org.lenskit.knn.SimilarityNormalizer;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Neighborhood finder that searches live rating data through a shared {@link LiveRatingIndex}.
+ *
+ * <p>Where {@link LiveNeighborFinder} queries the data access object once per item to find candidate
+ * neighbors and then re-normalizes every candidate's ratings, this finder looks candidates up in an
+ * item &rarr; users index that is built once per recommender engine and shared by all its recommenders,
+ * and serves the query user and each candidate from the index's cached ratings and normalized vectors.
+ * Before each search, the index {@linkplain LiveRatingIndex#catchUp(DataAccessObject, RatingVectorPDAO)
+ * catches up} with this recommender's data, re-reading only the users whose ratings have changed, so
+ * candidates never need to be fetched from the {@link RatingVectorPDAO}.</p>
+ *
+ * @since 3.0
+ */
+@ThreadSafe
+public class IndexedLiveNeighborFinder implements NeighborFinder {
+    private static final Logger logger = LoggerFactory.getLogger(IndexedLiveNeighborFinder.class);
+
+    private final LiveRatingIndex index;
+    private final UserSimilarity similarity;
+    private final RatingVectorPDAO rvDAO;
+    private final DataAccessObject dao;
+    private final UserVectorNormalizer scoreNormalizer;
+    private final UserVectorNormalizer similarityNormalizer;
+    private final Threshold threshold;
+
+    /**
+     * Construct a new user neighborhood finder.
+     *
+     * @param idx    The live rating index.
+     * @param rvd    The user rating vector dAO.
+     * @param dao    The data access object.
+     * @param sim    The similarity function to use.
+     * @param scoreNorm The normalizer for normalizing user rating vectors.
+     * @param simNorm   The normalizer for computing similarity between user rating/preference vectors.
+     * @param thresh The threshold for user similarities.
+     */
+    @Inject
+    public IndexedLiveNeighborFinder(LiveRatingIndex idx,
+                                     RatingVectorPDAO rvd,
+                                     DataAccessObject dao,
+                                     UserSimilarity sim,
+                                     @ScoreNormalizer UserVectorNormalizer scoreNorm,
+                                     @SimilarityNormalizer UserVectorNormalizer simNorm,
+                                     @UserSimilarityThreshold Threshold thresh) {
+        index = idx;
+        similarity = sim;
+        scoreNormalizer = scoreNorm;
+        similarityNormalizer = simNorm;
+        rvDAO = rvd;
+        this.dao = dao;
+        threshold = thresh;
+
+        Preconditions.checkArgument(sim.isSparse(), "user similarity function is not sparse");
+    }
+
+    @Override
+    public Iterable<Neighbor> getCandidateNeighbors(final long user, LongSet items) {
+        index.catchUp(dao, rvDAO);
+        LiveRatingIndex.UserEntry entry = index.getUser(user);
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+
+        final Long2DoubleMap nratings = entry.getSimilarityVector(similarityNormalizer);
+        LongCollection qset = items;
+        if (nratings.size() < qset.size()) {
+            qset = nratings.keySet();
+        }
+        final LongSet candidates = new LongOpenHashSet();
+        for (LongIterator iter = qset.iterator(); iter.hasNext();) {
+            candidates.addAll(index.getItemUsers(iter.nextLong()));
+        }
+        candidates.remove(user);
+        logger.debug("found {} candidate neighbors for {}", candidates.size(), user);
+        return new Iterable<Neighbor>() {
+            @Override
+            public Iterator<Neighbor> iterator() {
+                return new NeighborIterator(user, nratings, candidates);
+            }
+        };
+    }
+
+    /**
+     * Check if a similarity is acceptable.
+     *
+     * @param sim The similarity to check.
+     * @return {@code false} if the similarity is NaN, infinite, or rejected by the threshold;
+     *         {@code true} otherwise.
+     */
+    private boolean acceptSimilarity(double sim) {
+        return !Double.isNaN(sim) && !Double.isInfinite(sim) && threshold.retain(sim);
+    }
+
+    private class NeighborIterator extends AbstractIterator<Neighbor> {
+        private final long user;
+        private final Long2DoubleMap userVector;
+        private final LongIterator neighborIter;
+
+        NeighborIterator(long uid, Long2DoubleMap uvec, LongSet nbrs) {
+            user = uid;
+            userVector = uvec;
+            neighborIter = nbrs.iterator();
+        }
+
+        @Override
+        protected Neighbor computeNext() {
+            while (neighborIter.hasNext()) {
+                final long neighbor = neighborIter.nextLong();
+                LiveRatingIndex.UserEntry entry = index.getUser(neighbor);
+                if (entry == null) {
+                    continue;
+                }
+                final double sim = similarity.similarity(user, userVector, neighbor,
+                                                         entry.getSimilarityVector(similarityNormalizer));
+                if (acceptSimilarity(sim)) {
+                    Long2DoubleMap ratings;
+                    if (scoreNormalizer.equals(similarityNormalizer)) {
+                        ratings = entry.getSimilarityVector(similarityNormalizer);
+                    } else {
+                        ratings = entry.getScoreVector(scoreNormalizer);
+                    }
+                    return new Neighbor(neighbor, ratings, sim);
+                }
+            }
+            // no neighbor found, done
+            return endOfData();
+        }
+    }
+}
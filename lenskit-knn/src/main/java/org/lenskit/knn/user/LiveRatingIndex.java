@@ -0,0 +1,296 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.ThreadSafe;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.lenskit.util.collections.LongUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Item &rarr; users index and user rating cache over live rating data, for {@link IndexedLiveNeighborFinder}.
+ *
+ * <p>The index is built once and shared by all recommenders built from the same engine.  Each recommender
+ * {@linkplain #catchUp(DataAccessObject, RatingVectorPDAO) catches it up} with its data access object before
+ * searching.  Data access objects are immutable snapshots, so if the DAO is the one the index was last synchronized
+ * with, nothing needs to be done.  Otherwise, the DAO's rating IDs are compared with the IDs already indexed, and only
+ * the users with added or removed ratings are re-read and re-indexed.  Rating entities are immutable, so a changed
+ * rating shows up as a removed ID and an added one.</p>
+ *
+ * <p>Each item's posting list is an immutable sorted set, rebuilt at most once per synchronization, so searches read
+ * it without locking.</p>
+ *
+ * @since 3.0
+ */
+@Shareable
+@ThreadSafe
+@DefaultProvider(LiveRatingIndex.Builder.class)
+public class LiveRatingIndex implements Serializable {
+    private static final long serialVersionUID = 2L;
+    private static final Logger logger = LoggerFactory.getLogger(LiveRatingIndex.class);
+
+    private final ConcurrentHashMap<Long, LongSortedSet> itemUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, UserEntry> userCache = new ConcurrentHashMap<>();
+    /**
+     * The user of each indexed rating ID.  Only accessed while synchronized.
+     */
+    private final Long2LongOpenHashMap ratingUsers = new Long2LongOpenHashMap();
+    private transient volatile WeakReference<DataAccessObject> syncedDAO;
+
+    /**
+     * Construct an empty index.  Use {@link Builder} to index rating data.
+     */
+    LiveRatingIndex() {
+    }
+
+    /**
+     * Get the users who have rated an item.
+     * @param item The item ID.
+     * @return The users indexed as having rated {@code item}.
+     */
+    public LongSortedSet getItemUsers(long item) {
+        LongSortedSet users = itemUsers.get(item);
+        return users != null ? users : LongSortedSets.EMPTY_SET;
+    }
+
+    /**
+     * Get the number of indexed users.
+     * @return The number of users in the index.
+     */
+    public int getUserCount() {
+        return userCache.size();
+    }
+
+    /**
+     * Get a user's indexed ratings.
+     * @param user The user ID.
+     * @return The user's entry, or {@code null} if the user has no indexed ratings.
+     */
+    @Nullable
+    UserEntry getUser(long user) {
+        return userCache.get(user);
+    }
+
+    /**
+     * Bring the index up to date with a data access object.
+     *
+     * @param dao The data access object.
+     * @param rvd The rating vector DAO over {@code dao}, used to re-read changed users.
+     */
+    public void catchUp(DataAccessObject dao, RatingVectorPDAO rvd) {
+        if (isSyncedWith(dao)) {
+            return;
+        }
+        synchronized (this) {
+            if (isSyncedWith(dao)) {
+                return;
+            }
+            LongSet ids = dao.getEntityIds(CommonTypes.RATING);
+            LongSet changed = new LongOpenHashSet();
+
+            for (LongIterator iter = ratingUsers.keySet().iterator(); iter.hasNext();) {
+                long id = iter.nextLong();
+                if (!ids.contains(id)) {
+                    changed.add(ratingUsers.get(id));
+                    iter.remove();
+                }
+            }
+            for (LongIterator iter = ids.iterator(); iter.hasNext();) {
+                long id = iter.nextLong();
+                if (!ratingUsers.containsKey(id)) {
+                    Entity rating = dao.lookupEntity(CommonTypes.RATING, id);
+                    if (rating != null) {
+                        long user = rating.getLong(CommonAttributes.USER_ID);
+                        ratingUsers.put(id, user);
+                        changed.add(user);
+                    }
+                }
+            }
+
+            logger.debug("re-indexing {} users with changed ratings", changed.size());
+            reindex(changed, rvd);
+            syncedDAO = new WeakReference<>(dao);
+        }
+    }
+
+    private boolean isSyncedWith(DataAccessObject dao) {
+        WeakReference<DataAccessObject> ref = syncedDAO;
+        return ref != null && ref.get() == dao;
+    }
+
+    /**
+     * Re-read a set of users and update their cache entries and posting lists.  Additions and removals are
+     * gathered per item first, so each affected posting list is rebuilt once.
+     */
+    private void reindex(LongSet users, RatingVectorPDAO rvd) {
+        Long2ObjectMap<LongList> added = new Long2ObjectOpenHashMap<>();
+        Long2ObjectMap<LongList> removed = new Long2ObjectOpenHashMap<>();
+        for (LongIterator uiter = users.iterator(); uiter.hasNext();) {
+            long user = uiter.nextLong();
+            Long2DoubleMap ratings = rvd.userRatingVector(user);
+            UserEntry entry = userCache.get(user);
+            LongSet oldItems = entry == null ? LongSets.EMPTY_SET : entry.ratings.keySet();
+            LongSet newItems = ratings.keySet();
+            for (LongIterator iter = oldItems.iterator(); iter.hasNext();) {
+                long item = iter.nextLong();
+                if (!newItems.contains(item)) {
+                    postings(removed, item).add(user);
+                }
+            }
+            for (LongIterator iter = newItems.iterator(); iter.hasNext();) {
+                long item = iter.nextLong();
+                if (!oldItems.contains(item)) {
+                    postings(added, item).add(user);
+                }
+            }
+
+            if (ratings.isEmpty()) {
+                userCache.remove(user);
+            } else if (entry == null || !entry.ratings.equals(ratings)) {
+                userCache.put(user, new UserEntry(user, LongUtils.frozenMap(ratings)));
+            }
+        }
+
+        LongSet items = new LongOpenHashSet(added.keySet());
+        items.addAll(removed.keySet());
+        for (LongIterator iter = items.iterator(); iter.hasNext();) {
+            long item = iter.nextLong();
+            LongSet us = new LongOpenHashSet(getItemUsers(item));
+            LongList rm = removed.get(item);
+            if (rm != null) {
+                us.removeAll(rm);
+            }
+            LongList add = added.get(item);
+            if (add != null) {
+                us.addAll(add);
+            }
+            if (us.isEmpty()) {
+                itemUsers.remove(item);
+            } else {
+                itemUsers.put(item, LongUtils.frozenSet(us));
+            }
+        }
+    }
+
+    private static LongList postings(Long2ObjectMap<LongList> map, long item) {
+        LongList list = map.get(item);
+        if (list == null) {
+            list = new LongArrayList();
+            map.put(item, list);
+        }
+        return list;
+    }
+
+    /**
+     * A user's indexed ratings, with lazily-computed normalized vectors.  Normalized vectors are cached along with
+     * the normalizer that produced them, so recommenders configured with different normalizers can share the index.
+     */
+    static class UserEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long user;
+        final Long2DoubleSortedMap ratings;
+        private transient volatile NormalizedVector similarityVector;
+        private transient volatile NormalizedVector scoreVector;
+
+        UserEntry(long uid, Long2DoubleSortedMap rs) {
+            user = uid;
+            ratings = rs;
+        }
+
+        Long2DoubleMap getSimilarityVector(UserVectorNormalizer norm) {
+            NormalizedVector vec = similarityVector;
+            if (vec == null || !vec.normalizer.equals(norm)) {
+                vec = new NormalizedVector(norm, norm.makeTransformation(user, ratings).apply(ratings));
+                similarityVector = vec;
+            }
+            return vec.vector;
+        }
+
+        Long2DoubleMap getScoreVector(UserVectorNormalizer norm) {
+            NormalizedVector vec = scoreVector;
+            if (vec == null || !vec.normalizer.equals(norm)) {
+                vec = new NormalizedVector(norm, norm.makeTransformation(user, ratings).apply(ratings));
+                scoreVector = vec;
+            }
+            return vec.vector;
+        }
+    }
+
+    private static class NormalizedVector {
+        final UserVectorNormalizer normalizer;
+        final Long2DoubleMap vector;
+
+        NormalizedVector(UserVectorNormalizer norm, Long2DoubleMap vec) {
+            normalizer = norm;
+            vector = vec;
+        }
+    }
+
+    /**
+     * Build a live rating index from the current rating data.
+     */
+    public static class Builder implements Provider<LiveRatingIndex> {
+        private final DataAccessObject dao;
+        private final RatingVectorPDAO rvDAO;
+
+        /**
+         * Construct the builder.
+         * @param dao The data access object.
+         * @param rvd The rating vector DAO.
+         */
+        @Inject
+        public Builder(@Transient DataAccessObject dao, @Transient RatingVectorPDAO rvd) {
+            this.dao = dao;
+            rvDAO = rvd;
+        }
+
+        @Override
+        public LiveRatingIndex get() {
+            logger.info("indexing live rating data");
+            LiveRatingIndex index = new LiveRatingIndex();
+            index.catchUp(dao, rvDAO);
+            logger.info("indexed {} users and {} items", index.userCache.size(), index.itemUsers.size());
+            return index;
+        }
+    }
+}
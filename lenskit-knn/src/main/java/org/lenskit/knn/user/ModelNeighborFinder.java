@@ -0,0 +1,73 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Neighbor finder that looks up precomputed neighborhoods from a {@link UserNeighborhoodModel},
+ * falling back to a {@link SnapshotNeighborFinder} search over the model's snapshot for users who
+ * were not present when the model was built.
+ *
+ * <p>This trades model build time for predictable request latency.  Neighborhoods reflect the
+ * data at build time; ratings added since then are not considered for users in the model.</p>
+ *
+ * @since 3.0
+ */
+@ThreadSafe
+public class ModelNeighborFinder implements NeighborFinder {
+    private static final Logger logger = LoggerFactory.getLogger(ModelNeighborFinder.class);
+
+    private final UserNeighborhoodModel model;
+    private final SnapshotNeighborFinder fallback;
+
+    /**
+     * Construct a new model neighbor finder.
+     *
+     * @param model The neighborhood model.
+     * @param fallback The neighbor finder to use for users not in the model.
+     */
+    @Inject
+    public ModelNeighborFinder(UserNeighborhoodModel model, SnapshotNeighborFinder fallback) {
+        this.model = model;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Iterable<Neighbor> getCandidateNeighbors(long user, LongSet items) {
+        List<Neighbor> neighbors = model.getNeighbors(user);
+        if (neighbors == null) {
+            logger.debug("user {} not in neighborhood model, searching snapshot", user);
+            return fallback.getCandidateNeighbors(user, items);
+        }
+        return neighbors;
+    }
+}
@@ -25,11 +25,15 @@
 package org.lenskit.knn.user;
 
 import com.google.common.collect.AbstractIterator;
+import it.unimi.dsi.fastutil.ints.*;
 import it.unimi.dsi.fastutil.longs.*;
 import org.grouplens.lenskit.transform.threshold.Threshold;
 import org.lenskit.data.ratings.RatingVectorPDAO;
 import org.lenskit.knn.SimilarityNormalizer;
 import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+import org.lenskit.util.math.Scalars;
+import org.lenskit.util.math.Vectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,10 +41,18 @@ import net.jcip.annotations.ThreadSafe;
 import javax.inject.Inject;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A neighborhood finder that has a snapshot of the rating data for efficiency.
  *
+ * <p>If a {@link CandidateNeighborCount} is configured, the finder does not compute similarities for
+ * every candidate.  Instead, it accumulates the dot products of the user's vector with all candidate
+ * vectors term-at-a-time through the snapshot's item-user postings, ranks candidates by the resulting
+ * cosine of the similarity-normalized vectors (an upper bound on damped cosine similarity, and a
+ * proxy for other similarity functions), and computes exact similarities only for the top
+ * candidates, in decreasing order of bound.</p>
+ *
  * @since 2.1
  */
 @ThreadSafe
@@ -52,18 +64,35 @@ public class SnapshotNeighborFinder implements NeighborFinder {
     private final RatingVectorPDAO rvDAO;
     private final UserVectorNormalizer similarityNormalizer;
     private final Threshold threshold;
+    private final int candidateCount;
+
+    private final AtomicLong candidatesFound = new AtomicLong();
+    private final AtomicLong candidatesEvaluated = new AtomicLong();
+
+    /**
+     * Construct a snapshot neighbor finder that scores all candidate neighbors.
+     */
+    public SnapshotNeighborFinder(UserSnapshot snap,
+                                  UserSimilarity sim,
+                                  RatingVectorPDAO rvd,
+                                  UserVectorNormalizer simNorm,
+                                  Threshold thresh) {
+        this(snap, sim, rvd, simNorm, thresh, 0);
+    }
 
     @Inject
     public SnapshotNeighborFinder(UserSnapshot snap,
                                   UserSimilarity sim,
                                   RatingVectorPDAO rvd,
                                   @SimilarityNormalizer UserVectorNormalizer simNorm,
-                                  @UserSimilarityThreshold Threshold thresh) {
+                                  @UserSimilarityThreshold Threshold thresh,
+                                  @CandidateNeighborCount int ncands) {
         snapshot = snap;
         similarity = sim;
         rvDAO = rvd;
         similarityNormalizer = simNorm;
         threshold = thresh;
+        candidateCount = ncands;
     }
 
     @Override
@@ -81,24 +110,76 @@ public class SnapshotNeighborFinder implements NeighborFinder {
         if (normed.size() < qset.size()) {
             qset = normed.keySet();
         }
-        final LongSet candidates = new LongOpenHashSet();
+        final IntSet candidates = new IntOpenHashSet();
         for (LongIterator iter = qset.iterator(); iter.hasNext();) {
             final long item = iter.nextLong();
-            LongSet users = snapshot.getItemUsers(item);
+            IntList users = snapshot.getItemUserIndices(item);
             if (users != null) {
                 candidates.addAll(users);
             }
         }
-        candidates.remove(user);
+        int uidx = snapshot.getUserIndex(user);
+        if (uidx >= 0) {
+            candidates.remove(uidx);
+        }
         logger.debug("Found {} candidate neighbors for user {}", candidates.size(), user);
+        candidatesFound.addAndGet(candidates.size());
+
+        final IntCollection selected;
+        if (candidateCount > 0 && candidates.size() > candidateCount) {
+            selected = selectCandidates(normed, candidates);
+            logger.debug("selected {} of {} candidates for user {}", selected.size(), candidates.size(), user);
+        } else {
+            selected = candidates;
+        }
         return new Iterable<Neighbor>() {
             @Override
             public Iterator<Neighbor> iterator() {
-                return new NeighborIterator(user, normed, candidates);
+                return new NeighborIterator(user, normed, selected);
             }
         };
     }
 
+    /**
+     * Select the top candidates by cosine bound.
+     *
+     * @param normed The user's normalized vector.
+     * @param candidates The indices of the candidate users.
+     * @return The indices of the {@link #candidateCount} best candidates, in decreasing order of bound.
+     */
+    private IntList selectCandidates(Long2DoubleMap normed, IntSet candidates) {
+        Int2DoubleMap dots = snapshot.getDotProducts(normed);
+        double norm = Vectors.euclideanNorm(normed);
+        TopNLong2DoubleAccumulator accum = new TopNLong2DoubleAccumulator(candidateCount);
+        for (IntIterator iter = candidates.iterator(); iter.hasNext();) {
+            int cand = iter.nextInt();
+            double denom = norm * snapshot.getNormalizedUserNormAt(cand);
+            accum.put(cand, Scalars.isZero(denom) ? 0 : dots.get(cand) / denom);
+        }
+        LongList best = accum.finishList();
+        IntList result = new IntArrayList(best.size());
+        for (LongIterator iter = best.iterator(); iter.hasNext();) {
+            result.add((int) iter.nextLong());
+        }
+        return result;
+    }
+
+    /**
+     * Get the total number of candidate neighbors found by this finder.
+     * @return The number of candidates found across all queries.
+     */
+    public long getCandidatesFound() {
+        return candidatesFound.get();
+    }
+
+    /**
+     * Get the total number of candidate neighbors whose exact similarity has been computed.
+     * @return The number of candidates evaluated across all queries.
+     */
+    public long getCandidatesEvaluated() {
+        return candidatesEvaluated.get();
+    }
+
     /**
      * Check if a similarity is acceptable.
      *
@@ -113,9 +194,9 @@ public class SnapshotNeighborFinder implements NeighborFinder {
     private class NeighborIterator extends AbstractIterator<Neighbor> {
         private final long user;
         private final Long2DoubleMap userVector;
-        private final LongIterator neighborIter;
+        private final IntIterator neighborIter;
 
-        NeighborIterator(long uid, Long2DoubleMap uvec, LongSet nbrs) {
+        NeighborIterator(long uid, Long2DoubleMap uvec, IntCollection nbrs) {
             user = uid;
             userVector = uvec;
             neighborIter = nbrs.iterator();
@@ -124,11 +205,13 @@ public class SnapshotNeighborFinder implements NeighborFinder {
         @Override
         protected Neighbor computeNext() {
             while (neighborIter.hasNext()) {
-                final long neighbor = neighborIter.nextLong();
-                Long2DoubleMap vector = snapshot.getNormalizedUserVector(neighbor);
+                final int nidx = neighborIter.nextInt();
+                final long neighbor = snapshot.getUserId(nidx);
+                Long2DoubleMap vector = snapshot.getNormalizedUserVectorAt(nidx);
+                candidatesEvaluated.incrementAndGet();
                 double sim = similarity.similarity(user, userVector, neighbor, vector);
                 if (acceptSimilarity(sim)) {
-                    return new Neighbor(neighbor, snapshot.getUserVector(neighbor), sim);
+                    return new Neighbor(neighbor, snapshot.getUserVectorAt(nidx), sim);
                 }
 
             }
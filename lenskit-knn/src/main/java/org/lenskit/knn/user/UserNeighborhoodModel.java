@@ -0,0 +1,123 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.Immutable;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precomputed user neighborhoods, used by {@link ModelNeighborFinder}.  The model stores each
+ * snapshot user's most similar neighbors in packed form (one offset per user, with neighbor indices
+ * and similarities in decreasing order of similarity), and retains the {@link UserSnapshot} it was
+ * built from to provide neighbor rating vectors.
+ *
+ * @since 3.0
+ * @see UserNeighborhoodModelProvider
+ */
+@Shareable
+@Immutable
+@DefaultProvider(UserNeighborhoodModelProvider.class)
+public class UserNeighborhoodModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final UserSnapshot snapshot;
+    private final int[] offsets;
+    private final int[] neighbors;
+    private final double[] similarities;
+
+    /**
+     * Construct a user neighborhood model.  The arrays are used as-is, not copied.
+     *
+     * @param snap The user snapshot.
+     * @param offs The start of each snapshot user's neighbors, followed by the total number of neighbors.
+     * @param nbrs The snapshot indices of each user's neighbors.
+     * @param sims The neighbor similarities, decreasing within each user.
+     */
+    UserNeighborhoodModel(UserSnapshot snap, int[] offs, int[] nbrs, double[] sims) {
+        Preconditions.checkArgument(offs.length == snap.getUserCount() + 1, "offset count mismatch");
+        Preconditions.checkArgument(offs[snap.getUserCount()] == nbrs.length, "neighbor count mismatch");
+        Preconditions.checkArgument(sims.length == nbrs.length, "similarity count mismatch");
+        snapshot = snap;
+        offsets = offs;
+        neighbors = nbrs;
+        similarities = sims;
+    }
+
+    /**
+     * Get the snapshot this model was built from.
+     * @return The user snapshot.
+     */
+    public UserSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Query whether a user has a precomputed neighborhood.
+     * @param user The user ID.
+     * @return {@code true} if the user was in the data when the model was built.
+     */
+    public boolean hasUser(long user) {
+        return snapshot.getUserIndex(user) >= 0;
+    }
+
+    /**
+     * Get the precomputed neighbors of a user.
+     *
+     * @param user The user ID.
+     * @return The user's neighbors in decreasing order of similarity, with score-normalized rating
+     *         vectors; or {@code null} if the user is not in the model.
+     */
+    @Nullable
+    public List<Neighbor> getNeighbors(long user) {
+        int idx = snapshot.getUserIndex(user);
+        if (idx < 0) {
+            return null;
+        }
+        List<Neighbor> result = new ArrayList<>(offsets[idx + 1] - offsets[idx]);
+        for (int j = offsets[idx]; j < offsets[idx + 1]; j++) {
+            int nbr = neighbors[j];
+            result.add(new Neighbor(snapshot.getUserId(nbr), snapshot.getUserVectorAt(nbr), similarities[j]));
+        }
+        return result;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (offsets.length != snapshot.getUserCount() + 1 || offsets[snapshot.getUserCount()] != neighbors.length
+                || similarities.length != neighbors.length) {
+            throw new InvalidObjectException("inconsistent neighborhood data");
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.ProgressLogger;
+import org.lenskit.util.collections.Long2DoubleAccumulator;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+import org.lenskit.util.collections.UnlimitedLong2DoubleAccumulator;
+import org.lenskit.util.reflect.ClassQueries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.stream.IntStream;
+
+/**
+ * Build a {@link UserNeighborhoodModel} by finding each user's most similar neighbors in the user
+ * snapshot.  Users are processed in parallel if the similarity function is thread-safe.
+ *
+ * @since 3.0
+ */
+public class UserNeighborhoodModelProvider implements Provider<UserNeighborhoodModel> {
+    private static final Logger logger = LoggerFactory.getLogger(UserNeighborhoodModelProvider.class);
+
+    private final UserSnapshot snapshot;
+    private final UserSimilarity similarity;
+    private final Threshold threshold;
+    private final int modelSize;
+
+    @Inject
+    public UserNeighborhoodModelProvider(UserSnapshot snap,
+                                         @Transient UserSimilarity sim,
+                                         @Transient @UserSimilarityThreshold Threshold thresh,
+                                         @NeighborhoodModelSize int size) {
+        snapshot = snap;
+        similarity = sim;
+        threshold = thresh;
+        modelSize = size;
+    }
+
+    @Override
+    public UserNeighborhoodModel get() {
+        final int nusers = snapshot.getUserCount();
+        logger.info("building neighborhood model for {} users", nusers);
+
+        ProgressLogger progress = ProgressLogger.create(logger)
+                                                .setCount(nusers)
+                                                .setLabel("user neighborhood model build")
+                                                .setWindow(50)
+                                                .start();
+        IntStream indices = IntStream.range(0, nusers);
+        if (ClassQueries.isThreadSafe(similarity)) {
+            indices = indices.parallel();
+        } else {
+            logger.warn("similarity {} is not thread-safe, disabling parallel build", similarity);
+        }
+        int[][] rowNeighbors = new int[nusers][];
+        double[][] rowSims = new double[nusers][];
+        indices.forEach(u -> {
+            Long2DoubleMap row = findNeighbors(u);
+            long[] sorted = row.keySet().toLongArray();
+            LongArrays.quickSort(sorted, (a, b) -> Double.compare(row.get(b), row.get(a)));
+            int n = sorted.length;
+            int[] nbrs = new int[n];
+            double[] sims = new double[n];
+            for (int j = 0; j < n; j++) {
+                long nbr = sorted[j];
+                nbrs[j] = (int) nbr;
+                sims[j] = row.get(nbr);
+            }
+            rowNeighbors[u] = nbrs;
+            rowSims[u] = sims;
+            progress.advance();
+        });
+        progress.finish();
+
+        int[] offsets = new int[nusers + 1];
+        for (int u = 0; u < nusers; u++) {
+            offsets[u + 1] = offsets[u] + rowNeighbors[u].length;
+        }
+        int[] neighbors = new int[offsets[nusers]];
+        double[] similarities = new double[offsets[nusers]];
+        for (int u = 0; u < nusers; u++) {
+            System.arraycopy(rowNeighbors[u], 0, neighbors, offsets[u], rowNeighbors[u].length);
+            System.arraycopy(rowSims[u], 0, similarities, offsets[u], rowSims[u].length);
+        }
+        logger.info("built neighborhood model with {} neighbors for {} users in {}",
+                    neighbors.length, nusers, progress.elapsedTime());
+        return new UserNeighborhoodModel(snapshot, offsets, neighbors, similarities);
+    }
+
+    /**
+     * Find the neighbors of a user.
+     * @param u The user's snapshot index.
+     * @return A map of neighbor indices to similarities.
+     */
+    private Long2DoubleMap findNeighbors(int u) {
+        long user = snapshot.getUserId(u);
+        Long2DoubleMap uvec = snapshot.getNormalizedUserVectorAt(u);
+        IntSet candidates = new IntOpenHashSet();
+        for (LongIterator iter = uvec.keySet().iterator(); iter.hasNext();) {
+            IntList users = snapshot.getItemUserIndices(iter.nextLong());
+            if (users != null) {
+                candidates.addAll(users);
+            }
+        }
+        candidates.remove(u);
+
+        Long2DoubleAccumulator accum;
+        if (modelSize > 0) {
+            accum = new TopNLong2DoubleAccumulator(modelSize);
+        } else {
+            accum = new UnlimitedLong2DoubleAccumulator();
+        }
+        for (IntIterator iter = candidates.iterator(); iter.hasNext();) {
+            int cand = iter.nextInt();
+            double sim = similarity.similarity(user, uvec, snapshot.getUserId(cand),
+                                               snapshot.getNormalizedUserVectorAt(cand));
+            if (!Double.isNaN(sim) && !Double.isInfinite(sim) && threshold.retain(sim)) {
+                accum.put(cand, sim);
+            }
+        }
+        return accum.finishMap();
+    }
+}
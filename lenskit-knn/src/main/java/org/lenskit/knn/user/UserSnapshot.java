@@ -25,8 +25,9 @@
 package org.lenskit.knn.user;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
+import it.unimi.dsi.fastutil.ints.*;
 import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.ThreadSafe;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.data.ratings.RatingVectorPDAO;
 import org.lenskit.inject.Shareable;
@@ -37,16 +38,42 @@ import org.lenskit.transform.normalize.UserVectorNormalizer;
 import org.lenskit.util.IdBox;
 import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.PackedArrayIO;
+import org.lenskit.util.io.StagedWrite;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
 import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.math.Vectors;
 
-import net.jcip.annotations.ThreadSafe;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Provider;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * User snapshot used by {@link SnapshotNeighborFinder}.
+ *
+ * <p>The snapshot is stored in packed form: user rating vectors are rows of a compressed sparse row
+ * matrix (a single item ID array with one offset per user), with score-normalized and
+ * similarity-normalized values stored alongside the item IDs.  The item &rarr; user index is the
+ * corresponding compressed sparse column structure, holding user <em>indices</em> rather than IDs,
+ * with single-precision posting values (they are only used to rank candidates).  This keeps the snapshot to a handful of primitive arrays
+ * regardless of the number of users, which makes it compact in memory and fast to serialize; it can
+ * also be written to and read from a flat binary file with {@link #write(Path)} and
+ * {@link #read(Path)}.</p>
+ *
+ * <p>User vectors are returned as zero-copy maps over rows of the packed arrays.  Clients that process
+ * many users, such as {@link SnapshotNeighborFinder}, should work with user indices
+ * ({@link #getItemUserIndices(long)}, {@link #getNormalizedUserVectorAt(int)}) to avoid repeated
+ * ID lookups.</p>
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  * @since 2.1
  */
@@ -54,28 +81,101 @@ import java.util.List;
 @ThreadSafe
 @DefaultProvider(UserSnapshot.Builder.class)
 public class UserSnapshot implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 4L;
+    /**
+     * Magic number identifying packed user snapshot files ('LKUS').
+     */
+    private static final int FILE_MAGIC = 0x4C4B5553;
+    private static final int FILE_VERSION = 3;
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+
     private final SortedKeyIndex users;
-    private final List<Long2DoubleMap> vectors;
-    private final List<Long2DoubleMap> normedVectors;
-    private final Long2ObjectMap<LongSortedSet> itemUserSets;
+    private final int[] userOffsets;
+    private final long[] userItems;
+    private final double[] scoreValues;
+    private final double[] similarityValues;
+
+    private final SortedKeyIndex items;
+    private final int[] itemOffsets;
+    private final int[] itemUsers;
+    private final float[] itemValues;
+
+    private transient double[] similarityNorms;
 
     /**
-     * Construct a user snapshot.
+     * Construct a user snapshot from packed arrays.  The arrays are used as-is, not copied.
+     *
      * @param us The set of users.
-     * @param vs The list of raw user vectors.
-     * @param nvs The list of normalized user vectors.
+     * @param uOffs The start of each user's row in {@code uItems} and the value arrays, followed by
+     *              the total number of ratings.
+     * @param uItems The item IDs of each user's ratings, sorted within each user.
+     * @param scoreVs The score-normalized rating values.
+     * @param simVs The similarity-normalized rating values.
+     * @param is The set of items.
+     * @param iOffs The start of each item's postings in {@code iUsers}, followed by the total number of
+     *              ratings.
+     * @param iUsers The indices (in {@code us}) of each item's users, ascending within each item.
+     * @param iValues The similarity-normalized rating values, in item-user posting order.
      */
-    UserSnapshot(SortedKeyIndex us, List<Long2DoubleMap> vs, List<Long2DoubleMap> nvs,
-                 Long2ObjectMap<LongSortedSet> iuSets) {
-        Preconditions.checkArgument(vs.size() == us.size(),
-                                    "incorrectly sized vector list");
-        Preconditions.checkArgument(nvs.size() == us.size(),
-                                    "incorrectly sized normalized vector list");
+    UserSnapshot(SortedKeyIndex us, int[] uOffs, long[] uItems, double[] scoreVs, double[] simVs,
+                 SortedKeyIndex is, int[] iOffs, int[] iUsers, float[] iValues) {
+        Preconditions.checkArgument(uOffs.length == us.size() + 1, "user offset count mismatch");
+        Preconditions.checkArgument(uOffs[us.size()] == uItems.length, "rating count mismatch");
+        Preconditions.checkArgument(scoreVs.length == uItems.length, "incorrectly sized score value array");
+        Preconditions.checkArgument(simVs.length == uItems.length, "incorrectly sized normalized value array");
+        Preconditions.checkArgument(iOffs.length == is.size() + 1, "item offset count mismatch");
+        Preconditions.checkArgument(iOffs[is.size()] == iUsers.length, "posting count mismatch");
+        Preconditions.checkArgument(iUsers.length == uItems.length, "posting and rating counts differ");
+        Preconditions.checkArgument(iValues.length == iUsers.length, "incorrectly sized posting value array");
         users = us;
-        vectors = ImmutableList.copyOf(vs);
-        normedVectors = ImmutableList.copyOf(nvs);
-        itemUserSets = iuSets;
+        userOffsets = uOffs;
+        userItems = uItems;
+        scoreValues = scoreVs;
+        similarityValues = simVs;
+        items = is;
+        itemOffsets = iOffs;
+        itemUsers = iUsers;
+        itemValues = iValues;
+        computeNorms();
+    }
+
+    private void computeNorms() {
+        int n = users.size();
+        similarityNorms = new double[n];
+        for (int u = 0; u < n; u++) {
+            double ssq = 0;
+            for (int j = userOffsets[u]; j < userOffsets[u + 1]; j++) {
+                double v = similarityValues[j];
+                ssq += v * v;
+            }
+            similarityNorms[u] = Math.sqrt(ssq);
+        }
+    }
+
+    /**
+     * Get the number of users in the snapshot.
+     * @return The number of users.
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Get the index of a user.
+     * @param user The user ID.
+     * @return The user's index, or a negative value if the user is not in the snapshot.
+     */
+    public int getUserIndex(long user) {
+        return users.tryGetIndex(user);
+    }
+
+    /**
+     * Get the ID of the user at an index.
+     * @param idx The user index.
+     * @return The user ID.
+     */
+    public long getUserId(int idx) {
+        return users.getKey(idx);
     }
 
     /**
@@ -86,7 +186,7 @@ public class UserSnapshot implements Serializable {
     public Long2DoubleMap getUserVector(long user) {
         int idx = users.tryGetIndex(user);
         Preconditions.checkArgument(idx >= 0, "invalid user " + user);
-        return vectors.get(idx);
+        return getUserVectorAt(idx);
     }
 
     /**
@@ -97,11 +197,205 @@ public class UserSnapshot implements Serializable {
     public Long2DoubleMap getNormalizedUserVector(long user) {
         int idx = users.tryGetIndex(user);
         Preconditions.checkArgument(idx >= 0, "invalid user " + user);
-        return normedVectors.get(idx);
+        return getNormalizedUserVectorAt(idx);
+    }
+
+    /**
+     * Get the score-normalized vector of the user at an index.  The vector is a view of the snapshot's
+     * packed arrays; nothing is copied.
+     * @param idx The user index.
+     * @return The normalized user rating vector (with {@link ScoreNormalizer}).
+     */
+    public Long2DoubleSortedMap getUserVectorAt(int idx) {
+        return makeVector(idx, scoreValues);
     }
 
+    /**
+     * Get the similarity-normalized vector of the user at an index.  The vector is a view of the
+     * snapshot's packed arrays; nothing is copied.
+     * @param idx The user index.
+     * @return The normalized user rating vector (with {@link SimilarityNormalizer}).
+     */
+    public Long2DoubleSortedMap getNormalizedUserVectorAt(int idx) {
+        return makeVector(idx, similarityValues);
+    }
+
+    private Long2DoubleSortedMap makeVector(int idx, double[] values) {
+        // the row's key index uses positions in the full arrays, so it lines up with the value array
+        SortedKeyIndex keys = SortedKeyIndex.wrap(userItems, userOffsets[idx], userOffsets[idx + 1]);
+        return Long2DoubleSortedArrayMap.wrap(keys, values);
+    }
+
+    /**
+     * Get the users who have rated an item.
+     * @param item The item ID.
+     * @return The IDs of the users who have rated the item, or {@code null} if the item is unknown.
+     */
+    @Nullable
     public LongSet getItemUsers(long item) {
-        return itemUserSets.get(item);
+        IntList idxes = getItemUserIndices(item);
+        if (idxes == null) {
+            return null;
+        }
+        long[] ids = new long[idxes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = users.getKey(idxes.getInt(i));
+        }
+        // user indices are ascending, so the IDs are sorted
+        return SortedKeyIndex.wrap(ids, ids.length).keySet();
+    }
+
+    /**
+     * Get the indices of the users who have rated an item.
+     * @param item The item ID.
+     * @return The indices of the users who have rated the item, in ascending order, or {@code null}
+     *         if the item is unknown.
+     */
+    @Nullable
+    public IntList getItemUserIndices(long item) {
+        int idx = items.tryGetIndex(item);
+        if (idx < 0) {
+            return null;
+        }
+        return IntLists.unmodifiable(IntArrayList.wrap(itemUsers)
+                                                 .subList(itemOffsets[idx], itemOffsets[idx + 1]));
+    }
+
+    /**
+     * Get the Euclidean norm of the similarity-normalized vector of the user at an index.
+     * @param idx The user index.
+     * @return The norm of the user's similarity-normalized vector.
+     */
+    public double getNormalizedUserNormAt(int idx) {
+        return similarityNorms[idx];
+    }
+
+    /**
+     * Compute the dot product of a vector with the similarity-normalized vector of every user who
+     * shares an item with it.  This works term-at-a-time through the item-user postings, so its cost
+     * is proportional to the total popularity of the vector's items rather than to the number of users.
+     *
+     * @param vector The vector (typically a similarity-normalized user vector).
+     * @return A map of user indices to dot products.  Users sharing no items with {@code vector} are
+     *         absent, and the map's default value is 0.
+     */
+    public Int2DoubleMap getDotProducts(Long2DoubleMap vector) {
+        Int2DoubleOpenHashMap dots = new Int2DoubleOpenHashMap();
+        for (Long2DoubleMap.Entry e: Vectors.fastEntries(vector)) {
+            int idx = items.tryGetIndex(e.getLongKey());
+            if (idx < 0) {
+                continue;
+            }
+            double x = e.getDoubleValue();
+            for (int j = itemOffsets[idx]; j < itemOffsets[idx + 1]; j++) {
+                dots.addTo(itemUsers[j], x * itemValues[j]);
+            }
+        }
+        return dots;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (userOffsets.length != users.size() + 1 || userOffsets[users.size()] != userItems.length
+                || scoreValues.length != userItems.length || similarityValues.length != userItems.length) {
+            throw new InvalidObjectException("inconsistent user data");
+        }
+        if (itemOffsets.length != items.size() + 1 || itemOffsets[items.size()] != itemUsers.length
+                || itemUsers.length != userItems.length || itemValues.length != itemUsers.length) {
+            throw new InvalidObjectException("inconsistent item data");
+        }
+        computeNorms();
+    }
+
+    /**
+     * Write this snapshot to a packed binary file.  The file consists of a small header followed by
+     * the user IDs, user offsets, rating item IDs, score values, similarity values, item IDs, item
+     * offsets, item posting user indices, and item posting values, each as a flat array in native byte order.
+     *
+     * @param file The file to write.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void write(Path file) throws IOException {
+        try (StagedWrite stage = StagedWrite.begin(file)) {
+            try (FileChannel chan = FileChannel.open(stage.getStagingFile(),
+                                                     StandardOpenOption.CREATE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING,
+                                                     StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+                header.putInt(FILE_MAGIC)
+                      .putInt(FILE_VERSION)
+                      .putInt(users.size())
+                      .putInt(items.size())
+                      .putInt(userItems.length);
+                header.flip();
+                PackedArrayIO.writeFully(chan, header);
+
+                PackedArrayIO.writeLongs(chan, users.getKeyList().toLongArray());
+                PackedArrayIO.writeInts(chan, userOffsets);
+                PackedArrayIO.writeLongs(chan, userItems);
+                PackedArrayIO.writeDoubles(chan, scoreValues);
+                PackedArrayIO.writeDoubles(chan, similarityValues);
+                PackedArrayIO.writeLongs(chan, items.getKeyList().toLongArray());
+                PackedArrayIO.writeInts(chan, itemOffsets);
+                PackedArrayIO.writeInts(chan, itemUsers);
+                PackedArrayIO.writeFloats(chan, itemValues);
+            }
+            stage.commit();
+        }
+    }
+
+    /**
+     * Read a snapshot from a file written by {@link #write(Path)}.  The file is memory-mapped and its
+     * arrays are bulk-copied into the snapshot.
+     *
+     * @param file The file to read.
+     * @return The user snapshot.
+     * @throws IOException if there is an error reading the file, or it is not a valid snapshot file.
+     */
+    public static UserSnapshot read(Path file) throws IOException {
+        try (FileChannel chan = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = PackedArrayIO.map(chan, 0, HEADER_SIZE);
+            if (header.getInt() != FILE_MAGIC) {
+                throw new IOException(file + ": not a user snapshot file");
+            }
+            int version = header.getInt();
+            if (version != FILE_VERSION) {
+                throw new IOException(file + ": unsupported user snapshot version " + version);
+            }
+            int nusers = header.getInt();
+            int nitems = header.getInt();
+            int nratings = header.getInt();
+
+            long pos = HEADER_SIZE;
+            long[] userIds = new long[nusers];
+            pos = PackedArrayIO.readLongs(chan, pos, userIds);
+            int[] uOffs = new int[nusers + 1];
+            pos = PackedArrayIO.readInts(chan, pos, uOffs);
+            long[] uItems = new long[nratings];
+            pos = PackedArrayIO.readLongs(chan, pos, uItems);
+            double[] scoreVs = new double[nratings];
+            pos = PackedArrayIO.readDoubles(chan, pos, scoreVs);
+            double[] simVs = new double[nratings];
+            pos = PackedArrayIO.readDoubles(chan, pos, simVs);
+            long[] itemIds = new long[nitems];
+            pos = PackedArrayIO.readLongs(chan, pos, itemIds);
+            int[] iOffs = new int[nitems + 1];
+            pos = PackedArrayIO.readInts(chan, pos, iOffs);
+            int[] iUsers = new int[nratings];
+            pos = PackedArrayIO.readInts(chan, pos, iUsers);
+            float[] iValues = new float[nratings];
+            pos = PackedArrayIO.readFloats(chan, pos, iValues);
+            if (pos != chan.size()) {
+                throw new IOException(file + ": unexpected user snapshot file size");
+            }
+
+            try {
+                return new UserSnapshot(SortedKeyIndex.wrap(userIds, nusers), uOffs, uItems, scoreVs, simVs,
+                                        SortedKeyIndex.wrap(itemIds, nitems), iOffs, iUsers, iValues);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ": inconsistent user snapshot data", e);
+            }
+        }
     }
 
     public static class Builder implements Provider<UserSnapshot> {
@@ -121,44 +415,75 @@ public class UserSnapshot implements Serializable {
 
         @Override
         public UserSnapshot get() {
-            Long2ObjectMap<Long2DoubleMap> vectors = new Long2ObjectOpenHashMap<>();
+            Long2ObjectMap<Long2DoubleSortedMap> vectors = new Long2ObjectOpenHashMap<>();
+            LongSet itemSet = new LongOpenHashSet();
+            int nratings = 0;
             try (ObjectStream<IdBox<Long2DoubleMap>> users = rvDAO.streamUsers()) {
                 for (IdBox<Long2DoubleMap> user : users) {
-                    Long2DoubleMap uvec = LongUtils.frozenMap(user.getValue());
+                    Long2DoubleSortedMap uvec = LongUtils.frozenMap(user.getValue());
                     vectors.put(user.getId(), uvec);
+                    itemSet.addAll(uvec.keySet());
+                    nratings += uvec.size();
                 }
             }
 
-            Long2ObjectMap<LongList> itemUserLists = new Long2ObjectOpenHashMap<>();
             SortedKeyIndex domain = SortedKeyIndex.fromCollection(vectors.keySet());
-            ImmutableList.Builder<Long2DoubleMap> scoreVectors = ImmutableList.builder();
-            ImmutableList.Builder<Long2DoubleMap> normedVectors = ImmutableList.builder();
-            for (LongIterator uiter = domain.keyIterator(); uiter.hasNext();) {
-                final long user = uiter.nextLong();
-                Long2DoubleMap rawV = vectors.get(user);
+            SortedKeyIndex items = SortedKeyIndex.fromCollection(itemSet);
+            final int nusers = domain.size();
+            final int nitems = items.size();
+
+            int[] userOffsets = new int[nusers + 1];
+            long[] userItems = new long[nratings];
+            double[] scoreValues = new double[nratings];
+            double[] simValues = new double[nratings];
+            int[] itemCounts = new int[nitems];
+
+            for (int u = 0; u < nusers; u++) {
+                final long user = domain.getKey(u);
+                Long2DoubleSortedMap rawV = vectors.get(user);
                 Long2DoubleMap scoreV = scoreNormalizer.makeTransformation(user, rawV).apply(rawV);
                 assert scoreV != null;
-                scoreVectors.add(scoreV);
                 // normalize user vector
                 Long2DoubleMap normV = similarityNormalizer.makeTransformation(user, rawV).apply(rawV);
                 assert normV != null;
-                normedVectors.add(normV);
+
+                int pos = userOffsets[u];
                 for (LongIterator iiter = rawV.keySet().iterator(); iiter.hasNext();) {
                     final long item = iiter.nextLong();
-                    LongList itemUsers = itemUserLists.get(item);
-                    if (itemUsers == null) {
-                        itemUsers = new LongArrayList();
-                        itemUserLists.put(item, itemUsers);
-                    }
-                    itemUsers.add(user);
+                    userItems[pos] = item;
+                    scoreValues[pos] = normalizedValue(scoreV, user, item);
+                    simValues[pos] = normalizedValue(normV, user, item);
+                    itemCounts[items.getIndex(item)] += 1;
+                    pos++;
                 }
+                userOffsets[u + 1] = pos;
             }
 
-            Long2ObjectMap<LongSortedSet> itemUserSets = new Long2ObjectOpenHashMap<>();
-            for (Long2ObjectMap.Entry<LongList> entry: itemUserLists.long2ObjectEntrySet()) {
-                itemUserSets.put(entry.getLongKey(), LongUtils.packedSet(entry.getValue()));
+            int[] itemOffsets = new int[nitems + 1];
+            for (int i = 0; i < nitems; i++) {
+                itemOffsets[i + 1] = itemOffsets[i] + itemCounts[i];
+            }
+            int[] itemUsers = new int[nratings];
+            float[] itemValues = new float[nratings];
+            // reuse the counts as fill cursors; filling in user order keeps postings sorted
+            System.arraycopy(itemOffsets, 0, itemCounts, 0, nitems);
+            for (int u = 0; u < nusers; u++) {
+                for (int j = userOffsets[u]; j < userOffsets[u + 1]; j++) {
+                    int pos = itemCounts[items.getIndex(userItems[j])]++;
+                    itemUsers[pos] = u;
+                    itemValues[pos] = (float) simValues[j];
+                }
+            }
+
+            return new UserSnapshot(domain, userOffsets, userItems, scoreValues, simValues,
+                                    items, itemOffsets, itemUsers, itemValues);
+        }
+
+        private static double normalizedValue(Long2DoubleMap vec, long user, long item) {
+            if (!vec.containsKey(item)) {
+                throw new IllegalStateException("normalizer dropped item " + item + " for user " + user);
             }
-            return new UserSnapshot(domain, scoreVectors.build(), normedVectors.build(), itemUserSets);
+            return vec.get(item);
         }
     }
 }
@@ -37,6 +37,8 @@ import org.lenskit.api.*;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.dao.file.StaticDataSource;
 import org.lenskit.data.ratings.Rating;
+import org.lenskit.knn.MinNeighbors;
+import org.lenskit.results.Results;
 import org.lenskit.similarity.VectorSimilarity;
 import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
 import org.lenskit.transform.normalize.IdentityVectorNormalizer;
@@ -141,6 +143,39 @@ public class ItemItemRecommenderTest {
         assertThat(score.getNeighborhoodSize(), equalTo(3));
     }
 
+    /**
+     * Check that batched scoring produces the same scores as scoring users one at a time.
+     */
+    @Test
+    public void testBatchScoringMatchesSingleUser() {
+        assertBatchMatchesSingleUser(session.get(ItemItemScorer.class));
+    }
+
+    /**
+     * Check that batched scoring still matches single-user scoring when items need no neighbors.
+     */
+    @Test
+    public void testBatchScoringWithoutMinNeighbors() {
+        config.set(MinNeighbors.class).to(0);
+        session = LenskitRecommenderEngine.build(config, data).createRecommender(data);
+        assertBatchMatchesSingleUser(session.get(ItemItemScorer.class));
+    }
+
+    private void assertBatchMatchesSingleUser(ItemItemScorer scorer) {
+        List<Long> items = LongArrayList.wrap(new long[]{6, 7, 8, 9});
+        List<Long> users = LongArrayList.wrap(new long[]{1, 2, 3, 4, 5, 6});
+        Map<Long, Map<Long, Double>> batch = scorer.scoreUsers(users, items);
+        assertThat(batch.keySet(), containsInAnyOrder(users.toArray()));
+        for (long user: users) {
+            Map<Long, Double> single = scorer.score(user, items);
+            Map<Long, Double> batched = batch.get(user);
+            assertThat(batched.keySet(), equalTo(single.keySet()));
+            for (Map.Entry<Long, Double> e: single.entrySet()) {
+                assertThat(batched.get(e.getKey()), closeTo(e.getValue(), 1.0e-6));
+            }
+        }
+    }
+
     @Test
     public void testItemItemRecommender1() {
         List<Long> recs = recommender.recommend(1);
@@ -345,6 +380,32 @@ public class ItemItemRecommenderTest {
         assertThat(recs, hasSize(0));
     }
 
+    /**
+     * Check that the reverse-neighborhood recommender produces the same recommendations as the
+     * standard top-N recommender.
+     */
+    @Test
+    public void testReachableItemRecommender() {
+        config.bind(ItemRecommender.class).to(ItemItemRecommender.class);
+        LenskitRecommender rec = LenskitRecommender.build(config, data);
+        try {
+            ItemRecommender reachable = rec.getItemRecommender();
+            assertThat(reachable, instanceOf(ItemItemRecommender.class));
+            for (long user = 1; user <= 6; user++) {
+                ResultList expected = recommender.recommendWithDetails(user, -1, null, null);
+                ResultMap actual = Results.newResultMap(reachable.recommendWithDetails(user, -1, null, null));
+                assertThat(actual.keySet(), containsInAnyOrder(expected.idList().toArray()));
+                for (Result r: expected) {
+                    assertThat(actual.getScore(r.getId()), closeTo(r.getScore(), 1.0e-6));
+                }
+                assertThat(reachable.recommend(user, 1),
+                           hasSize(Math.min(1, expected.size())));
+            }
+        } finally {
+            rec.close();
+        }
+    }
+
     @Test
     public void testRecommendWithMinCommonUsers() {
         config.set(MinCommonUsers.class).to(1);
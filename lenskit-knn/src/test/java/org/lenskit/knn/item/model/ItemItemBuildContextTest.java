@@ -25,13 +25,23 @@
 package org.lenskit.knn.item.model;
 
 import it.unimi.dsi.fastutil.longs.*;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
 import org.lenskit.util.keys.SortedKeyIndex;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
 public class ItemItemBuildContextTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
 
     /**
      * Test ItemItemBuildContext when all items have rating data.
@@ -117,6 +127,35 @@ public class ItemItemBuildContextTest {
         testRatingIntegrity(items, ratingMap, context);
     }
 
+    /**
+     * Test that serialization and the packed file format preserve the context.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        SortedKeyIndex items = SortedKeyIndex.create(1, 2, 3);
+        Long2DoubleSortedArrayMap v1 = Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.create(101, 102, 104),
+                                                                      new double[]{4.0, 3.0, 2.0});
+        Long2DoubleSortedArrayMap v3 = Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.create(102, 103),
+                                                                      new double[]{-1.0, 0.5});
+        Long2DoubleSortedMap[] ratings = {v1, Long2DoubleSortedMaps.EMPTY_MAP, v3};
+        Long2ObjectMap<LongSortedSet> userItems = new Long2ObjectOpenHashMap<>();
+        userItems.put(102, LongUtils.packedSet(1, 3));
+        ItemItemBuildContext context = new ItemItemBuildContext(items, ratings, userItems);
+
+        ItemItemBuildContext copy = SerializationUtils.clone(context);
+        testRatingIntegrity(items, ratings, copy);
+        assertThat(copy.getUserItems(102), contains(1L, 3L));
+        assertThat(copy.getUserItems(101), hasSize(0));
+
+        Path file = tmp.getRoot().toPath().resolve("context.bin");
+        context.write(file);
+        ItemItemBuildContext loaded = ItemItemBuildContext.read(file);
+        assertThat(loaded.getItems(), contains(1L, 2L, 3L));
+        testRatingIntegrity(items, ratings, loaded);
+        assertThat(loaded.getUserItems(102), contains(1L, 3L));
+        assertThat(loaded.getUserItems(104), hasSize(0));
+    }
+
     @SuppressWarnings("deprecation")
     private void testRatingIntegrity(SortedKeyIndex items, Long2DoubleMap[] trueRatings, ItemItemBuildContext context) {
         for (long itemId : context.getItems()) {
@@ -0,0 +1,130 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.grouplens.lenskit.transform.threshold.AbsoluteThreshold;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class PruningItemItemModelProviderTest {
+    private DataAccessObject dao;
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        List<Rating> rs = new ArrayList<>();
+        for (long user = 1; user <= 50; user++) {
+            for (long item = 100; item < 140; item++) {
+                if (rng.nextDouble() < 0.3) {
+                    rs.add(Rating.create(user, item, 0.5 + rng.nextDouble() * 4.5));
+                }
+            }
+            // items rated evenly by everyone; their bounds against the sparse items are low enough to prune
+            for (long item = 140; item < 150; item++) {
+                rs.add(Rating.create(user, item, 2.5 + rng.nextDouble()));
+            }
+        }
+        dao = StaticDataSource.fromList(rs).get();
+    }
+
+    private ItemItemModel buildModel(Class<? extends Provider<? extends ItemItemModel>> provider) throws RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemItemModel.class).toProvider(provider);
+        config.set(ModelSize.class).to(5);
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            return rec.get(ItemItemModel.class);
+        }
+    }
+
+    private PruningItemItemModelProvider makeProvider() {
+        ItemItemBuildContext context =
+                new ItemItemBuildContextProvider(new StandardRatingVectorPDAO(dao),
+                                                 new DefaultUserVectorNormalizer()).get();
+        return new PruningItemItemModelProvider(new ItemVectorSimilarity(new CosineVectorSimilarity()),
+                                                context, new AbsoluteThreshold(0),
+                                                new SparseNeighborIterationStrategy(), 0, 5);
+    }
+
+    @Test
+    public void testMatchesUnprunedModel() throws RecommenderBuildException {
+        ItemItemModel expected = buildModel(ItemItemModelProvider.class);
+        PruningItemItemModelProvider provider = makeProvider();
+        ItemItemModel pruned = provider.get();
+        assertThat(provider.getPrunedPairCount(), greaterThan(0L));
+        assertThat(provider.getComputedPairCount() + provider.getPrunedPairCount(),
+                   equalTo(provider.getCandidatePairCount()));
+
+        assertThat(pruned.getItemUniverse(), equalTo(expected.getItemUniverse()));
+        for (long item: expected.getItemUniverse()) {
+            Long2DoubleMap exp = expected.getNeighbors(item);
+            Long2DoubleMap act = pruned.getNeighbors(item);
+            assertThat(act.keySet(), equalTo(exp.keySet()));
+            for (Long2DoubleMap.Entry e: exp.long2DoubleEntrySet()) {
+                assertThat(act.get(e.getLongKey()), closeTo(e.getDoubleValue(), 1.0e-6));
+            }
+        }
+    }
+
+    @Test
+    public void testFallsBackWithoutModelSize() throws RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemItemModel.class).toProvider(PruningItemItemModelProvider.class);
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            ItemItemModel model = rec.get(ItemItemModel.class);
+            assertThat(model, instanceOf(SimilarityMatrixModel.class));
+            assertThat(model.getItemUniverse(), hasSize(50));
+        }
+    }
+
+    @Test
+    public void testCountsAreForLastBuild() {
+        PruningItemItemModelProvider provider = makeProvider();
+        provider.get();
+        long candidates = provider.getCandidatePairCount();
+        long pruned = provider.getPrunedPairCount();
+        provider.get();
+        assertThat(provider.getCandidatePairCount(), equalTo(candidates));
+        assertThat(provider.getPrunedPairCount(), equalTo(pruned));
+    }
+}
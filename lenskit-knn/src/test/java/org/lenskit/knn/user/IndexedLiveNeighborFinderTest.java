@@ -0,0 +1,185 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.transform.threshold.NoThreshold;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.io.ObjectStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class IndexedLiveNeighborFinderTest {
+    private List<Rating> ratings;
+    private SwitchableRatingVectorPDAO rvDAO;
+    private UserSimilarity similarity;
+    private UserVectorNormalizer normalizer;
+
+    @Before
+    public void setup() {
+        ratings = new ArrayList<>();
+        ratings.add(Rating.create(1, 6, 4));
+        ratings.add(Rating.create(2, 6, 2));
+        ratings.add(Rating.create(4, 6, 3));
+        ratings.add(Rating.create(5, 6, 4));
+        ratings.add(Rating.create(1, 7, 3));
+        ratings.add(Rating.create(2, 7, 2));
+        ratings.add(Rating.create(3, 7, 5));
+        ratings.add(Rating.create(4, 7, 2));
+        ratings.add(Rating.create(1, 8, 3));
+        ratings.add(Rating.create(2, 8, 4));
+        ratings.add(Rating.create(3, 8, 3));
+        ratings.add(Rating.create(6, 9, 4));
+        ratings.add(Rating.create(5, 9, 4));
+        rvDAO = new SwitchableRatingVectorPDAO();
+        rvDAO.setRatings(ratings);
+        similarity = new UserVectorSimilarity(new CosineVectorSimilarity());
+        normalizer = new DefaultUserVectorNormalizer();
+    }
+
+    private Long2DoubleMap neighborSims(NeighborFinder finder, long user, LongSet items) {
+        Long2DoubleMap sims = new Long2DoubleOpenHashMap();
+        for (Neighbor n: finder.getCandidateNeighbors(user, items)) {
+            sims.put(n.user, n.similarity);
+        }
+        return sims;
+    }
+
+    private IndexedLiveNeighborFinder makeFinder(LiveRatingIndex index) {
+        return new IndexedLiveNeighborFinder(index, rvDAO, rvDAO.dao, similarity,
+                                             normalizer, normalizer, new NoThreshold());
+    }
+
+    @Test
+    public void testMatchesLiveFinder() {
+        NeighborFinder live = new LiveNeighborFinder(rvDAO, rvDAO.dao, similarity,
+                                                     normalizer, normalizer, new NoThreshold());
+        LiveRatingIndex index = new LiveRatingIndex.Builder(rvDAO.dao, rvDAO).get();
+        assertThat(index.getUserCount(), equalTo(6));
+        NeighborFinder indexed = makeFinder(index);
+        for (long user = 1; user <= 7; user++) {
+            LongSet items = LongUtils.packedSet(6, 7, 8, 9);
+            assertThat(neighborSims(indexed, user, items),
+                       equalTo(neighborSims(live, user, items)));
+        }
+    }
+
+    @Test
+    public void testPicksUpNewRatings() {
+        // the index is shared, and each request gets a new finder over the current data
+        LiveRatingIndex index = new LiveRatingIndex.Builder(rvDAO.dao, rvDAO).get();
+        LongSet items = LongUtils.packedSet(6, 7, 8, 9);
+        assertThat(neighborSims(makeFinder(index), 6, items).keySet(), contains(5L));
+
+        // the query user's new ratings are picked up
+        ratings.add(Rating.create(6, 7, 3));
+        rvDAO.setRatings(ratings);
+        assertThat(neighborSims(makeFinder(index), 6, items).keySet(),
+                   containsInAnyOrder(1L, 2L, 3L, 4L, 5L));
+
+        // so are other users' new ratings
+        ratings.add(Rating.create(7, 9, 5));
+        rvDAO.setRatings(ratings);
+        assertThat(neighborSims(makeFinder(index), 5, items).keySet(), hasItem(7L));
+        assertThat(index.getItemUsers(9), hasItem(7L));
+    }
+
+    @Test
+    public void testRevalidatesChangedCandidates() {
+        LiveRatingIndex index = new LiveRatingIndex.Builder(rvDAO.dao, rvDAO).get();
+        LongSet items = LongUtils.packedSet(6, 7, 8, 9);
+        NeighborFinder live = new LiveNeighborFinder(rvDAO, rvDAO.dao, similarity,
+                                                     normalizer, normalizer, new NoThreshold());
+        assertThat(neighborSims(makeFinder(index), 1, items),
+                   equalTo(neighborSims(live, 1, items)));
+
+        // change a rating value without changing the number of ratings
+        ratings.set(1, Rating.create(2, 6, 5));
+        rvDAO.setRatings(ratings);
+        live = new LiveNeighborFinder(rvDAO, rvDAO.dao, similarity,
+                                      normalizer, normalizer, new NoThreshold());
+        assertThat(neighborSims(makeFinder(index), 1, items),
+                   equalTo(neighborSims(live, 1, items)));
+    }
+
+    @Test
+    public void testRereadsOnlyChangedUsers() {
+        LiveRatingIndex index = new LiveRatingIndex.Builder(rvDAO.dao, rvDAO).get();
+        LongSet items = LongUtils.packedSet(6, 7, 8, 9);
+
+        // candidates are served from the index, not fetched
+        rvDAO.fetches = 0;
+        neighborSims(makeFinder(index), 1, items);
+        assertThat(rvDAO.fetches, equalTo(0));
+
+        ratings.add(Rating.create(7, 9, 5));
+        rvDAO.setRatings(ratings);
+        rvDAO.fetches = 0;
+        assertThat(neighborSims(makeFinder(index), 5, items).keySet(), hasItem(7L));
+        assertThat(rvDAO.fetches, equalTo(1));
+    }
+
+    /**
+     * Rating vector DAO whose underlying data can be replaced, to simulate live data.
+     */
+    private static class SwitchableRatingVectorPDAO implements RatingVectorPDAO {
+        DataAccessObject dao;
+        RatingVectorPDAO delegate;
+        int fetches;
+
+        void setRatings(List<Rating> rs) {
+            dao = StaticDataSource.fromList(new ArrayList<>(rs)).get();
+            delegate = new StandardRatingVectorPDAO(dao);
+        }
+
+        @Override
+        public Long2DoubleMap userRatingVector(long user) {
+            fetches += 1;
+            return delegate.userRatingVector(user);
+        }
+
+        @Override
+        public ObjectStream<IdBox<Long2DoubleMap>> streamUsers() {
+            return delegate.streamUsers();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.similarity.PearsonCorrelation;
+import org.lenskit.similarity.VectorSimilarity;
+import org.lenskit.util.collections.LongUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ModelNeighborFinderTest {
+    private DataAccessObject dao;
+
+    @Before
+    public void setup() {
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(1, 6, 4));
+        rs.add(Rating.create(2, 6, 2));
+        rs.add(Rating.create(4, 6, 3));
+        rs.add(Rating.create(5, 6, 4));
+        rs.add(Rating.create(1, 7, 3));
+        rs.add(Rating.create(2, 7, 2));
+        rs.add(Rating.create(3, 7, 5));
+        rs.add(Rating.create(4, 7, 2));
+        rs.add(Rating.create(1, 8, 3));
+        rs.add(Rating.create(2, 8, 4));
+        rs.add(Rating.create(3, 8, 3));
+        rs.add(Rating.create(4, 8, 2));
+        rs.add(Rating.create(5, 8, 3));
+        rs.add(Rating.create(6, 8, 2));
+        rs.add(Rating.create(1, 9, 3));
+        rs.add(Rating.create(3, 9, 4));
+        rs.add(Rating.create(6, 9, 4));
+        rs.add(Rating.create(5, 9, 4));
+        dao = StaticDataSource.fromList(rs).get();
+    }
+
+    private LenskitRecommender build(Class<? extends NeighborFinder> finder) throws RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(UserUserItemScorer.class);
+        config.bind(NeighborFinder.class).to(finder);
+        config.within(UserSimilarity.class)
+              .bind(VectorSimilarity.class)
+              .to(PearsonCorrelation.class);
+        return LenskitRecommender.build(config, dao);
+    }
+
+    @Test
+    public void testMatchesLiveSearch() throws RecommenderBuildException {
+        try (LenskitRecommender live = build(LiveNeighborFinder.class);
+             LenskitRecommender model = build(ModelNeighborFinder.class)) {
+            assertThat(model.get(NeighborFinder.class), instanceOf(ModelNeighborFinder.class));
+            List<Long> items = Arrays.asList(6L, 7L, 8L, 9L);
+            for (long user = 1; user <= 6; user++) {
+                ResultMap expected = live.getItemScorer().scoreWithDetails(user, items);
+                ResultMap actual = model.getItemScorer().scoreWithDetails(user, items);
+                assertThat(actual.keySet(), equalTo(expected.keySet()));
+                for (Result r: expected) {
+                    assertThat(actual.getScore(r.getId()), closeTo(r.getScore(), 1.0e-6));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownUserFallsBack() throws RecommenderBuildException {
+        try (LenskitRecommender model = build(ModelNeighborFinder.class)) {
+            UserNeighborhoodModel nbrs = model.get(UserNeighborhoodModel.class);
+            assertThat(nbrs.hasUser(1), equalTo(true));
+            assertThat(nbrs.hasUser(42), equalTo(false));
+            assertThat(nbrs.getNeighbors(42), nullValue());
+            // unknown users have no ratings, so the fallback search finds no neighbors
+            assertThat(model.get(NeighborFinder.class).getCandidateNeighbors(42, LongUtils.packedSet(6, 7)),
+                       emptyIterable());
+        }
+    }
+}
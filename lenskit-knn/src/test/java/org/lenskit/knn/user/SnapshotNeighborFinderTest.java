@@ -0,0 +1,97 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.transform.threshold.NoThreshold;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.lenskit.util.collections.LongUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class SnapshotNeighborFinderTest {
+    private RatingVectorPDAO rvDAO;
+    private UserSnapshot snapshot;
+    private UserSimilarity similarity;
+    private UserVectorNormalizer normalizer;
+
+    @Before
+    public void setup() {
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(1, 6, 4));
+        rs.add(Rating.create(2, 6, 2));
+        rs.add(Rating.create(4, 6, 3));
+        rs.add(Rating.create(1, 7, 3));
+        rs.add(Rating.create(3, 7, 5));
+        rs.add(Rating.create(4, 7, 2));
+        rs.add(Rating.create(2, 8, 4));
+        rs.add(Rating.create(3, 9, 4.5));
+        rvDAO = new StandardRatingVectorPDAO(StaticDataSource.fromList(rs).get());
+        normalizer = new DefaultUserVectorNormalizer();
+        snapshot = new UserSnapshot.Builder(rvDAO, normalizer, normalizer).get();
+        similarity = new UserVectorSimilarity(new CosineVectorSimilarity());
+    }
+
+    private List<Long> neighborIds(NeighborFinder finder, long user, LongSet items) {
+        List<Long> ids = new ArrayList<>();
+        for (Neighbor n: finder.getCandidateNeighbors(user, items)) {
+            ids.add(n.user);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testAllCandidates() {
+        SnapshotNeighborFinder finder = new SnapshotNeighborFinder(snapshot, similarity, rvDAO, normalizer,
+                                                                   new NoThreshold(), 0);
+        assertThat(neighborIds(finder, 1, LongUtils.packedSet(6, 7, 8, 9)),
+                   containsInAnyOrder(2L, 3L, 4L));
+        assertThat(finder.getCandidatesFound(), equalTo(3L));
+        assertThat(finder.getCandidatesEvaluated(), equalTo(3L));
+    }
+
+    @Test
+    public void testPrunedCandidates() {
+        SnapshotNeighborFinder finder = new SnapshotNeighborFinder(snapshot, similarity, rvDAO, normalizer,
+                                                                   new NoThreshold(), 2);
+        // candidates are ordered by cosine bound, and only the top 2 are evaluated
+        assertThat(neighborIds(finder, 1, LongUtils.packedSet(6, 7, 8, 9)),
+                   contains(4L, 3L));
+        assertThat(finder.getCandidatesFound(), equalTo(3L));
+        assertThat(finder.getCandidatesEvaluated(), equalTo(2L));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class UserSnapshotTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private UserSnapshot snapshot;
+
+    @Before
+    public void setup() {
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(1, 6, 4));
+        rs.add(Rating.create(2, 6, 2));
+        rs.add(Rating.create(4, 6, 3));
+        rs.add(Rating.create(1, 7, 3));
+        rs.add(Rating.create(3, 7, 5));
+        rs.add(Rating.create(4, 7, 2));
+        rs.add(Rating.create(2, 8, 4));
+        rs.add(Rating.create(3, 9, 4.5));
+        StaticDataSource source = StaticDataSource.fromList(rs);
+        UserVectorNormalizer norm = new DefaultUserVectorNormalizer();
+        snapshot = new UserSnapshot.Builder(new StandardRatingVectorPDAO(source.get()), norm, norm).get();
+    }
+
+    private static void assertSameSnapshot(UserSnapshot actual, UserSnapshot expected) {
+        assertThat(actual.getUserCount(), equalTo(expected.getUserCount()));
+        for (long user = 1; user <= 4; user++) {
+            assertThat(actual.getUserVector(user), equalTo(expected.getUserVector(user)));
+            assertThat(actual.getNormalizedUserVector(user), equalTo(expected.getNormalizedUserVector(user)));
+        }
+        for (long item = 5; item <= 10; item++) {
+            assertThat(actual.getItemUsers(item), equalTo(expected.getItemUsers(item)));
+        }
+    }
+
+    @Test
+    public void testUserVectors() {
+        assertThat(snapshot.getUserCount(), equalTo(4));
+        Long2DoubleMap v3 = snapshot.getUserVector(3);
+        assertThat(v3.keySet(), contains(7L, 9L));
+        assertThat(v3.get(7), equalTo(5.0));
+        assertThat(v3.get(9), equalTo(4.5));
+        assertThat(snapshot.getNormalizedUserVector(3), equalTo(v3));
+
+        int idx = snapshot.getUserIndex(3);
+        assertThat(idx, greaterThanOrEqualTo(0));
+        assertThat(snapshot.getUserId(idx), equalTo(3L));
+        assertThat(snapshot.getUserVectorAt(idx), equalTo(v3));
+        assertThat(snapshot.getUserIndex(42), lessThan(0));
+    }
+
+    @Test
+    public void testItemUsers() {
+        assertThat(snapshot.getItemUsers(6), contains(1L, 2L, 4L));
+        assertThat(snapshot.getItemUsers(7), contains(1L, 3L, 4L));
+        assertThat(snapshot.getItemUsers(9), contains(3L));
+        assertThat(snapshot.getItemUsers(42), nullValue());
+        assertThat(snapshot.getItemUserIndices(8), contains(snapshot.getUserIndex(2)));
+    }
+
+    @Test
+    public void testSerialize() {
+        assertSameSnapshot(SerializationUtils.clone(snapshot), snapshot);
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        Path file = tmp.getRoot().toPath().resolve("snapshot.bin");
+        snapshot.write(file);
+        assertSameSnapshot(UserSnapshot.read(file), snapshot);
+    }
+}
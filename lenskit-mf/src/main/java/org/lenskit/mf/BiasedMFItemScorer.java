@@ -32,9 +32,9 @@ import org.lenskit.api.Result;
 import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.bias.BiasModel;
+import org.lenskit.bias.DenseBiasModel;
 import org.lenskit.results.Results;
-import org.lenskit.util.collections.LongUtils;
-import org.lenskit.util.math.Vectors;
+import org.lenskit.util.keys.KeyIndex;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -52,6 +52,11 @@ import java.util.List;
 public class BiasedMFItemScorer extends AbstractItemScorer {
     private final MFModel model;
     private final BiasModel biasModel;
+    /**
+     * The bias model, if it is a dense model over the same items as the MF model; otherwise {@code null}.
+     */
+    @Nullable
+    private final DenseBiasModel alignedBias;
 
     /**
      * Create a new biased MF item scorer.
@@ -62,6 +67,22 @@ public class BiasedMFItemScorer extends AbstractItemScorer {
     public BiasedMFItemScorer(MFModel mod, BiasModel bias) {
         model = mod;
         biasModel = bias;
+        alignedBias = alignedDenseModel(mod, bias);
+    }
+
+    @Nullable
+    private static DenseBiasModel alignedDenseModel(MFModel model, BiasModel bias) {
+        if (!(bias instanceof DenseBiasModel)) {
+            return null;
+        }
+        DenseBiasModel dense = (DenseBiasModel) bias;
+        KeyIndex mfItems = model.getItemIndex();
+        KeyIndex biasItems = dense.getItemIndex();
+        if (mfItems == biasItems || mfItems.getKeyList().equals(biasItems.getKeyList())) {
+            return dense;
+        } else {
+            return null;
+        }
     }
 
     /**
@@ -77,6 +98,20 @@ public class BiasedMFItemScorer extends AbstractItemScorer {
         return model.getUserVector(user);
     }
 
+    /**
+     * Get the feature vector this scorer uses for a user.  This is the {@linkplain
+     * #getUserPreferenceVector(long) preference vector}, which may differ from the model's vector
+     * if the scorer updates users at runtime.
+     *
+     * @param user The user ID.
+     * @return The user's feature vector, or {@code null} if no preferences are available for the
+     *         user.
+     */
+    @Nullable
+    public final RealVector getUserVector(long user) {
+        return getUserPreferenceVector(user);
+    }
+
     /**
      * Compute the score a user and item using their vectors.
      *
@@ -90,6 +125,21 @@ public class BiasedMFItemScorer extends AbstractItemScorer {
         return bias + user.dotProduct(item);
     }
 
+    /**
+     * Query whether {@link #computeScore(double, RealVector, RealVector)} is the bias plus the
+     * dot product.  If it is, {@link #scoreWithDetails(long, Collection)} scores all items in one
+     * pass over the model's packed item features instead of calling {@code computeScore} per item.
+     *
+     * The default implementation only returns {@code true} for this class itself, so subclasses
+     * (which may override {@code computeScore}) use the per-item path unless they override this
+     * method to opt in to bulk scoring.
+     *
+     * @return {@code true} if scores are computed by the default kernel.
+     */
+    protected boolean isDotProductKernel() {
+        return getClass() == BiasedMFItemScorer.class;
+    }
+
     public MFModel getModel() {
         return model;
     }
@@ -97,21 +147,56 @@ public class BiasedMFItemScorer extends AbstractItemScorer {
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
-        Long2DoubleMap baselines = biasModel.getItemBiases(LongUtils.packedSet(items));
-        baselines = Vectors.addScalar(baselines, biasModel.getIntercept() + biasModel.getUserBias(user));
-
         RealVector uvec = getUserPreferenceVector(user);
         if (uvec == null) {
             return Results.newResultMap();
         }
 
+        if (isDotProductKernel() && alignedBias != null) {
+            // look up each item once, and score biases and dot products by index
+            KeyIndex index = model.getItemIndex();
+            long[] ids = new long[items.size()];
+            int[] indexes = new int[items.size()];
+            int n = 0;
+            LongIterator iter = LongIterators.asLongIterator(items.iterator());
+            while (iter.hasNext()) {
+                long item = iter.nextLong();
+                int idx = index.tryGetIndex(item);
+                if (idx >= 0) {
+                    ids[n] = item;
+                    indexes[n] = idx;
+                    n++;
+                }
+            }
+            double[] scores = new double[n];
+            alignedBias.scoreItems(user, indexes, n, scores);
+            model.addItemScores(uvec.toArray(), indexes, n, scores);
+            List<Result> results = new ArrayList<>(n);
+            for (int j = 0; j < n; j++) {
+                results.add(Results.create(ids[j], scores[j]));
+            }
+            return Results.newResultMap(results);
+        }
+
+        double base = biasModel.getIntercept() + biasModel.getUserBias(user);
+
+        if (isDotProductKernel()) {
+            Long2DoubleMap dots = model.computeItemScores(uvec.toArray(), items);
+            List<Result> results = new ArrayList<>(dots.size());
+            for (Long2DoubleMap.Entry e: dots.long2DoubleEntrySet()) {
+                long item = e.getLongKey();
+                results.add(Results.create(item, base + biasModel.getItemBias(item) + e.getDoubleValue()));
+            }
+            return Results.newResultMap(results);
+        }
+
         List<Result> results = new ArrayList<>(items.size());
         LongIterator iter = LongIterators.asLongIterator(items.iterator());
         while (iter.hasNext()) {
             long item = iter.nextLong();
             RealVector ivec = model.getItemVector(item);
             if (ivec != null) {
-                double score = computeScore(baselines.get(item), uvec, ivec);
+                double score = computeScore(base + biasModel.getItemBias(item), uvec, ivec);
                 results.add(Results.create(item, score));
             }
         }
@@ -25,19 +25,33 @@
 package org.lenskit.mf;
 
 import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import org.lenskit.inject.Shareable;
+import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.keys.KeyIndex;
-import org.lenskit.util.math.Vectors;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.keys.SortedKeyIndex;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
+import java.util.Collection;
 
 /**
  * Common model for matrix factorization (SVD) recommendation.
  *
+ * <p>The feature matrices are stored as contiguous row-major arrays, so {@link #computeItemScores(double[], Collection)}
+ * can score a batch of items against a user vector without allocating per-item vectors.  The {@link RealMatrix}
+ * and {@link RealVector} accessors remain for compatibility; the matrices are read-only views, and the vectors are
+ * copies.</p>
+ *
  * @since 2.1
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
@@ -50,14 +64,20 @@ public class MFModel implements Serializable {
     protected int userCount;
     protected int itemCount;
 
-    protected RealMatrix userMatrix;
-    protected RealMatrix itemMatrix;
+    /**
+     * The user features, row-major (users x features).
+     */
+    protected double[] userFeatures;
+    /**
+     * The item features, row-major (items x features).
+     */
+    protected double[] itemFeatures;
     protected KeyIndex userIndex;
     protected KeyIndex itemIndex;
 
     /**
-     * Construct a matrix factorization model.  The matrices are not copied, so the caller should
-     * make sure they won't be modified by anyone else.
+     * Construct a matrix factorization model.  The matrices are copied into the model's packed
+     * storage.
      *
      * @param umat The user feature matrix (users x features).
      * @param imat The item feature matrix (items x features).
@@ -77,27 +97,80 @@ public class MFModel implements Serializable {
         Preconditions.checkArgument(imat.getRowDimension() == itemCount,
                                     "item matrix has %s rows, expected %s",
                                     imat.getRowDimension(), itemCount);
-        userMatrix = umat;
-        itemMatrix = imat;
+        userFeatures = packMatrix(umat);
+        itemFeatures = packMatrix(imat);
+        userIndex = uidx;
+        itemIndex = iidx;
+    }
+
+    /**
+     * Construct a matrix factorization model from packed feature arrays.  The arrays are not
+     * copied, so the caller should make sure they won't be modified by anyone else.
+     *
+     * @param nfeatures The number of features.
+     * @param ufeats The user features, row-major (users x features).
+     * @param ifeats The item features, row-major (items x features).
+     * @param uidx The user index mapping.
+     * @param iidx The item index mapping.
+     */
+    public MFModel(int nfeatures, double[] ufeats, double[] ifeats,
+                   KeyIndex uidx, KeyIndex iidx) {
+        featureCount = nfeatures;
+        userCount = uidx.size();
+        itemCount = iidx.size();
+        int usize = packedSize(userCount, nfeatures);
+        int isize = packedSize(itemCount, nfeatures);
+        Preconditions.checkArgument(ufeats.length == usize,
+                                    "user array has %s entries, expected %s",
+                                    ufeats.length, usize);
+        Preconditions.checkArgument(ifeats.length == isize,
+                                    "item array has %s entries, expected %s",
+                                    ifeats.length, isize);
+        userFeatures = ufeats;
+        itemFeatures = ifeats;
         userIndex = uidx;
         itemIndex = iidx;
     }
 
+    /**
+     * Compute the size of a packed feature array.
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     * @return The number of entries in a packed {@code rows x cols} array.
+     * @throws IllegalArgumentException if the matrix has more entries than an array can hold.
+     */
+    private static int packedSize(int rows, int cols) {
+        try {
+            return Math.multiplyExact(rows, cols);
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException(String.format("%d x %d matrix is too large to pack into an array",
+                                                             rows, cols), ex);
+        }
+    }
+
+    private static double[] packMatrix(RealMatrix mat) {
+        int nr = mat.getRowDimension();
+        int nc = mat.getColumnDimension();
+        double[] data = new double[packedSize(nr, nc)];
+        for (int i = 0; i < nr; i++) {
+            for (int j = 0; j < nc; j++) {
+                data[i * nc + j] = mat.getEntry(i, j);
+            }
+        }
+        return data;
+    }
+
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.writeInt(featureCount);
         out.writeInt(userCount);
         out.writeInt(itemCount);
 
-        for (int i = 0; i < userCount; i++) {
-            for (int j = 0; j < featureCount; j++) {
-                out.writeDouble(userMatrix.getEntry(i, j));
-            }
+        for (double v: userFeatures) {
+            out.writeDouble(v);
         }
 
-        for (int i = 0; i < itemCount; i++) {
-            for (int j = 0; j < featureCount; j++) {
-                out.writeDouble(itemMatrix.getEntry(i, j));
-            }
+        for (double v: itemFeatures) {
+            out.writeDouble(v);
         }
 
         out.writeObject(userIndex);
@@ -109,29 +182,38 @@ public class MFModel implements Serializable {
         userCount = input.readInt();
         itemCount = input.readInt();
 
-        RealMatrix umat = MatrixUtils.createRealMatrix(userCount, featureCount);
-        for (int i = 0; i < userCount; i++) {
-            for (int j = 0; j < featureCount; j++) {
-                umat.setEntry(i, j, input.readDouble());
-            }
+        if (featureCount < 0 || userCount < 0 || itemCount < 0) {
+            throw new InvalidObjectException("negative model dimension");
+        }
+        int usize, isize;
+        try {
+            usize = packedSize(userCount, featureCount);
+            isize = packedSize(itemCount, featureCount);
+        } catch (IllegalArgumentException ex) {
+            InvalidObjectException ioe = new InvalidObjectException(ex.getMessage());
+            ioe.initCause(ex);
+            throw ioe;
         }
-        userMatrix = umat;
 
-        RealMatrix imat = MatrixUtils.createRealMatrix(itemCount, featureCount);
-        for (int i = 0; i < itemCount; i++) {
-            for (int j = 0; j < featureCount; j++) {
-                imat.setEntry(i, j, input.readDouble());
-            }
+        double[] ufeats = new double[usize];
+        for (int i = 0; i < ufeats.length; i++) {
+            ufeats[i] = input.readDouble();
         }
-        itemMatrix = imat;
+        userFeatures = ufeats;
+
+        double[] ifeats = new double[isize];
+        for (int i = 0; i < ifeats.length; i++) {
+            ifeats[i] = input.readDouble();
+        }
+        itemFeatures = ifeats;
 
         userIndex = (KeyIndex) input.readObject();
         itemIndex = (KeyIndex) input.readObject();
 
-        if (userIndex.size() != userMatrix.getRowDimension()) {
+        if (userIndex.size() != userCount) {
             throw new InvalidObjectException("user matrix and index have different row counts");
         }
-        if (itemIndex.size() != itemMatrix.getRowDimension()) {
+        if (itemIndex.size() != itemCount) {
             throw new InvalidObjectException("item matrix and index have different row counts");
         }
     }
@@ -175,37 +257,109 @@ public class MFModel implements Serializable {
 
     /**
      * Get the user matrix.
-     * @return The user matrix (users x features).
+     * @return A read-only view of the user matrix (users x features).
      */
     public RealMatrix getUserMatrix() {
-        return userMatrix;
+        return new PackedMatrixView(userFeatures, userCount, featureCount);
     }
 
     /**
      * Get the item matrix.
-     * @return The item matrix (items x features).
+     * @return A read-only view of the item matrix (items x features).
      */
     public RealMatrix getItemMatrix() {
-        return itemMatrix;
+        return new PackedMatrixView(itemFeatures, itemCount, featureCount);
     }
 
+    /**
+     * Get a user's feature vector.
+     * @param user The user ID.
+     * @return A copy of the user's feature vector, or {@code null} if the user is unknown.
+     */
     @Nullable
     public RealVector getUserVector(long user) {
         int uidx = userIndex.tryGetIndex(user);
         if (uidx < 0) {
             return null;
         } else {
-            return Vectors.matrixRow(userMatrix, uidx);
+            return new ArrayRealVector(userFeatures, uidx * featureCount, featureCount);
         }
     }
 
+    /**
+     * Get an item's feature vector.
+     * @param item The item ID.
+     * @return A copy of the item's feature vector, or {@code null} if the item is unknown.
+     */
     @Nullable
     public RealVector getItemVector(long item) {
         int iidx = itemIndex.tryGetIndex(item);
         if (iidx < 0) {
             return null;
         } else {
-            return Vectors.matrixRow(itemMatrix, iidx);
+            return new ArrayRealVector(itemFeatures, iidx * featureCount, featureCount);
+        }
+    }
+
+    /**
+     * Compute the dot products of a user vector with the feature vectors of several items.
+     *
+     * @param user The user feature vector; must have {@link #getFeatureCount()} entries.
+     * @param items The items to score.
+     * @return A map from each item in {@code items} known to the model to its dot product with
+     *         {@code user}.  Unknown items are omitted.
+     */
+    @Nonnull
+    public Long2DoubleMap computeItemScores(@Nonnull double[] user, @Nonnull Collection<Long> items) {
+        Preconditions.checkArgument(user.length == featureCount,
+                                    "user vector has %s entries, expected %s",
+                                    user.length, featureCount);
+        LongSortedSet itemSet = LongUtils.packedSet(items);
+        long[] keys = new long[itemSet.size()];
+        double[] scores = new double[itemSet.size()];
+        final int nf = featureCount;
+        final double[] ifeats = itemFeatures;
+        int n = 0;
+        LongIterator iter = itemSet.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            int iidx = itemIndex.tryGetIndex(item);
+            if (iidx < 0) {
+                continue;
+            }
+            int base = iidx * nf;
+            double dot = 0;
+            for (int f = 0; f < nf; f++) {
+                dot += user[f] * ifeats[base + f];
+            }
+            keys[n] = item;
+            scores[n] = dot;
+            n++;
+        }
+        return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.wrap(keys, n), scores);
+    }
+
+    /**
+     * Add the dot products of a user vector with the feature vectors of several items to a score array.
+     *
+     * @param user The user feature vector; must have {@link #getFeatureCount()} entries.
+     * @param items The items' indexes in {@link #getItemIndex()}.
+     * @param n The number of items.
+     * @param scores The score array; the dot product for item {@code items[j]} is added to entry <var>j</var>.
+     */
+    public void addItemScores(@Nonnull double[] user, @Nonnull int[] items, int n, @Nonnull double[] scores) {
+        Preconditions.checkArgument(user.length == featureCount,
+                                    "user vector has %s entries, expected %s",
+                                    user.length, featureCount);
+        final int nf = featureCount;
+        final double[] ifeats = itemFeatures;
+        for (int j = 0; j < n; j++) {
+            int base = items[j] * nf;
+            double dot = 0;
+            for (int f = 0; f < nf; f++) {
+                dot += user[f] * ifeats[base + f];
+            }
+            scores[j] += dot;
         }
     }
 
@@ -220,7 +374,7 @@ public class MFModel implements Serializable {
         if (uidx < 0) {
             return 0;
         } else {
-            return userMatrix.getEntry(uidx, feature);
+            return userFeatures[uidx * featureCount + feature];
         }
     }
 
@@ -235,7 +389,7 @@ public class MFModel implements Serializable {
         if (iidx < 0) {
             return 0;
         } else {
-            return itemMatrix.getEntry(iidx, feature);
+            return itemFeatures[iidx * featureCount + feature];
         }
     }
 
@@ -252,4 +406,58 @@ public class MFModel implements Serializable {
           .append(")");
         return sb.toString();
     }
+
+    /**
+     * Read-only matrix view of a packed row-major array.
+     */
+    private static class PackedMatrixView extends AbstractRealMatrix {
+        private final double[] data;
+        private final int rows;
+        private final int columns;
+
+        PackedMatrixView(double[] data, int rows, int columns) {
+            super();
+            this.data = data;
+            this.rows = rows;
+            this.columns = columns;
+        }
+
+        @Override
+        public int getRowDimension() {
+            return rows;
+        }
+
+        @Override
+        public int getColumnDimension() {
+            return columns;
+        }
+
+        @Override
+        public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+            if (rowDimension == 0 || columnDimension == 0) {
+                // Commons Math matrices cannot be empty
+                return new PackedMatrixView(new double[0], rowDimension, columnDimension);
+            }
+            return MatrixUtils.createRealMatrix(rowDimension, columnDimension);
+        }
+
+        @Override
+        public RealMatrix copy() {
+            if (rows == 0 || columns == 0) {
+                return new PackedMatrixView(new double[0], rows, columns);
+            }
+            return MatrixUtils.createRealMatrix(getData());
+        }
+
+        @Override
+        public double getEntry(int row, int column) {
+            MatrixUtils.checkMatrixIndex(this, row, column);
+            return data[row * columns + column];
+        }
+
+        @Override
+        public void setEntry(int row, int column, double value) {
+            throw new UnsupportedOperationException("model matrices are read-only");
+        }
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.als;
+
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.grouplens.lenskit.iterative.RegularizationTerm;
+import org.grouplens.lenskit.iterative.StoppingThreshold;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.Transient;
+import org.lenskit.mf.MFModel;
+import org.lenskit.mf.funksvd.FeatureCount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Train a biased matrix factorization model with alternating least squares.
+ *
+ * <p>The model is fit to the residuals of the {@link BiasModel}, so it can be used directly with
+ * {@link org.lenskit.mf.BiasedMFItemScorer} configured with the same bias model.  Each sweep first
+ * fixes the item factors and solves every user's regularized normal equations, then does the same for
+ * items; the per-user and per-item solves are independent and run in parallel.  Regularization is
+ * weighted by each user's or item's rating count, as in Zhou et al.'s ALS-WR.</p>
+ *
+ * <p>Training stops after {@link IterationCount} sweeps, or earlier once the training RMSE changes by
+ * no more than the {@link StoppingThreshold}.  ALS typically converges in 10&ndash;20 sweeps, so the
+ * iteration count should usually be lowered from its gradient-descent-oriented default.</p>
+ *
+ * @since 3.0
+ */
+public class ALSModelProvider implements Provider<MFModel> {
+    private static final Logger logger = LoggerFactory.getLogger(ALSModelProvider.class);
+    private static final double INITIAL_SCALE = 0.1;
+
+    private final RatingMatrix snapshot;
+    private final BiasModel baseline;
+    private final Random random;
+    private final int featureCount;
+    private final double regularization;
+    private final int iterationCount;
+    private final double stoppingThreshold;
+
+    @Inject
+    public ALSModelProvider(@Transient @Nonnull RatingMatrix snapshot,
+                            @Transient @Nonnull BiasModel bias,
+                            @Transient Random rng,
+                            @FeatureCount int features,
+                            @RegularizationTerm double reg,
+                            @IterationCount int iters,
+                            @StoppingThreshold double threshold) {
+        this.snapshot = snapshot;
+        baseline = bias;
+        random = rng;
+        featureCount = features;
+        regularization = reg;
+        iterationCount = iters;
+        stoppingThreshold = threshold;
+    }
+
+    @Override
+    public MFModel get() {
+        final int nusers = snapshot.userIndex().size();
+        final int nitems = snapshot.itemIndex().size();
+        List<RatingMatrixEntry> ratings = snapshot.getRatings();
+        logger.info("training {}-feature ALS model for {} users, {} items, {} ratings",
+                    featureCount, nusers, nitems, ratings.size());
+
+        Residuals byUser = new Residuals(ratings, nusers, true);
+        Residuals byItem = new Residuals(ratings, nitems, false);
+
+        double[][] userFeatures = new double[nusers][featureCount];
+        double[][] itemFeatures = new double[nitems][featureCount];
+        for (double[] row: itemFeatures) {
+            for (int f = 0; f < featureCount; f++) {
+                row[f] = random.nextGaussian() * INITIAL_SCALE;
+            }
+        }
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+        double rmse = Double.POSITIVE_INFINITY;
+        for (int sweep = 1; sweep <= iterationCount; sweep++) {
+            solveAll(byUser, itemFeatures, userFeatures);
+            solveAll(byItem, userFeatures, itemFeatures);
+
+            double oldRMSE = rmse;
+            rmse = computeRMSE(byUser, userFeatures, itemFeatures);
+            logger.debug("sweep {} finished with RMSE {}", sweep, rmse);
+            if (Math.abs(oldRMSE - rmse) <= stoppingThreshold) {
+                logger.debug("RMSE converged after {} sweeps", sweep);
+                break;
+            }
+        }
+        timer.stop();
+        logger.info("trained ALS model in {} (RMSE={})", timer, rmse);
+
+        return new MFModel(new Array2DRowRealMatrix(userFeatures, false),
+                           new Array2DRowRealMatrix(itemFeatures, false),
+                           snapshot.userIndex(), snapshot.itemIndex());
+    }
+
+    /**
+     * Solve for one side's factors with the other side's factors fixed.
+     *
+     * @param rows The residuals grouped by the rows being solved for.
+     * @param fixed The fixed factors.
+     * @param target The factors to solve for.
+     */
+    private void solveAll(Residuals rows, double[][] fixed, double[][] target) {
+        IntStream.range(0, target.length)
+                 .parallel()
+                 .forEach(r -> solveRow(rows, r, fixed, target[r]));
+    }
+
+    private void solveRow(Residuals rows, int row, double[][] fixed, double[] out) {
+        final int k = featureCount;
+        int lb = rows.offsets[row];
+        int ub = rows.offsets[row + 1];
+        if (lb == ub) {
+            // no ratings, leave factors alone
+            return;
+        }
+
+        double[] a = new double[k * k];
+        double[] b = new double[k];
+        for (int j = lb; j < ub; j++) {
+            double[] q = fixed[rows.columns[j]];
+            double v = rows.values[j];
+            for (int f = 0; f < k; f++) {
+                b[f] += v * q[f];
+                for (int g = 0; g <= f; g++) {
+                    a[f * k + g] += q[f] * q[g];
+                }
+            }
+        }
+        double lambda = regularization * (ub - lb);
+        for (int f = 0; f < k; f++) {
+            a[f * k + f] += lambda;
+        }
+        solveCholesky(a, b, k);
+        System.arraycopy(b, 0, out, 0, k);
+    }
+
+    /**
+     * Solve a symmetric positive-definite system in place by Cholesky decomposition.
+     *
+     * @param a The matrix, row-major; only the lower triangle is read.  It is overwritten with its
+     *          Cholesky factor.
+     * @param b The right-hand side; overwritten with the solution.
+     * @param k The system size.
+     */
+    static void solveCholesky(double[] a, double[] b, int k) {
+        for (int i = 0; i < k; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = a[i * k + j];
+                for (int p = 0; p < j; p++) {
+                    sum -= a[i * k + p] * a[j * k + p];
+                }
+                if (i == j) {
+                    // guard against round-off in near-singular systems
+                    a[i * k + i] = Math.sqrt(Math.max(sum, 1.0e-12));
+                } else {
+                    a[i * k + j] = sum / a[j * k + j];
+                }
+            }
+        }
+        // forward substitution: L y = b
+        for (int i = 0; i < k; i++) {
+            double sum = b[i];
+            for (int p = 0; p < i; p++) {
+                sum -= a[i * k + p] * b[p];
+            }
+            b[i] = sum / a[i * k + i];
+        }
+        // back substitution: L^T x = y
+        for (int i = k - 1; i >= 0; i--) {
+            double sum = b[i];
+            for (int p = i + 1; p < k; p++) {
+                sum -= a[p * k + i] * b[p];
+            }
+            b[i] = sum / a[i * k + i];
+        }
+    }
+
+    private double computeRMSE(Residuals byUser, double[][] userFeatures, double[][] itemFeatures) {
+        double sse = IntStream.range(0, userFeatures.length)
+                              .parallel()
+                              .mapToDouble(u -> {
+                                  double[] p = userFeatures[u];
+                                  double s = 0;
+                                  for (int j = byUser.offsets[u]; j < byUser.offsets[u + 1]; j++) {
+                                      double[] q = itemFeatures[byUser.columns[j]];
+                                      double pred = 0;
+                                      for (int f = 0; f < featureCount; f++) {
+                                          pred += p[f] * q[f];
+                                      }
+                                      double err = byUser.values[j] - pred;
+                                      s += err * err;
+                                  }
+                                  return s;
+                              })
+                              .sum();
+        return Math.sqrt(sse / byUser.values.length);
+    }
+
+    /**
+     * Bias residuals in compressed sparse row form, grouped by user or by item.
+     */
+    private class Residuals {
+        final int[] offsets;
+        final int[] columns;
+        final double[] values;
+
+        Residuals(List<RatingMatrixEntry> ratings, int nrows, boolean byUser) {
+            int n = ratings.size();
+            offsets = new int[nrows + 1];
+            for (RatingMatrixEntry r: ratings) {
+                offsets[(byUser ? r.getUserIndex() : r.getItemIndex()) + 1] += 1;
+            }
+            for (int i = 0; i < nrows; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] cursors = new int[nrows];
+            System.arraycopy(offsets, 0, cursors, 0, nrows);
+            columns = new int[n];
+            values = new double[n];
+            double intercept = baseline.getIntercept();
+            for (RatingMatrixEntry r: ratings) {
+                int row = byUser ? r.getUserIndex() : r.getItemIndex();
+                int pos = cursors[row]++;
+                columns[pos] = byUser ? r.getItemIndex() : r.getUserIndex();
+                values[pos] = r.getValue() - intercept - baseline.getUserBias(r.getUserId())
+                        - baseline.getItemBias(r.getItemId());
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleSortedMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.jcip.annotations.ThreadSafe;
+import org.apache.commons.math3.linear.RealVector;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.math.Vectors;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Shared state for runtime fold-in in {@link FunkSVDItemScorer}.  It records a digest of each user's ratings at
+ * build time, so users whose ratings are unchanged keep their trained vectors, and caches folded-in vectors across
+ * recommenders.
+ *
+ * <p>Digests are SHA-256 hashes of the user's (item, rating) pairs in item order.  Cached vectors are stored with
+ * the ratings they were computed from, and are only returned for a user whose current ratings are equal to them.
+ * Cached vectors are not serialized with the engine.</p>
+ *
+ * @since 3.0
+ */
+@Shareable
+@ThreadSafe
+@DefaultProvider(FoldInCache.Builder.class)
+public class FoldInCache implements Serializable {
+    private static final long serialVersionUID = 2L;
+    private static final HashFunction DIGEST = Hashing.sha256();
+
+    private final Long2ObjectMap<byte[]> trainedDigests;
+    private final int cacheSize;
+    private transient Cache<Long, FoldedUser> cache;
+
+    /**
+     * Construct a fold-in cache.
+     * @param digests The rating digests of users at model build time (see {@link #ratingDigest(Long2DoubleMap)}).
+     * @param size The number of folded-in vectors to cache.
+     */
+    public FoldInCache(Long2ObjectMap<byte[]> digests, int size) {
+        trainedDigests = new Long2ObjectOpenHashMap<>(digests);
+        cacheSize = size;
+        cache = makeCache(size);
+    }
+
+    /**
+     * Compute the digest of a rating vector.
+     * @param ratings The rating vector.
+     * @return The SHA-256 digest of the entries of {@code ratings} in key order.
+     */
+    public static byte[] ratingDigest(Long2DoubleMap ratings) {
+        Long2DoubleSortedMap sorted = LongUtils.frozenMap(ratings);
+        Hasher hasher = DIGEST.newHasher();
+        hasher.putInt(sorted.size());
+        for (Long2DoubleMap.Entry e: Vectors.fastEntries(sorted)) {
+            hasher.putLong(e.getLongKey())
+                  .putDouble(e.getDoubleValue());
+        }
+        return hasher.hash().asBytes();
+    }
+
+    /**
+     * Query whether a user's ratings are the ones the model was trained on.
+     * @param user The user ID.
+     * @param ratings The user's current ratings.
+     * @return {@code true} if the user was known at build time with ratings equal to {@code ratings}.
+     */
+    public boolean isTrained(long user, Long2DoubleMap ratings) {
+        byte[] digest = trainedDigests.get(user);
+        return digest != null && Arrays.equals(digest, ratingDigest(ratings));
+    }
+
+    /**
+     * Get a cached vector if the user's ratings are unchanged.
+     * @param user The user ID.
+     * @param ratings The user's current ratings.
+     * @return The cached vector, or {@code null} if there is none computed from {@code ratings}.
+     */
+    @Nullable
+    public RealVector getIfUnchanged(long user, Long2DoubleMap ratings) {
+        if (cache == null) {
+            return null;
+        }
+        FoldedUser fu = cache.getIfPresent(user);
+        if (fu != null && fu.ratings.equals(ratings)) {
+            return fu.vector;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Cache a user's vector.
+     * @param user The user ID.
+     * @param ratings The ratings the vector was computed from.
+     * @param vector The vector.
+     */
+    public void put(long user, Long2DoubleMap ratings, RealVector vector) {
+        if (cache != null) {
+            cache.put(user, new FoldedUser(LongUtils.frozenMap(ratings), vector));
+        }
+    }
+
+    @Nullable
+    private static Cache<Long, FoldedUser> makeCache(int size) {
+        if (size > 0) {
+            return CacheBuilder.newBuilder()
+                               .maximumSize(size)
+                               .build();
+        } else {
+            return null;
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        cache = makeCache(cacheSize);
+    }
+
+    /**
+     * A user vector and the ratings it was computed from.
+     */
+    private static class FoldedUser {
+        private final Long2DoubleMap ratings;
+        private final RealVector vector;
+
+        FoldedUser(Long2DoubleMap ratings, RealVector vector) {
+            this.ratings = ratings;
+            this.vector = vector;
+        }
+    }
+
+    /**
+     * Build the fold-in cache, recording the rating digests of the current users.  If no runtime update rule is
+     * configured, no digests are recorded and the rating data is not scanned.
+     */
+    public static class Builder implements Provider<FoldInCache> {
+        private final RatingVectorPDAO rvDAO;
+        private final boolean enabled;
+        private final int cacheSize;
+
+        /**
+         * Construct a new builder.
+         * @param rvd The rating vector DAO.
+         * @param rule The runtime update rule.
+         * @param size The number of folded-in vectors to cache.
+         */
+        @Inject
+        public Builder(@Transient RatingVectorPDAO rvd,
+                       @Transient @Nullable @RuntimeUpdate FunkSVDUpdateRule rule,
+                       @FoldInCacheSize int size) {
+            rvDAO = rvd;
+            enabled = rule != null;
+            cacheSize = size;
+        }
+
+        @Override
+        public FoldInCache get() {
+            if (!enabled) {
+                return new FoldInCache(Long2ObjectMaps.<byte[]>emptyMap(), 0);
+            }
+            Long2ObjectMap<byte[]> digests = new Long2ObjectOpenHashMap<>();
+            try (ObjectStream<IdBox<Long2DoubleMap>> users = rvDAO.streamUsers()) {
+                for (IdBox<Long2DoubleMap> user: users) {
+                    digests.put(user.getId(), ratingDigest(user.getValue()));
+                }
+            }
+            return new FoldInCache(digests, cacheSize);
+        }
+    }
+}
@@ -24,12 +24,16 @@
  */
 package org.lenskit.mf.funksvd;
 
-import org.apache.commons.math3.linear.RealVector;
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.apache.commons.math3.linear.*;
 import org.grouplens.grapht.annotation.DefaultImplementation;
 import org.lenskit.bias.BiasModel;
 import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.data.ratings.RatingVectorPDAO;
 import org.lenskit.mf.BiasedMFItemScorer;
 import org.lenskit.mf.MFModel;
+import org.lenskit.util.math.Vectors;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -39,9 +43,35 @@ import javax.inject.Inject;
  * Do recommendations and predictions based on SVD matrix factorization.  This extends the {@link BiasedMFItemScorer}
  * to default to using a FunkSVD model, and to clamp predicted ratings to the range of valid ratings (if a preference
  * domain is configured).
+ *
+ * <p>If a {@linkplain RuntimeUpdate runtime update rule} is configured, the scorer folds in each user's current
+ * ratings at score time by solving the regularized least-squares problem for their feature vector against the fixed
+ * item features.  Users whose ratings are the ones the model was trained on keep their trained vectors.  Folded-in
+ * vectors are kept in a shared {@link FoldInCache} (see {@link FoldInCacheSize}) with the ratings they were
+ * computed from, and are reused as long as the user's current ratings are equal to those ratings.</p>
  */
 public class FunkSVDItemScorer extends BiasedMFItemScorer {
     private final PreferenceDomain domain;
+    private final BiasModel biasModel;
+    @Nullable
+    private final FunkSVDUpdateRule rule;
+    @Nullable
+    private final RatingVectorPDAO rvDAO;
+    @Nullable
+    private final FoldInCache foldInCache;
+
+    /**
+     * Construct the item scorer without runtime updates.
+     *
+     * @param model    The model.
+     * @param baseline The baseline scorer.  Be very careful when configuring a different baseline
+     *                 at runtime than at model-build time; such a configuration is unlikely to
+     *                 perform well.
+     * @param dom      The preference domain.
+     */
+    public FunkSVDItemScorer(MFModel model, BiasModel baseline, @Nullable PreferenceDomain dom) {
+        this(model, baseline, dom, null, null, null);
+    }
 
     /**
      * Construct the item scorer.
@@ -51,13 +81,105 @@ public class FunkSVDItemScorer extends BiasedMFItemScorer {
      *                 at runtime than at model-build time; such a configuration is unlikely to
      *                 perform well.
      * @param dom      The preference domain.
+     * @param rule     The runtime update rule, or {@code null} to use the model's user vectors.
+     * @param rvd      The rating vector DAO, used to fold in users if {@code rule} is set.
+     * @param cache    The shared fold-in state, or {@code null} to fold in every user on every request.
      */
     @Inject
     public FunkSVDItemScorer(@DefaultImplementation(FunkSVDModel.class) MFModel model,
                              BiasModel baseline,
-                             @Nullable PreferenceDomain dom) {
+                             @Nullable PreferenceDomain dom,
+                             @Nullable @RuntimeUpdate FunkSVDUpdateRule rule,
+                             @Nullable RatingVectorPDAO rvd,
+                             @Nullable FoldInCache cache) {
         super(model, baseline);
+        Preconditions.checkArgument(rule == null || rvd != null,
+                                    "runtime updates require a rating vector DAO");
         domain = dom;
+        biasModel = baseline;
+        this.rule = rule;
+        rvDAO = rvd;
+        foldInCache = rule != null ? cache : null;
+    }
+
+    @Nullable
+    @Override
+    protected RealVector getUserPreferenceVector(long user) {
+        if (rule == null) {
+            return super.getUserPreferenceVector(user);
+        }
+
+        if (foldInCache == null) {
+            return foldIn(user, rvDAO.userRatingVector(user));
+        }
+
+        Long2DoubleMap ratings = rvDAO.userRatingVector(user);
+        RealVector vec = foldInCache.getIfUnchanged(user, ratings);
+        if (vec != null) {
+            return vec;
+        }
+        if (foldInCache.isTrained(user, ratings)) {
+            vec = super.getUserPreferenceVector(user);
+        }
+        if (vec == null) {
+            vec = foldIn(user, ratings);
+        }
+        if (vec != null) {
+            foldInCache.put(user, ratings, vec);
+        }
+        return vec;
+    }
+
+    /**
+     * Compute a user's feature vector from their ratings with the item features held fixed.
+     *
+     * @param user The user ID.
+     * @param ratings The user's ratings.
+     * @return The user's feature vector, or the model's vector if none of the rated items are in the
+     *         model.
+     */
+    @Nullable
+    private RealVector foldIn(long user, Long2DoubleMap ratings) {
+        MFModel model = super.getModel();
+        int nf = model.getFeatureCount();
+        double userBase = biasModel.getIntercept() + biasModel.getUserBias(user);
+
+        RealMatrix gram = MatrixUtils.createRealMatrix(nf, nf);
+        RealVector rhs = new ArrayRealVector(nf);
+        int n = 0;
+        for (Long2DoubleMap.Entry e: Vectors.fastEntries(ratings)) {
+            long item = e.getLongKey();
+            RealVector ivec = model.getItemVector(item);
+            if (ivec == null) {
+                continue;
+            }
+            double resid = e.getDoubleValue() - userBase - biasModel.getItemBias(item);
+            for (int f = 0; f < nf; f++) {
+                double vf = ivec.getEntry(f);
+                rhs.addToEntry(f, resid * vf);
+                for (int g = 0; g <= f; g++) {
+                    gram.addToEntry(f, g, vf * ivec.getEntry(g));
+                }
+            }
+            n += 1;
+        }
+        if (n == 0) {
+            return super.getUserPreferenceVector(user);
+        }
+
+        double lambda = rule.getTrainingRegularization() * n;
+        for (int f = 0; f < nf; f++) {
+            gram.addToEntry(f, f, lambda);
+            for (int g = 0; g < f; g++) {
+                gram.setEntry(g, f, gram.getEntry(f, g));
+            }
+        }
+
+        try {
+            return new CholeskyDecomposition(gram).getSolver().solve(rhs);
+        } catch (NonPositiveDefiniteMatrixException | SingularMatrixException ex) {
+            return super.getUserPreferenceVector(user);
+        }
     }
 
     @Override
@@ -74,6 +196,11 @@ public class FunkSVDItemScorer extends BiasedMFItemScorer {
         }
     }
 
+    @Override
+    protected boolean isDotProductKernel() {
+        return domain == null;
+    }
+
     @Override
     public FunkSVDModel getModel() {
         return (FunkSVDModel) super.getModel();
@@ -0,0 +1,262 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealVector;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * FunkSVD model builder that trains each feature with parallel stochastic gradient descent.
+ *
+ * <p>Ratings are packed into primitive arrays once, and feature values are updated in place in the
+ * dense per-feature arrays.  Two parallel strategies are available, selected by
+ * {@link TrainingBlockCount}:</p>
+ *
+ * <dl>
+ *     <dt>Hogwild (block count 0)</dt>
+ *     <dd>Contiguous chunks of the rating list are processed concurrently with lock-free updates.
+ *     Conflicting updates to a popular item are rare enough not to matter in practice, but results
+ *     depend on thread scheduling.</dd>
+ *     <dt>Stratified blocking (block count <i>b</i> &gt; 0)</dt>
+ *     <dd>Users and items are split into <i>b</i> blocks each.  Each epoch runs <i>b</i> rounds; in
+ *     round <i>s</i>, user block <i>k</i> is trained against item block <i>(k + s) mod b</i>, so no two
+ *     concurrent tasks share a user or item.  Within a block ratings are visited in rating-matrix order,
+ *     so training is deterministic for a given block count.</dd>
+ * </dl>
+ *
+ * <p>Both strategies visit ratings in a different order than {@link FunkSVDModelProvider}, so the
+ * learned features differ slightly from the sequential trainer's.</p>
+ *
+ * @since 3.0
+ */
+public class ParallelFunkSVDModelProvider extends FunkSVDModelProvider {
+    private static Logger logger = LoggerFactory.getLogger(ParallelFunkSVDModelProvider.class);
+
+    private final int blockCount;
+
+    private int[] userIndices;
+    private int[] itemIndices;
+    private double[] values;
+    /**
+     * Rating positions grouped by stratum (user block * blockCount + item block).
+     */
+    private int[] strata;
+    private int[] strataOffsets;
+
+    @Inject
+    public ParallelFunkSVDModelProvider(@Transient @Nonnull RatingMatrix snapshot,
+                                        @Transient @Nonnull FunkSVDUpdateRule rule,
+                                        @FeatureCount int featureCount,
+                                        @InitialFeatureValue double initVal,
+                                        @TrainingBlockCount int blocks) {
+        super(snapshot, rule, featureCount, initVal);
+        blockCount = blocks;
+    }
+
+    @Override
+    public FunkSVDModel get() {
+        packRatings();
+        if (blockCount > 0) {
+            logger.info("training with {} stratified blocks", blockCount);
+            makeStrata();
+        } else {
+            logger.info("training with lock-free parallel updates");
+        }
+        return super.get();
+    }
+
+    private void packRatings() {
+        List<RatingMatrixEntry> ratings = snapshot.getRatings();
+        int n = ratings.size();
+        userIndices = new int[n];
+        itemIndices = new int[n];
+        values = new double[n];
+        for (int i = 0; i < n; i++) {
+            RatingMatrixEntry r = ratings.get(i);
+            userIndices[i] = r.getUserIndex();
+            itemIndices[i] = r.getItemIndex();
+            values[i] = r.getValue();
+        }
+    }
+
+    private void makeStrata() {
+        int nusers = snapshot.getUserIds().size();
+        int nitems = snapshot.getItemIds().size();
+        int nstrata = blockCount * blockCount;
+        int n = values.length;
+
+        int[] stratumOf = new int[n];
+        strataOffsets = new int[nstrata + 1];
+        for (int i = 0; i < n; i++) {
+            int ub = (int) ((long) userIndices[i] * blockCount / nusers);
+            int ib = (int) ((long) itemIndices[i] * blockCount / nitems);
+            int s = ub * blockCount + ib;
+            stratumOf[i] = s;
+            strataOffsets[s + 1] += 1;
+        }
+        for (int s = 0; s < nstrata; s++) {
+            strataOffsets[s + 1] += strataOffsets[s];
+        }
+        // counting sort, stable so each stratum keeps rating-matrix order
+        int[] cursors = new int[nstrata];
+        System.arraycopy(strataOffsets, 0, cursors, 0, nstrata);
+        strata = new int[n];
+        for (int i = 0; i < n; i++) {
+            strata[cursors[stratumOf[i]]++] = i;
+        }
+    }
+
+    @Override
+    protected double trainFeature(int feature, TrainingEstimator estimates,
+                                  RealVector userFeatureVector, RealVector itemFeatureVector,
+                                  FeatureInfo.Builder fib) {
+        double[] ufv = arrayOf(userFeatureVector);
+        double[] ifv = arrayOf(itemFeatureVector);
+
+        List<RatingMatrixEntry> ratings = snapshot.getRatings();
+        double[] est = new double[values.length];
+        for (int i = 0; i < est.length; i++) {
+            est[i] = estimates.get(ratings.get(i));
+        }
+
+        double oldRMSE = Double.POSITIVE_INFINITY;
+        double rmse = Double.MAX_VALUE * 0.5;
+        double trail = initialValue * initialValue * (featureCount - feature - 1);
+        int epoch = 0;
+        while (rule.keepGoing(epoch, rmse, oldRMSE)) {
+            epoch += 1;
+            oldRMSE = rmse;
+            double sse;
+            if (blockCount > 0) {
+                sse = doBlockedIteration(est, ufv, ifv, trail);
+            } else {
+                sse = doHogwildIteration(est, ufv, ifv, trail);
+            }
+            rmse = Math.sqrt(sse / values.length);
+            fib.addTrainingRound(rmse);
+            logger.trace("iteration {} finished with RMSE {}", epoch, rmse);
+        }
+
+        if (!(userFeatureVector instanceof ArrayRealVector)) {
+            userFeatureVector.setSubVector(0, ufv);
+        }
+        if (!(itemFeatureVector instanceof ArrayRealVector)) {
+            itemFeatureVector.setSubVector(0, ifv);
+        }
+        return rmse;
+    }
+
+    /**
+     * Do one lock-free parallel pass over the ratings.
+     *
+     * @return The sum of squared errors.
+     */
+    private double doHogwildIteration(double[] est, double[] ufv, double[] ifv, double trail) {
+        int n = values.length;
+        int nchunks = Math.max(1, Math.min(n, ForkJoinPool.getCommonPoolParallelism() * 4));
+        return IntStream.range(0, nchunks)
+                        .parallel()
+                        .mapToDouble(c -> {
+                            int lb = (int) ((long) n * c / nchunks);
+                            int ub = (int) ((long) n * (c + 1) / nchunks);
+                            return trainRange(null, lb, ub, est, ufv, ifv, trail);
+                        })
+                        .sum();
+    }
+
+    /**
+     * Do one stratified pass over the ratings.
+     *
+     * @return The sum of squared errors.
+     */
+    private double doBlockedIteration(double[] est, double[] ufv, double[] ifv, double trail) {
+        double[] errors = new double[blockCount * blockCount];
+        for (int round = 0; round < blockCount; round++) {
+            final int shift = round;
+            IntStream.range(0, blockCount)
+                     .parallel()
+                     .forEach(ub -> {
+                         int s = ub * blockCount + (ub + shift) % blockCount;
+                         errors[s] = trainRange(strata, strataOffsets[s], strataOffsets[s + 1],
+                                                est, ufv, ifv, trail);
+                     });
+        }
+        // sum in a fixed order so the RMSE is deterministic too
+        double sse = 0;
+        for (double e: errors) {
+            sse += e;
+        }
+        return sse;
+    }
+
+    /**
+     * Train on a range of ratings.
+     *
+     * @param order The rating positions to use, or {@code null} to use positions directly.
+     * @param lb The start of the range.
+     * @param ub The end of the range.
+     * @return The sum of squared errors in the range.
+     */
+    private double trainRange(int[] order, int lb, int ub,
+                              double[] est, double[] ufv, double[] ifv, double trail) {
+        FunkSVDTrainingUpdater updater = rule.createUpdater();
+        double sse = 0;
+        for (int j = lb; j < ub; j++) {
+            final int i = order != null ? order[j] : j;
+            final int uidx = userIndices[i];
+            final int iidx = itemIndices[i];
+
+            updater.prepare(0, values[i], est[i], ufv[uidx], ifv[iidx], trail);
+            double err = updater.getError();
+            sse += err * err;
+
+            ufv[uidx] += updater.getUserFeatureUpdate();
+            ifv[iidx] += updater.getItemFeatureUpdate();
+        }
+        return sse;
+    }
+
+    /**
+     * Get the backing array of a feature vector, or a copy if it is not array-backed.
+     */
+    private static double[] arrayOf(RealVector vec) {
+        if (vec instanceof ArrayRealVector) {
+            return ((ArrayRealVector) vec).getDataRef();
+        } else {
+            return vec.toArray();
+        }
+    }
+}
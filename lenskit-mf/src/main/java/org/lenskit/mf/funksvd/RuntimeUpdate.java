@@ -30,10 +30,10 @@ import javax.inject.Qualifier;
 import java.lang.annotation.*;
 
 /**
- * Qualifier for the update rule used at runtime.  This update rule is used by the {@linkplain
- * FunkSVDItemScorer item scorer} to train up user preferences at score time, to run on a more
- * updated version of their profile than was available at the last model build.  By default, no
- * score-time updating is done.
+ * Qualifier for the update rule used at runtime.  If an update rule is configured, the {@linkplain
+ * FunkSVDItemScorer item scorer} folds in user preferences at score time, to run on a more
+ * updated version of their profile than was available at the last model build; the rule supplies
+ * the regularization term.  By default, no score-time updating is done.
  *
  * @since 1.1
  */
@@ -0,0 +1,147 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.mips;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.jcip.annotations.Immutable;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+
+/**
+ * Norm-ordered index for maximum inner product search over the item features of a matrix
+ * factorization model.
+ *
+ * <p>Each item's feature vector is extended with its bias, and the user's vector with a 1, so the
+ * inner product is the item-dependent part of a biased MF score.  Items are stored in decreasing
+ * order of the extended vector's norm, in blocks of {@link #BLOCK_SIZE}.  A search scans blocks in
+ * order and stops once the Cauchy-Schwarz bound on the next block's scores (optionally scaled
+ * down, see {@link MIPSBoundScale}) cannot beat the current top-<var>n</var>.</p>
+ *
+ * @since 3.0
+ */
+@DefaultProvider(MIPSIndexProvider.class)
+@Shareable
+@Immutable
+public class MIPSIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of items scored between bound checks.
+     */
+    public static final int BLOCK_SIZE = 64;
+
+    private final int featureCount;
+    private final long[] items;
+    private final double[] vectors;
+    private final double[] norms;
+
+    /**
+     * Construct a new index.
+     *
+     * @param nf The number of features, not counting the bias.
+     * @param items The item IDs, in decreasing order of norm.
+     * @param vecs The extended item vectors, row-major (items x (nf + 1)).
+     * @param norms The norms of the extended item vectors.
+     */
+    MIPSIndex(int nf, long[] items, double[] vecs, double[] norms) {
+        Preconditions.checkArgument(vecs.length == items.length * (nf + 1), "vector array has wrong size");
+        Preconditions.checkArgument(norms.length == items.length, "norm array has wrong size");
+        featureCount = nf;
+        this.items = items;
+        vectors = vecs;
+        this.norms = norms;
+    }
+
+    /**
+     * Get the number of features in the underlying model.
+     * @return The feature count.
+     */
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * Get the number of indexed items.
+     * @return The number of items.
+     */
+    public int getItemCount() {
+        return items.length;
+    }
+
+    /**
+     * Search for the items with the highest inner products with a user vector.
+     *
+     * @param user The user's feature vector (without the bias component).
+     * @param exclude Items to skip, or {@code null} to consider all items.
+     * @param boundScale The bound scale (1.0 for an exact search).
+     * @param accum The accumulator to receive items and their inner products; its capacity is the
+     *              number of items to find.
+     * @return The number of items whose inner products were computed.
+     */
+    public int search(@Nonnull double[] user, @Nullable LongSet exclude, double boundScale,
+                      @Nonnull TopNLong2DoubleAccumulator accum) {
+        Preconditions.checkArgument(user.length == featureCount,
+                                    "user vector has %s entries, expected %s",
+                                    user.length, featureCount);
+        final int dim = featureCount + 1;
+        double unorm = 1;
+        for (double v: user) {
+            unorm += v * v;
+        }
+        unorm = Math.sqrt(unorm);
+
+        int nitems = items.length;
+        int scored = 0;
+        for (int start = 0; start < nitems; start += BLOCK_SIZE) {
+            if (accum.isFull() && !accum.isEmpty()) {
+                double bound = unorm * norms[start] * boundScale;
+                if (bound <= accum.getMinimumScore()) {
+                    break;
+                }
+            }
+            int end = Math.min(start + BLOCK_SIZE, nitems);
+            for (int i = start; i < end; i++) {
+                long item = items[i];
+                if (exclude != null && exclude.contains(item)) {
+                    continue;
+                }
+                int base = i * dim;
+                double dot = vectors[base + featureCount];
+                for (int f = 0; f < featureCount; f++) {
+                    dot += user[f] * vectors[base + f];
+                }
+                accum.put(item, dot);
+                scored++;
+            }
+        }
+        return scored;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.mips;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.inject.Transient;
+import org.lenskit.mf.MFModel;
+import org.lenskit.util.keys.KeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Build a {@link MIPSIndex} from a matrix factorization model and its bias model.
+ *
+ * @since 3.0
+ */
+public class MIPSIndexProvider implements Provider<MIPSIndex> {
+    private static final Logger logger = LoggerFactory.getLogger(MIPSIndexProvider.class);
+
+    private final MFModel model;
+    private final BiasModel biasModel;
+
+    /**
+     * Construct a new index provider.
+     * @param model The MF model whose item features should be indexed.
+     * @param bias The bias model used with the MF model when scoring.
+     */
+    @Inject
+    public MIPSIndexProvider(@Transient MFModel model, @Transient BiasModel bias) {
+        this.model = model;
+        biasModel = bias;
+    }
+
+    @Override
+    public MIPSIndex get() {
+        final int nf = model.getFeatureCount();
+        final int dim = nf + 1;
+        final int n = model.getItemCount();
+        KeyIndex itemIndex = model.getItemIndex();
+
+        double[] rawNorms = new double[n];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            long item = itemIndex.getKey(i);
+            double bias = biasModel.getItemBias(item);
+            double ss = bias * bias;
+            for (int f = 0; f < nf; f++) {
+                double v = model.getItemFeature(item, f);
+                ss += v * v;
+            }
+            rawNorms[i] = Math.sqrt(ss);
+            order[i] = i;
+        }
+        IntArrays.quickSort(order, (i1, i2) -> Double.compare(rawNorms[i2], rawNorms[i1]));
+
+        long[] items = new long[n];
+        double[] vecs = new double[n * dim];
+        double[] norms = new double[n];
+        for (int j = 0; j < n; j++) {
+            int i = order[j];
+            long item = itemIndex.getKey(i);
+            items[j] = item;
+            norms[j] = rawNorms[i];
+            for (int f = 0; f < nf; f++) {
+                vecs[j * dim + f] = model.getItemFeature(item, f);
+            }
+            vecs[j * dim + nf] = biasModel.getItemBias(item);
+        }
+
+        logger.info("built MIPS index over {} items with {} features", n, nf);
+        return new MIPSIndex(nf, items, vecs, norms);
+    }
+}
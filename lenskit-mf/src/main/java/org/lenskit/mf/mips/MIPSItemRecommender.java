@@ -0,0 +1,155 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.mips;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.apache.commons.math3.linear.RealVector;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.lenskit.api.ResultMap;
+import org.lenskit.basic.TopNItemRecommender;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.mf.BiasedMFItemScorer;
+import org.lenskit.results.ResultAccumulator;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Top-N recommender for biased matrix factorization that retrieves candidates from a
+ * {@link MIPSIndex} instead of scoring every item.  The retrieved items are scored with the
+ * configured item scorer, so reported scores match {@link TopNItemRecommender}'s; with a
+ * {@link MIPSBoundScale} of 1.0 and a scorer that ranks by bias plus dot product (such as
+ * {@link BiasedMFItemScorer}), the recommendations are the same too.
+ *
+ * <p>The index is searched with the user vector the scorer itself uses (see
+ * {@link BiasedMFItemScorer#getUserVector(long)}), so users folded in at runtime are searched with
+ * their current vectors.  Requests with an explicit candidate set or unlimited length, users the
+ * scorer has no vector for, and scorers that are not {@link BiasedMFItemScorer}s are handled by
+ * the exhaustive {@link TopNItemRecommender} logic.</p>
+ *
+ * @since 3.0
+ */
+public class MIPSItemRecommender extends TopNItemRecommender {
+    private static final Logger logger = LoggerFactory.getLogger(MIPSItemRecommender.class);
+
+    private final MIPSIndex index;
+    private final double boundScale;
+    private final AtomicLong searchCount = new AtomicLong();
+    private final AtomicLong scoredCount = new AtomicLong();
+
+    @Inject
+    public MIPSItemRecommender(DataAccessObject data, ItemScorer scorer,
+                               MIPSIndex index,
+                               @MIPSBoundScale double scale) {
+        super(data, scorer);
+        this.index = index;
+        boundScale = scale;
+    }
+
+    @Override
+    protected List<Long> recommend(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        return recommendWithDetails(user, n, candidates, exclude).idList();
+    }
+
+    @Override
+    protected ResultList recommendWithDetails(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        RealVector uvec = null;
+        if (candidates == null && n >= 0 && scorer instanceof BiasedMFItemScorer) {
+            uvec = ((BiasedMFItemScorer) scorer).getUserVector(user);
+        }
+        if (uvec == null) {
+            return super.recommendWithDetails(user, n, candidates, exclude);
+        }
+        if (exclude == null) {
+            exclude = getDefaultExcludes(user);
+        }
+
+        TopNLong2DoubleAccumulator accum = new TopNLong2DoubleAccumulator(n);
+        int scored = index.search(uvec.toArray(), exclude, boundScale, accum);
+        searchCount.incrementAndGet();
+        scoredCount.addAndGet(scored);
+        LongList items = accum.finishList();
+        logger.debug("MIPS search for user {} scored {} of {} items",
+                     user, scored, index.getItemCount());
+
+        ResultMap scores = scorer.scoreWithDetails(user, items);
+        ResultAccumulator results = ResultAccumulator.create(n);
+        for (Result r: scores) {
+            results.add(r);
+        }
+        return results.finish();
+    }
+
+    /**
+     * Measure the recall of this recommender's list against exhaustive top-<var>n</var> scoring.
+     * This is an evaluation hook for tuning {@link MIPSBoundScale}.
+     *
+     * @param user The user ID.
+     * @param n The list length.
+     * @return The fraction of the exhaustive top-<var>n</var> items that the index-based list
+     *         also contains (1.0 if the exhaustive list is empty).
+     */
+    public double measureRecall(long user, int n) {
+        List<Long> exact = super.recommendWithDetails(user, n, null, null).idList();
+        if (exact.isEmpty()) {
+            return 1.0;
+        }
+        Set<Long> approx = new HashSet<>(recommend(user, n, null, null));
+        int found = 0;
+        for (Long item: exact) {
+            if (approx.contains(item)) {
+                found += 1;
+            }
+        }
+        return found / (double) exact.size();
+    }
+
+    /**
+     * Get the number of index searches performed.
+     * @return The number of searches.
+     */
+    public long getSearchCount() {
+        return searchCount.get();
+    }
+
+    /**
+     * Get the total number of items scored by index searches, for comparison with
+     * {@link #getSearchCount()} times the catalog size.
+     * @return The number of item inner products computed.
+     */
+    public long getScoredItemCount() {
+        return scoredCount.get();
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.math3.special.Gamma;
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.grouplens.lenskit.iterative.StoppingThreshold;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.keys.KeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel HPF recommender builder over primitive arrays.
+ *
+ * <p>This computes the same mean-field variational updates as {@link HPFModelProvider}, but keeps all
+ * variational parameters in row-major {@code double} arrays and runs every phase in parallel.  The
+ * expected log weights (digamma and log terms) are computed once per user and item per iteration rather
+ * than once per rating.  The rating pass is partitioned into contiguous blocks of users with roughly equal
+ * rating counts; each block accumulates its own item shape updates, which are summed in the item update.
+ * The time taken by each iteration is logged.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class DenseHPFModelProvider implements Provider<HPFModel> {
+    private static Logger logger = LoggerFactory.getLogger(DenseHPFModelProvider.class);
+
+    private final DataSplitStrategy ratings;
+    private final PFHyperParameters hyperParameters;
+    private final int iterationFrequency;
+    private final double maxOffsetShp;
+    private final double maxOffsetRte;
+    private final long rndSeed;
+    private final boolean isProbPrediction;
+    private final double threshold;
+    private final int maxIterCount;
+
+    @Inject
+    public DenseHPFModelProvider(@Transient DataSplitStrategy rndRatings,
+                                 PFHyperParameters hyperParams,
+                                 @ConvergenceCheckFrequency int iterFreq,
+                                 @RandomSeed int seed,
+                                 @MaxRandomOffsetForShape double maxOffS,
+                                 @MaxRandomOffsetForRate double maxOffR,
+                                 @IsProbabilityPrediction boolean probPred,
+                                 @StoppingThreshold double threshld,
+                                 @IterationCount int maxIter) {
+        ratings = rndRatings;
+        hyperParameters = hyperParams;
+        iterationFrequency = iterFreq;
+        rndSeed = seed;
+        maxOffsetShp = maxOffS;
+        maxOffsetRte = maxOffR;
+        isProbPrediction = probPred;
+        threshold = threshld;
+        maxIterCount = maxIter;
+    }
+
+    @Override
+    public HPFModel get() {
+        final int userNum = ratings.getUserIndex().size();
+        final int itemNum = ratings.getItemIndex().size();
+        final int featureCount = hyperParameters.getFeatureCount();
+        final double a = hyperParameters.getUserWeightShpPrior();
+        final double aPrime = hyperParameters.getUserActivityShpPrior();
+        final double bPrime = hyperParameters.getUserActivityPriorMean();
+        final double c = hyperParameters.getItemWeightShpPrior();
+        final double cPrime = hyperParameters.getItemActivityShpPrior();
+        final double dPrime = hyperParameters.getItemActivityPriorMean();
+        final double kappaShpU = aPrime + featureCount * a;
+        final double tauShpI = cPrime + featureCount * c;
+        final double kappaRteFirstTerm = aPrime / bPrime;
+        final double tauRteFirstTerm = cPrime / dPrime;
+
+        final Params users = new Params(userNum, featureCount);
+        final Params items = new Params(itemNum, featureCount);
+        initialize(users, items);
+        logger.info("initialization finished");
+
+        final TrainRatings train = new TrainRatings(ratings.getTrainRatings(), userNum);
+        final int[] blocks = train.partition(Runtime.getRuntime().availableProcessors());
+        final int nblocks = blocks.length - 1;
+        final double[][] itemAccumulators = new double[nblocks][itemNum * featureCount];
+        final double[] gammaShpNext = new double[userNum * featureCount];
+        logger.debug("partitioned {} training ratings into {} blocks", train.size(), nblocks);
+
+        final List<RatingMatrixEntry> validation = ratings.getValidationRatings();
+        double avgPLLPre = Double.MAX_VALUE;
+        double avgPLLCurr;
+        double diffPLL = 1.0;
+        int iterCount = 1;
+
+        StopWatch timer = new StopWatch();
+        while (iterCount < maxIterCount && diffPLL > threshold) {
+            timer.reset();
+            timer.start();
+
+            users.computeExpectedLogs();
+            items.computeExpectedLogs();
+
+            // update phi, accumulating user shapes in place and item shapes per block
+            Arrays.fill(gammaShpNext, a);
+            IntStream.range(0, nblocks).parallel().forEach(b -> {
+                double[] itemAcc = itemAccumulators[b];
+                Arrays.fill(itemAcc, 0);
+                double[] phi = new double[featureCount];
+                for (int u = blocks[b]; u < blocks[b + 1]; u++) {
+                    int ub = u * featureCount;
+                    for (int j = train.userOffsets[u]; j < train.userOffsets[u + 1]; j++) {
+                        int ib = train.items[j] * featureCount;
+                        double max = Double.NEGATIVE_INFINITY;
+                        for (int k = 0; k < featureCount; k++) {
+                            double v = users.expectedLog[ub + k] + items.expectedLog[ib + k];
+                            phi[k] = v;
+                            if (v > max) {
+                                max = v;
+                            }
+                        }
+                        double sum = 0;
+                        for (int k = 0; k < featureCount; k++) {
+                            phi[k] = Math.exp(phi[k] - max);
+                            sum += phi[k];
+                        }
+                        double rating = train.values[j];
+                        double scale = (rating > 1 ? rating : 1) / sum;
+                        for (int k = 0; k < featureCount; k++) {
+                            double value = phi[k] * scale;
+                            gammaShpNext[ub + k] += value;
+                            itemAcc[ib + k] += value;
+                        }
+                    }
+                }
+            });
+
+            // update user parameters
+            final double[] itemWeightSums = items.sumExpectedWeights();
+            IntStream.range(0, userNum).parallel().forEach(u -> {
+                int ub = u * featureCount;
+                double gammaRteUKFirstTerm = users.activityShp[u] / users.activityRte[u];
+                double kappaRteU = 0.0;
+                for (int k = 0; k < featureCount; k++) {
+                    double gammaShpUK = gammaShpNext[ub + k];
+                    double gammaRteUK = itemWeightSums[k] + gammaRteUKFirstTerm;
+                    users.weightShp[ub + k] = gammaShpUK;
+                    users.weightRte[ub + k] = gammaRteUK;
+                    kappaRteU += gammaShpUK / gammaRteUK;
+                }
+                users.activityRte[u] = kappaRteU + kappaRteFirstTerm;
+            });
+
+            // update item parameters
+            final double[] userWeightSums = users.sumExpectedWeights();
+            IntStream.range(0, itemNum).parallel().forEach(i -> {
+                int ib = i * featureCount;
+                double lambdaRteFirstTerm = items.activityShp[i] / items.activityRte[i];
+                double tauRteI = 0.0;
+                for (int k = 0; k < featureCount; k++) {
+                    double lambdaShpIK = c;
+                    for (double[] acc: itemAccumulators) {
+                        lambdaShpIK += acc[ib + k];
+                    }
+                    double lambdaRteIK = userWeightSums[k] + lambdaRteFirstTerm;
+                    items.weightShp[ib + k] = lambdaShpIK;
+                    items.weightRte[ib + k] = lambdaRteIK;
+                    tauRteI += lambdaShpIK / lambdaRteIK;
+                }
+                items.activityRte[i] = tauRteI + tauRteFirstTerm;
+            });
+
+            if (iterCount == 1) {
+                Arrays.fill(users.activityShp, kappaShpU);
+                Arrays.fill(items.activityShp, tauShpI);
+            }
+
+            // compute average predictive log likelihood of validation data per {@code iterationfrequency} iterations
+            if ((iterCount % iterationFrequency) == 0) {
+                avgPLLCurr = validation.parallelStream()
+                                       .mapToDouble(e -> predictiveLogLikelihood(e, users, items))
+                                       .sum();
+                avgPLLCurr = avgPLLCurr / validation.size();
+                diffPLL = Math.abs((avgPLLCurr - avgPLLPre) / avgPLLPre);
+                avgPLLPre = avgPLLCurr;
+                logger.info("iteration {} with current average predictive log likelihood {} and the change is {}",
+                            iterCount, avgPLLCurr, diffPLL);
+            }
+
+            timer.stop();
+            logger.info("iteration {} finished in {}", iterCount, timer);
+            iterCount++;
+        }
+
+        KeyIndex uidx = ratings.getUserIndex();
+        KeyIndex iidx = ratings.getItemIndex();
+
+        return new HPFModel(featureCount, users.expectedWeights(), items.expectedWeights(), uidx, iidx);
+    }
+
+    /**
+     * Initialize the variational parameters.  This draws random values in the same order as
+     * {@link HPFModelProvider#initialize}, so both providers start from the same point for a given seed.
+     */
+    private void initialize(Params users, Params items) {
+        final int featureCount = hyperParameters.getFeatureCount();
+        final double a = hyperParameters.getUserWeightShpPrior();
+        final double aPrime = hyperParameters.getUserActivityShpPrior();
+        final double c = hyperParameters.getItemWeightShpPrior();
+        final double cPrime = hyperParameters.getItemActivityShpPrior();
+        Random random = new Random(rndSeed);
+        final double kRte = aPrime + featureCount;
+        final double tRte = cPrime + featureCount;
+
+        for (int u = 0; u < users.count; u++) {
+            for (int k = 0; k < featureCount; k++) {
+                users.weightShp[u * featureCount + k] = a + maxOffsetShp * random.nextDouble();
+                users.weightRte[u * featureCount + k] = aPrime + maxOffsetRte * random.nextDouble();
+            }
+            users.activityRte[u] = kRte;
+            users.activityShp[u] = aPrime + maxOffsetShp * random.nextDouble();
+        }
+
+        for (int i = 0; i < items.count; i++) {
+            for (int k = 0; k < featureCount; k++) {
+                items.weightShp[i * featureCount + k] = c + maxOffsetShp * random.nextDouble();
+                items.weightRte[i * featureCount + k] = cPrime + maxOffsetRte * random.nextDouble();
+            }
+            items.activityRte[i] = tRte;
+            items.activityShp[i] = cPrime + maxOffsetShp * random.nextDouble();
+        }
+    }
+
+    private double predictiveLogLikelihood(RatingMatrixEntry entry, Params users, Params items) {
+        final int featureCount = users.featureCount;
+        int ub = entry.getUserIndex() * featureCount;
+        int ib = entry.getItemIndex() * featureCount;
+        double rating = entry.getValue();
+        double eThetaBeta = 0.0;
+        for (int k = 0; k < featureCount; k++) {
+            double eThetaUK = users.weightShp[ub + k] / users.weightRte[ub + k];
+            double eBetaIK = items.weightShp[ib + k] / items.weightRte[ib + k];
+            eThetaBeta += eThetaUK * eBetaIK;
+        }
+        if (isProbPrediction) {
+            return (rating == 0) ? (-eThetaBeta) : Math.log(1 - Math.exp(-eThetaBeta));
+        } else {
+            return rating * Math.log(eThetaBeta) - eThetaBeta - Gamma.logGamma(rating + 1);
+        }
+    }
+
+    /**
+     * Variational parameters for users or items, stored row-major.
+     */
+    private static class Params {
+        final int count;
+        final int featureCount;
+        final double[] weightShp;
+        final double[] weightRte;
+        final double[] activityShp;
+        final double[] activityRte;
+        final double[] expectedLog;
+
+        Params(int n, int k) {
+            count = n;
+            featureCount = k;
+            weightShp = new double[n * k];
+            weightRte = new double[n * k];
+            activityShp = new double[n];
+            activityRte = new double[n];
+            expectedLog = new double[n * k];
+        }
+
+        /**
+         * Compute E[log weight] = digamma(shape) - log(rate) for every entry.
+         */
+        void computeExpectedLogs() {
+            IntStream.range(0, count).parallel().forEach(r -> {
+                for (int j = r * featureCount; j < (r + 1) * featureCount; j++) {
+                    expectedLog[j] = Gamma.digamma(weightShp[j]) - Math.log(weightRte[j]);
+                }
+            });
+        }
+
+        /**
+         * Sum E[weight] = shape / rate over all rows, per feature.
+         */
+        double[] sumExpectedWeights() {
+            double[] sums = new double[featureCount];
+            IntStream.range(0, featureCount).parallel().forEach(k -> {
+                double sum = 0;
+                for (int j = k; j < weightShp.length; j += featureCount) {
+                    sum += weightShp[j] / weightRte[j];
+                }
+                sums[k] = sum;
+            });
+            return sums;
+        }
+
+        double[] expectedWeights() {
+            double[] weights = new double[weightShp.length];
+            for (int j = 0; j < weights.length; j++) {
+                weights[j] = weightShp[j] / weightRte[j];
+            }
+            return weights;
+        }
+    }
+
+    /**
+     * Positive training ratings grouped by user.
+     */
+    private static class TrainRatings {
+        final int[] userOffsets;
+        final int[] items;
+        final double[] values;
+
+        TrainRatings(List<RatingMatrixEntry> train, int userNum) {
+            userOffsets = new int[userNum + 1];
+            int n = 0;
+            for (RatingMatrixEntry e: train) {
+                if (e.getValue() > 0) {
+                    userOffsets[e.getUserIndex() + 1] += 1;
+                    n++;
+                }
+            }
+            for (int u = 0; u < userNum; u++) {
+                userOffsets[u + 1] += userOffsets[u];
+            }
+            int[] cursors = Arrays.copyOf(userOffsets, userNum);
+            items = new int[n];
+            values = new double[n];
+            for (RatingMatrixEntry e: train) {
+                if (e.getValue() > 0) {
+                    int pos = cursors[e.getUserIndex()]++;
+                    items[pos] = e.getItemIndex();
+                    values[pos] = e.getValue();
+                }
+            }
+        }
+
+        int size() {
+            return values.length;
+        }
+
+        /**
+         * Split the users into contiguous blocks with roughly equal numbers of ratings.
+         *
+         * @param n The desired number of blocks.
+         * @return The block boundaries (user indices); block {@code b} is {@code [bounds[b], bounds[b+1])}.
+         */
+        int[] partition(int n) {
+            int userNum = userOffsets.length - 1;
+            n = Math.max(1, Math.min(n, userNum));
+            int[] bounds = new int[n + 1];
+            int u = 0;
+            for (int b = 1; b < n; b++) {
+                long target = (long) size() * b / n;
+                while (u < userNum && userOffsets[u] < target) {
+                    u++;
+                }
+                bounds[b] = Math.max(u, bounds[b - 1]);
+            }
+            bounds[n] = userNum;
+            return bounds;
+        }
+    }
+}
@@ -55,4 +55,17 @@ public final class HPFModel extends MFModel {
                     KeyIndex uidx, KeyIndex iidx) {
         super(umat, imat, uidx, iidx);
     }
+
+    /**
+     * Construct a Poisson Factorization Model from packed feature arrays.  The arrays are not copied.
+     * @param nfeatures The number of features.
+     * @param ufeats The user features, row-major (users x features).
+     * @param ifeats The item features, row-major (items x features).
+     * @param uidx The user index mapping
+     * @param iidx The item index mapping
+     */
+    public HPFModel(int nfeatures, double[] ufeats, double[] ifeats,
+                    KeyIndex uidx, KeyIndex iidx) {
+        super(nfeatures, ufeats, ifeats, uidx, iidx);
+    }
 }
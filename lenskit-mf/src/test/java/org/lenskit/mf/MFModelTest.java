@@ -0,0 +1,129 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.keys.HashKeyIndex;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MFModelTest {
+    private RealMatrix umat;
+    private RealMatrix imat;
+    private MFModel model;
+
+    @Before
+    public void createModel() {
+        umat = MatrixUtils.createRealMatrix(new double[][]{
+                {0.1, 0.3},
+                {-0.2, 0.2},
+                {0.0, 0.15}
+        });
+        HashKeyIndex uidx = new HashKeyIndex();
+        uidx.internId(1);
+        uidx.internId(5);
+        uidx.internId(3);
+
+        imat = MatrixUtils.createRealMatrix(new double[][]{
+                {0.52, 0.29},
+                {0.3, -1.2}
+        });
+        HashKeyIndex iidx = new HashKeyIndex();
+        iidx.internId(42);
+        iidx.internId(39);
+
+        model = new MFModel(umat, imat, uidx, iidx);
+    }
+
+    @Test
+    public void testMatrixViews() {
+        assertThat(model.getFeatureCount(), equalTo(2));
+        assertThat(model.getUserMatrix(), equalTo(umat));
+        assertThat(model.getItemMatrix(), equalTo(imat));
+        assertThat(model.getUserVector(5).toArray(), equalTo(new double[]{-0.2, 0.2}));
+        assertThat(model.getItemVector(39).toArray(), equalTo(new double[]{0.3, -1.2}));
+        assertThat(model.getItemVector(17), nullValue());
+        assertThat(model.getItemFeature(42, 1), equalTo(0.29));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testMatrixViewIsReadOnly() {
+        model.getUserMatrix().setEntry(0, 0, 1.0);
+    }
+
+    @Test
+    public void testComputeItemScores() {
+        double[] user = {0.1, 0.3};
+        Long2DoubleMap scores = model.computeItemScores(user, LongUtils.packedSet(39, 42, 17));
+        assertThat(scores.size(), equalTo(2));
+        assertThat(scores.containsKey(17L), equalTo(false));
+        assertThat(scores.get(42L), closeTo(0.1 * 0.52 + 0.3 * 0.29, 1.0e-10));
+        assertThat(scores.get(39L), closeTo(0.1 * 0.3 - 0.3 * 1.2, 1.0e-10));
+    }
+
+    @Test
+    public void testPackedConstructor() {
+        MFModel packed = new MFModel(2, new double[]{0.1, 0.3, -0.2, 0.2, 0.0, 0.15},
+                                     new double[]{0.52, 0.29, 0.3, -1.2},
+                                     model.getUserIndex(), model.getItemIndex());
+        assertThat(packed.getUserMatrix(), equalTo(umat));
+        assertThat(packed.getItemMatrix(), equalTo(imat));
+    }
+
+    @Test
+    public void testSerialize() {
+        MFModel copy = SerializationUtils.clone(model);
+        assertThat(copy.getUserMatrix(), equalTo(umat));
+        assertThat(copy.getItemMatrix(), equalTo(imat));
+        assertThat(copy.getUserIndex().getKeyList(), equalTo(model.getUserIndex().getKeyList()));
+    }
+
+    @Test
+    public void testCopyEmptyMatrix() {
+        MFModel empty = new MFModel(2, new double[0], new double[]{0.52, 0.29, 0.3, -1.2},
+                                    new HashKeyIndex(), model.getItemIndex());
+        RealMatrix copy = empty.getUserMatrix().copy();
+        assertThat(copy.getRowDimension(), equalTo(0));
+        assertThat(copy.getColumnDimension(), equalTo(2));
+        assertThat(empty.getItemMatrix().copy(), equalTo(imat));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectOverflowingSize() {
+        // 2^16 users x 2^16 features wraps to 0 in int arithmetic
+        HashKeyIndex uidx = new HashKeyIndex();
+        for (long u = 0; u < 65536; u++) {
+            uidx.internId(u);
+        }
+        new MFModel(65536, new double[0], new double[0], uidx, new HashKeyIndex());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.als;
+
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.api.Result;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.bias.UserItemBiasModel;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.PackedRatingMatrix;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.mf.BiasedMFItemScorer;
+import org.lenskit.mf.MFModel;
+import org.lenskit.mf.funksvd.FeatureCount;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ALSModelProviderTest {
+    private List<Rating> ratings;
+    private DataAccessObject dao;
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (long user = 1; user <= 40; user++) {
+            for (long item = 100; item < 130; item++) {
+                if (rng.nextDouble() < 0.4) {
+                    ratings.add(Rating.create(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+        dao = StaticDataSource.fromList(ratings).get();
+    }
+
+    private LenskitConfiguration makeConfig() {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(BiasedMFItemScorer.class);
+        config.bind(RatingMatrix.class).to(PackedRatingMatrix.class);
+        config.bind(BiasModel.class).to(UserItemBiasModel.class);
+        config.bind(MFModel.class).toProvider(ALSModelProvider.class);
+        config.set(IterationCount.class).to(10);
+        config.set(FeatureCount.class).to(5);
+        return config;
+    }
+
+    @Test
+    public void testSolveCholesky() {
+        // [4 2; 2 3] x = [2; 1] => x = [0.5; 0]
+        double[] a = {4, 2, 2, 3};
+        double[] b = {2, 1};
+        ALSModelProvider.solveCholesky(a, b, 2);
+        assertThat(b[0], closeTo(0.5, 1.0e-10));
+        assertThat(b[1], closeTo(0.0, 1.0e-10));
+    }
+
+    @Test
+    public void testTrainModel() throws RecommenderBuildException {
+        try (LenskitRecommender rec = LenskitRecommender.build(makeConfig(), dao)) {
+            MFModel model = rec.get(MFModel.class);
+            assertThat(model.getFeatureCount(), equalTo(5));
+            assertThat(model.getUserCount(), equalTo(40));
+
+            ItemScorer scorer = rec.getItemScorer();
+            assertThat(scorer, instanceOf(BiasedMFItemScorer.class));
+            double sse = 0;
+            for (Rating r: ratings) {
+                Result score = scorer.score(r.getUserId(), r.getItemId());
+                assertThat(score, notNullValue());
+                assertThat(Double.isFinite(score.getScore()), equalTo(true));
+                double err = r.getValue() - score.getScore();
+                sse += err * err;
+            }
+            // 5 features on sparse random data should fit the training set closely
+            assertThat(Math.sqrt(sse / ratings.size()), lessThan(1.0));
+        }
+    }
+}
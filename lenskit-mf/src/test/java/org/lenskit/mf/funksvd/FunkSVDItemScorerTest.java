@@ -0,0 +1,202 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.bias.UserItemBiasModel;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.mf.BiasedMFItemScorer;
+import org.lenskit.mf.MFModel;
+import org.lenskit.util.keys.HashKeyIndex;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class FunkSVDItemScorerTest {
+    private static final double REG = 0.1;
+    private RealMatrix imat;
+    private MFModel model;
+    private BiasModel bias;
+    private DataAccessObject dao;
+
+    @Before
+    public void setup() {
+        RealMatrix umat = MatrixUtils.createRealMatrix(new double[][]{{0.5, -0.5}});
+        HashKeyIndex uidx = new HashKeyIndex();
+        uidx.internId(1);
+        imat = MatrixUtils.createRealMatrix(new double[][]{
+                {0.4, 0.1},
+                {-0.2, 0.7},
+                {0.3, 0.3}
+        });
+        HashKeyIndex iidx = new HashKeyIndex();
+        iidx.internId(10);
+        iidx.internId(20);
+        iidx.internId(30);
+        model = new MFModel(umat, imat, uidx, iidx);
+        bias = new UserItemBiasModel(3.0, Long2DoubleMaps.EMPTY_MAP, Long2DoubleMaps.EMPTY_MAP);
+
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(42, 10, 4.0));
+        rs.add(Rating.create(42, 20, 2.0));
+        rs.add(Rating.create(42, 99, 5.0));
+        dao = StaticDataSource.fromList(rs).get();
+    }
+
+    private FunkSVDUpdateRule makeRule() {
+        return new FunkSVDUpdateRule(0.001, REG, bias, null, 10, 0, 0);
+    }
+
+    private FoldInCache makeCache(DataAccessObject data, int cacheSize) {
+        return new FoldInCache.Builder(new StandardRatingVectorPDAO(data), makeRule(), cacheSize).get();
+    }
+
+    private FunkSVDItemScorer makeScorer(DataAccessObject data, FoldInCache cache) {
+        return new FunkSVDItemScorer(model, bias, null, makeRule(),
+                                     new StandardRatingVectorPDAO(data), cache);
+    }
+
+    private FunkSVDItemScorer makeScorer(int cacheSize) {
+        return makeScorer(dao, makeCache(dao, cacheSize));
+    }
+
+    @Test
+    public void testNoRuntimeUpdate() {
+        FunkSVDItemScorer scorer = new FunkSVDItemScorer(model, bias, null);
+        assertThat(scorer.score(42, 10), nullValue());
+        assertThat(scorer.getUserPreferenceVector(1), notNullValue());
+    }
+
+    @Test
+    public void testFoldInSolvesNormalEquations() {
+        FunkSVDItemScorer scorer = makeScorer(0);
+        RealVector p = scorer.getUserPreferenceVector(42);
+        assertThat(p, notNullValue());
+
+        // item 99 is not in the model, so only items 10 and 20 contribute
+        double[] resid = {4.0 - 3.0, 2.0 - 3.0};
+        int[] rows = {0, 1};
+        for (int f = 0; f < 2; f++) {
+            double lhs = REG * 2 * p.getEntry(f);
+            double rhs = 0;
+            for (int j = 0; j < 2; j++) {
+                double[] q = imat.getRow(rows[j]);
+                lhs += q[f] * (q[0] * p.getEntry(0) + q[1] * p.getEntry(1));
+                rhs += q[f] * resid[j];
+            }
+            assertThat(lhs, closeTo(rhs, 1.0e-10));
+        }
+
+        Result score = scorer.score(42, 30);
+        assertThat(score, notNullValue());
+        assertThat(score.getScore(),
+                   closeTo(3.0 + 0.3 * p.getEntry(0) + 0.3 * p.getEntry(1), 1.0e-10));
+    }
+
+    @Test
+    public void testFoldInCache() {
+        // the cache is shared across scorers, as it is across recommenders
+        FoldInCache cache = makeCache(dao, 10);
+        RealVector p1 = makeScorer(dao, cache).getUserPreferenceVector(42);
+        RealVector p2 = makeScorer(dao, cache).getUserPreferenceVector(42);
+        assertThat(p2, sameInstance(p1));
+
+        FunkSVDItemScorer uncached = makeScorer(0);
+        assertThat(uncached.getUserPreferenceVector(42), not(sameInstance(uncached.getUserPreferenceVector(42))));
+        assertThat(uncached.getUserPreferenceVector(42), equalTo(p1));
+
+        // new ratings invalidate the cached vector
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(42, 10, 4.0));
+        rs.add(Rating.create(42, 20, 2.0));
+        rs.add(Rating.create(42, 30, 5.0));
+        DataAccessObject updated = StaticDataSource.fromList(rs).get();
+        RealVector p3 = makeScorer(updated, cache).getUserPreferenceVector(42);
+        assertThat(p3, not(equalTo(p1)));
+    }
+
+    @Test
+    public void testFoldInCacheNoticesSameSizeEdits() {
+        FoldInCache cache = makeCache(dao, 10);
+        RealVector p1 = makeScorer(dao, cache).getUserPreferenceVector(42);
+
+        // change one rating value, keeping the number of ratings in the user and in the data
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(42, 10, 1.0));
+        rs.add(Rating.create(42, 20, 2.0));
+        rs.add(Rating.create(42, 99, 5.0));
+        DataAccessObject edited = StaticDataSource.fromList(rs).get();
+        RealVector p2 = makeScorer(edited, cache).getUserPreferenceVector(42);
+        assertThat(p2, not(equalTo(p1)));
+        assertThat(p2, equalTo(makeScorer(edited, makeCache(edited, 0)).getUserPreferenceVector(42)));
+    }
+
+    @Test
+    public void testTrainedUsersKeepModelVectors() {
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(1, 10, 4.0));
+        rs.add(Rating.create(1, 20, 2.0));
+        DataAccessObject trained = StaticDataSource.fromList(rs).get();
+        FoldInCache cache = makeCache(trained, 10);
+        RealVector modelVector = model.getUserVector(1);
+        assertThat(makeScorer(trained, cache).getUserPreferenceVector(1), equalTo(modelVector));
+
+        // once the user's ratings change, they are folded in
+        rs.add(Rating.create(1, 30, 5.0));
+        DataAccessObject updated = StaticDataSource.fromList(rs).get();
+        RealVector folded = makeScorer(updated, cache).getUserPreferenceVector(1);
+        assertThat(folded, notNullValue());
+        assertThat(folded, not(equalTo(modelVector)));
+    }
+
+    @Test
+    public void testSubclassKernelIsUsed() {
+        BiasedMFItemScorer scorer = new BiasedMFItemScorer(model, bias) {
+            @Override
+            protected double computeScore(double bias, @Nonnull RealVector user, @Nonnull RealVector item) {
+                return bias + 2 * user.dotProduct(item);
+            }
+        };
+        Result score = scorer.score(1, 30);
+        assertThat(score, notNullValue());
+        assertThat(score.getScore(), closeTo(3.0 + 2 * (0.5 * 0.3 - 0.5 * 0.3), 1.0e-10));
+        score = scorer.score(1, 10);
+        assertThat(score.getScore(), closeTo(3.0 + 2 * (0.5 * 0.4 - 0.5 * 0.1), 1.0e-10));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.bias.UserItemBiasModel;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.PackedRatingMatrix;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ParallelFunkSVDModelProviderTest {
+    private List<Rating> ratings;
+    private DataAccessObject dao;
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        List<Rating> rs = new ArrayList<>();
+        for (long user = 1; user <= 40; user++) {
+            for (long item = 100; item < 130; item++) {
+                if (rng.nextDouble() < 0.4) {
+                    rs.add(Rating.create(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+        ratings = rs;
+        dao = StaticDataSource.fromList(rs).get();
+    }
+
+    private LenskitConfiguration makeConfig(Class<? extends FunkSVDModelProvider> provider, int iterations) {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(RatingMatrix.class).to(PackedRatingMatrix.class);
+        config.bind(BiasModel.class).to(UserItemBiasModel.class);
+        config.bind(FunkSVDModel.class).toProvider(provider);
+        config.set(IterationCount.class).to(iterations);
+        config.set(FeatureCount.class).to(5);
+        return config;
+    }
+
+    private FunkSVDModel buildModel(int blocks) throws RecommenderBuildException {
+        LenskitConfiguration config = makeConfig(ParallelFunkSVDModelProvider.class, 10);
+        config.set(TrainingBlockCount.class).to(blocks);
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            return rec.get(FunkSVDModel.class);
+        }
+    }
+
+    /**
+     * Train a model and compute its RMSE over the training ratings.
+     */
+    private double trainingRMSE(LenskitConfiguration config) throws RecommenderBuildException {
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            FunkSVDModel model = rec.get(FunkSVDModel.class);
+            BiasModel bias = rec.get(BiasModel.class);
+            double sse = 0;
+            for (Rating r: ratings) {
+                double pred = bias.getIntercept() + bias.getUserBias(r.getUserId()) + bias.getItemBias(r.getItemId())
+                        + model.getUserVector(r.getUserId()).dotProduct(model.getItemVector(r.getItemId()));
+                double err = r.getValue() - pred;
+                sse += err * err;
+            }
+            return Math.sqrt(sse / ratings.size());
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws RecommenderBuildException {
+        double sequential = trainingRMSE(makeConfig(FunkSVDModelProvider.class, 50));
+
+        LenskitConfiguration hogwild = makeConfig(ParallelFunkSVDModelProvider.class, 50);
+        hogwild.set(TrainingBlockCount.class).to(0);
+        LenskitConfiguration blocked = makeConfig(ParallelFunkSVDModelProvider.class, 50);
+        blocked.set(TrainingBlockCount.class).to(3);
+
+        // rating order differs, so the models differ, but they should fit the data about as well
+        assertThat(trainingRMSE(hogwild), closeTo(sequential, 0.02 * sequential));
+        assertThat(trainingRMSE(blocked), closeTo(sequential, 0.02 * sequential));
+    }
+
+    @Test
+    public void testHogwildTraining() throws RecommenderBuildException {
+        FunkSVDModel model = buildModel(0);
+        assertThat(model.getFeatureCount(), equalTo(5));
+        assertThat(model.getUserCount(), equalTo(40));
+        for (FeatureInfo feat: model.getFeatureInfo()) {
+            assertThat(feat.getIterCount(), equalTo(10));
+            assertThat(Double.isNaN(feat.getLastRMSE()), equalTo(false));
+        }
+        RealMatrix umat = model.getUserMatrix();
+        for (int u = 0; u < umat.getRowDimension(); u++) {
+            for (int f = 0; f < umat.getColumnDimension(); f++) {
+                assertThat(Double.isFinite(umat.getEntry(u, f)), equalTo(true));
+            }
+        }
+    }
+
+    @Test
+    public void testBlockedTrainingIsDeterministic() throws RecommenderBuildException {
+        FunkSVDModel m1 = buildModel(3);
+        FunkSVDModel m2 = buildModel(3);
+        assertThat(m1.getUserMatrix(), equalTo(m2.getUserMatrix()));
+        assertThat(m1.getItemMatrix(), equalTo(m2.getItemMatrix()));
+        for (int f = 0; f < 5; f++) {
+            assertThat(m1.getFeatureInfo(f).getTrainingErrors(),
+                       equalTo(m2.getFeatureInfo(f).getTrainingErrors()));
+        }
+    }
+}
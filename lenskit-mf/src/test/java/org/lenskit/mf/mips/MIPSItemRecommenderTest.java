@@ -0,0 +1,143 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.mips;
+
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.ItemRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.api.ResultList;
+import org.lenskit.basic.TopNItemRecommender;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.bias.UserItemBiasModel;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.PackedRatingMatrix;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.mf.BiasedMFItemScorer;
+import org.lenskit.mf.MFModel;
+import org.lenskit.mf.als.ALSModelProvider;
+import org.lenskit.mf.funksvd.FeatureCount;
+import org.lenskit.mf.funksvd.FunkSVDItemScorer;
+import org.lenskit.mf.funksvd.FunkSVDUpdateRule;
+import org.lenskit.mf.funksvd.RuntimeUpdate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MIPSItemRecommenderTest {
+    private DataAccessObject dao;
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        List<Rating> rs = new ArrayList<>();
+        for (long user = 1; user <= 30; user++) {
+            for (long item = 100; item < 300; item++) {
+                if (rng.nextDouble() < 0.2) {
+                    rs.add(Rating.create(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+        dao = StaticDataSource.fromList(rs).get();
+    }
+
+    private LenskitConfiguration makeConfig(double scale) {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(BiasedMFItemScorer.class);
+        config.bind(ItemRecommender.class).to(MIPSItemRecommender.class);
+        config.bind(RatingMatrix.class).to(PackedRatingMatrix.class);
+        config.bind(BiasModel.class).to(UserItemBiasModel.class);
+        config.bind(MFModel.class).toProvider(ALSModelProvider.class);
+        config.set(IterationCount.class).to(5);
+        config.set(FeatureCount.class).to(4);
+        config.set(MIPSBoundScale.class).to(scale);
+        return config;
+    }
+
+    @Test
+    public void testExactSearchMatchesExhaustive() throws RecommenderBuildException {
+        try (LenskitRecommender rec = LenskitRecommender.build(makeConfig(1.0), dao)) {
+            MIPSItemRecommender irec = (MIPSItemRecommender) rec.getItemRecommender();
+            assertThat(rec.get(MIPSIndex.class).getItemCount(), equalTo(200));
+            TopNItemRecommender exhaustive = new TopNItemRecommender(dao, rec.getItemScorer());
+            for (long user = 1; user <= 30; user++) {
+                ResultList approx = irec.recommendWithDetails(user, 10, null, null);
+                ResultList exact = exhaustive.recommendWithDetails(user, 10, null, null);
+                assertThat(approx.idList(), equalTo(exact.idList()));
+                assertThat(irec.measureRecall(user, 10), equalTo(1.0));
+            }
+            assertThat(irec.getSearchCount(), greaterThan(0L));
+            assertThat(irec.getScoredItemCount(), lessThanOrEqualTo(irec.getSearchCount() * 200));
+        }
+    }
+
+    @Test
+    public void testApproximateSearch() throws RecommenderBuildException {
+        try (LenskitRecommender rec = LenskitRecommender.build(makeConfig(0.2), dao)) {
+            MIPSItemRecommender irec = (MIPSItemRecommender) rec.getItemRecommender();
+            for (long user = 1; user <= 30; user++) {
+                List<Long> items = irec.recommend(user, 10);
+                assertThat(items, hasSize(10));
+                double recall = irec.measureRecall(user, 10);
+                assertThat(recall, allOf(greaterThanOrEqualTo(0.0), lessThanOrEqualTo(1.0)));
+            }
+        }
+    }
+
+    @Test
+    public void testSearchUsesFoldedInVectors() throws RecommenderBuildException {
+        LenskitConfiguration config = makeConfig(1.0);
+        config.bind(ItemScorer.class).to(FunkSVDItemScorer.class);
+        config.bind(FunkSVDUpdateRule.class).withQualifier(RuntimeUpdate.class).to(FunkSVDUpdateRule.class);
+        LenskitRecommenderEngine engine = LenskitRecommenderEngine.build(config, dao);
+
+        // user 1 rates many more items after the model is built
+        List<Rating> rs = new ArrayList<>(dao.query(Rating.class).get());
+        for (long item = 100; item < 200; item += 3) {
+            rs.add(Rating.create(1, item, item < 150 ? 5 : 1));
+        }
+        DataAccessObject updated = StaticDataSource.fromList(rs).get();
+
+        try (LenskitRecommender rec = engine.createRecommender(updated)) {
+            MIPSItemRecommender irec = (MIPSItemRecommender) rec.getItemRecommender();
+            TopNItemRecommender exhaustive = new TopNItemRecommender(updated, rec.getItemScorer());
+            ResultList approx = irec.recommendWithDetails(1, 10, null, null);
+            ResultList exact = exhaustive.recommendWithDetails(1, 10, null, null);
+            assertThat(approx.idList(), equalTo(exact.idList()));
+            assertThat(irec.getSearchCount(), equalTo(1L));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.grouplens.lenskit.iterative.StoppingThreshold;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.PackedRatingMatrix;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.mf.funksvd.FeatureCount;
+
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DenseHPFModelProviderTest {
+    private DataAccessObject dao;
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        List<Rating> rs = new ArrayList<>();
+        for (long user = 1; user <= 30; user++) {
+            for (long item = 1; item <= 20; item++) {
+                if (rng.nextDouble() < 0.4) {
+                    rs.add(Rating.create(user, item, rng.nextInt(6)));
+                }
+            }
+        }
+        dao = StaticDataSource.fromList(rs).get();
+    }
+
+    private HPFModel buildModel(Class<? extends Provider<HPFModel>> provider) throws RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(RatingMatrix.class).to(PackedRatingMatrix.class);
+        config.bind(HPFModel.class).toProvider(provider);
+        config.set(FeatureCount.class).to(4);
+        config.set(SplitProportion.class).to(0.1);
+        config.set(ConvergenceCheckFrequency.class).to(2);
+        config.set(StoppingThreshold.class).to(0.0);
+        config.set(IterationCount.class).to(15);
+        config.set(IsProbabilityPrediction.class).to(false);
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            return rec.get(HPFModel.class);
+        }
+    }
+
+    @Test
+    public void testMatchesSequentialProvider() throws RecommenderBuildException {
+        HPFModel sequential = buildModel(HPFModelProvider.class);
+        HPFModel dense = buildModel(DenseHPFModelProvider.class);
+        assertThat(dense.getFeatureCount(), equalTo(4));
+        assertThat(dense.getUserIndex().getKeyList(), equalTo(sequential.getUserIndex().getKeyList()));
+        assertThat(dense.getItemIndex().getKeyList(), equalTo(sequential.getItemIndex().getKeyList()));
+        assertMatricesClose(dense.getUserMatrix(), sequential.getUserMatrix());
+        assertMatricesClose(dense.getItemMatrix(), sequential.getItemMatrix());
+    }
+
+    private static void assertMatricesClose(RealMatrix actual, RealMatrix expected) {
+        assertThat(actual.getRowDimension(), equalTo(expected.getRowDimension()));
+        assertThat(actual.getColumnDimension(), equalTo(expected.getColumnDimension()));
+        for (int i = 0; i < expected.getRowDimension(); i++) {
+            for (int j = 0; j < expected.getColumnDimension(); j++) {
+                double e = expected.getEntry(i, j);
+                assertThat(actual.getEntry(i, j), closeTo(e, 1.0e-6 * Math.max(1, Math.abs(e))));
+            }
+        }
+    }
+}
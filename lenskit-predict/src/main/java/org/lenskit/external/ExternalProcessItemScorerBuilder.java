@@ -47,6 +47,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Build a {@link PrecomputedItemScorer} using an external process.
@@ -61,6 +62,11 @@ import java.util.UUID;
  * The external process is expected to produce its scores on standard output in comma-separated
  * user, item, score format.
  * <p>
+ * Alternatively, {@link #buildWorker()} keeps the external process running as a scoring worker that
+ * answers batched requests over its standard input and output; see {@link ExternalWorkerItemScorer} for
+ * the protocol.  Workers own a running process and must be closed by the caller, so {@link #get()} never
+ * builds one; only {@link #buildWorker()} does.
+ * <p>
  * <strong>Warning:</strong> if you use this code to build item scorers in the evaluator, be careful
  * with the file-based caching (<tt>componentCacheDirectory</tt>).  The cache will likely not rerun
  * the external process.
@@ -74,6 +80,7 @@ public class ExternalProcessItemScorerBuilder implements Provider<ItemScorer> {
     private File workingDir = new File(".");
     private String executable;
     private List<Supplier<String>> arguments = Lists.newArrayList();
+    private long workerTimeout = TimeUnit.MINUTES.toMillis(1);
 
     /**
      * Set the working directory to use.
@@ -104,6 +111,18 @@ public class ExternalProcessItemScorerBuilder implements Provider<ItemScorer> {
         return this;
     }
 
+    /**
+     * Set how long a worker built by {@link #buildWorker()} waits for each response.  The default is one minute.
+     * @param time The timeout, or 0 to wait indefinitely.
+     * @param unit The unit of {@code time}.
+     * @return The builder (for chaining).
+     */
+    public ExternalProcessItemScorerBuilder setWorkerTimeout(long time, TimeUnit unit) {
+        Preconditions.checkArgument(time >= 0, "negative timeout");
+        workerTimeout = unit.toMillis(time);
+        return this;
+    }
+
     /**
      * Add a command line argument.
      * @param arg The argument to add.
@@ -215,25 +234,7 @@ public class ExternalProcessItemScorerBuilder implements Provider<ItemScorer> {
      * @return An item scorer that will return the scores provided by the external algorithm.
      */
     public PrecomputedItemScorer build() {
-        Preconditions.checkState(executable != null, "no executable specified");
-        List<String> command = Lists.newArrayList();
-        command.add(executable);
-        for (Supplier<String> arg: arguments) {
-            command.add(arg.get());
-        }
-        ProcessBuilder pb = new ProcessBuilder();
-        pb.command(command).directory(workingDir);
-
-        Process proc;
-        try {
-            proc = pb.start();
-        } catch (IOException e) {
-            logger.error("could not start {}: {}", executable, e);
-            throw new ExternalProcessException("could not start external process", e);
-        }
-        Thread slurp = new LoggingStreamSlurper("build-" + executable, proc.getErrorStream(),
-                                                logger, "");
-        slurp.start();
+        Process proc = startProcess("build-");
 
         PrecomputedItemScorer scorer;
         try (InputStreamReader rdr = new InputStreamReader(proc.getInputStream(), Charsets.UTF_8);
@@ -258,11 +259,52 @@ public class ExternalProcessItemScorerBuilder implements Provider<ItemScorer> {
         }
     }
 
+    /**
+     * Build an item scorer backed by a persistent worker process.  The process is started with the configured
+     * command line and stays running to answer scoring requests until the scorer is closed.  The caller owns the
+     * returned scorer and must {@linkplain ExternalWorkerItemScorer#close() close} it; it cannot be used as a
+     * model component.
+     *
+     * @return An item scorer that sends requests to the external worker.
+     */
+    public ExternalWorkerItemScorer buildWorker() {
+        Process proc = startProcess("worker-");
+        return new ExternalWorkerItemScorer(executable, proc, workerTimeout);
+    }
+
     @Override
     public ItemScorer get() {
         return build();
     }
 
+    /**
+     * Start the external process and begin logging its standard error.
+     * @param prefix The prefix of the error logging thread's name.
+     * @return The running process.
+     */
+    private Process startProcess(String prefix) {
+        Preconditions.checkState(executable != null, "no executable specified");
+        List<String> command = Lists.newArrayList();
+        command.add(executable);
+        for (Supplier<String> arg: arguments) {
+            command.add(arg.get());
+        }
+        ProcessBuilder pb = new ProcessBuilder();
+        pb.command(command).directory(workingDir);
+
+        Process proc;
+        try {
+            proc = pb.start();
+        } catch (IOException e) {
+            logger.error("could not start {}: {}", executable, e);
+            throw new ExternalProcessException("could not start external process", e);
+        }
+        Thread slurp = new LoggingStreamSlurper(prefix + executable, proc.getErrorStream(),
+                                                logger, "");
+        slurp.start();
+        return proc;
+    }
+
     private class RatingFileSupplier implements Supplier<String> {
     private final DataAccessObject dao;
         private final String fileName;
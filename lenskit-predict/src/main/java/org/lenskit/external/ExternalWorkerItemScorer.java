@@ -0,0 +1,325 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.external;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongIterators;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.basic.AbstractItemScorer;
+import org.lenskit.results.Results;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Item scorer that sends scoring requests to a persistent external worker process.  Workers are started by
+ * {@link ExternalProcessItemScorerBuilder#buildWorker()}.
+ *
+ * <p>The worker speaks line-delimited JSON.  Each request is written to its standard input as one line:</p>
+ *
+ * <pre>{"id": 7, "user": 42, "items": [10, 11, 12]}</pre>
+ *
+ * <p>and the worker answers on standard output with one line per request:</p>
+ *
+ * <pre>{"id": 7, "items": [10, 12], "scores": [3.5, 4.0]}</pre>
+ *
+ * <p>Items the worker cannot score are omitted from the response.  Responses may arrive in any order; they are
+ * matched to requests by ID, so several requests can be in flight at once, either from concurrent callers or
+ * from {@link #scoreUsers(Collection, Collection)}.  A response may instead carry an {@code "error"} string, which
+ * fails its request with an {@link ExternalProcessException}.  A request that gets no response within the
+ * configured timeout also fails with an {@link ExternalProcessException}.</p>
+ *
+ * <p>The scorer owns a running process, so it is not serializable and must not be placed in a recommender
+ * model; whoever builds it is responsible for calling {@link #close()}, which closes the worker's standard
+ * input and waits for it to exit.  If the worker has not exited within the response timeout (or
+ * {@value #CLOSE_TIMEOUT_MILLIS}ms, if there is no response timeout), it is destroyed.</p>
+ *
+ * @since 3.0
+ */
+public class ExternalWorkerItemScorer extends AbstractItemScorer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ExternalWorkerItemScorer.class);
+    /**
+     * How long {@link #close()} waits for a worker to exit if no response timeout is configured.
+     */
+    static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final String name;
+    private final Process process;
+    private final Writer output;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<ResultMap>> pending = new ConcurrentHashMap<>();
+    private final Thread reader;
+    private final long timeoutMillis;
+    private volatile ExternalProcessException failure;
+
+    /**
+     * Create a scorer talking to a running worker process.
+     *
+     * @param name The worker name, for logging.
+     * @param proc The worker process.
+     * @param timeout The time to wait for each response, in milliseconds, or 0 to wait indefinitely.
+     */
+    ExternalWorkerItemScorer(String name, Process proc, long timeout) {
+        this.name = name;
+        process = proc;
+        timeoutMillis = timeout;
+        output = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream(), Charsets.UTF_8));
+        reader = new Thread(this::readResponses, "worker-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Nonnull
+    @Override
+    public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
+        long id = nextId.getAndIncrement();
+        return await(id, submit(id, user, items));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>All requests are sent before any response is awaited, so the worker can process them back-to-back.</p>
+     */
+    @Nonnull
+    @Override
+    public Map<Long, Map<Long, Double>> scoreUsers(@Nonnull Collection<Long> users, @Nonnull Collection<Long> items) {
+        Map<Long, Collection<Long>> requests = new LinkedHashMap<>();
+        for (Long user: users) {
+            requests.put(user, items);
+        }
+        Map<Long, ResultMap> details = scoreUsersWithDetails(requests);
+        Map<Long, Map<Long, Double>> results = new LinkedHashMap<>();
+        for (Map.Entry<Long, ResultMap> e: details.entrySet()) {
+            results.put(e.getKey(), e.getValue().scoreMap());
+        }
+        return results;
+    }
+
+    /**
+     * Score a different set of items for each of several users.  All requests are sent before any response is
+     * awaited, so the worker can process them back-to-back.
+     *
+     * @param requests The items to score for each user.
+     * @return The results for each user.
+     */
+    public Map<Long, ResultMap> scoreUsersWithDetails(Map<Long, ? extends Collection<Long>> requests) {
+        Map<Long, Long> ids = new LinkedHashMap<>();
+        Map<Long, CompletableFuture<ResultMap>> futures = new HashMap<>();
+        try {
+            for (Map.Entry<Long, ? extends Collection<Long>> e: requests.entrySet()) {
+                long id = nextId.getAndIncrement();
+                ids.put(e.getKey(), id);
+                futures.put(id, submit(id, e.getKey(), e.getValue()));
+            }
+            Map<Long, ResultMap> results = new LinkedHashMap<>();
+            for (Map.Entry<Long, Long> e: ids.entrySet()) {
+                results.put(e.getKey(), await(e.getValue(), futures.get(e.getValue())));
+            }
+            return results;
+        } finally {
+            // if a request failed, stop tracking the ones not yet awaited; late responses are logged and dropped
+            for (Map.Entry<Long, CompletableFuture<ResultMap>> e: futures.entrySet()) {
+                if (pending.remove(e.getKey()) != null) {
+                    e.getValue().cancel(false);
+                }
+            }
+        }
+    }
+
+    private CompletableFuture<ResultMap> submit(long id, long user, Collection<Long> items) {
+        ObjectNode request = mapper.createObjectNode();
+        request.put("id", id);
+        request.put("user", user);
+        ArrayNode itemArray = request.putArray("items");
+        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        while (iter.hasNext()) {
+            itemArray.add(iter.nextLong());
+        }
+
+        CompletableFuture<ResultMap> future = new CompletableFuture<>();
+        pending.put(id, future);
+        try {
+            String line = mapper.writeValueAsString(request);
+            synchronized (output) {
+                checkFailure();
+                output.write(line);
+                output.write('\n');
+                output.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            throw new ExternalProcessException("cannot write request to worker " + name, e);
+        } catch (ExternalProcessException e) {
+            pending.remove(id);
+            throw e;
+        }
+        return future;
+    }
+
+    private ResultMap await(long id, CompletableFuture<ResultMap> future) {
+        try {
+            if (timeoutMillis > 0) {
+                return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                return future.get();
+            }
+        } catch (TimeoutException e) {
+            // stop tracking the request; a late response is logged and dropped
+            pending.remove(id);
+            throw new ExternalProcessException("worker " + name + " did not answer request " + id
+                                                       + " within " + timeoutMillis + "ms", e);
+        } catch (InterruptedException e) {
+            pending.remove(id);
+            Thread.currentThread().interrupt();
+            throw new ExternalProcessException("interrupted waiting for worker " + name, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ExternalProcessException) {
+                throw (ExternalProcessException) cause;
+            } else {
+                throw new ExternalProcessException("worker " + name + " failed", cause);
+            }
+        }
+    }
+
+    /**
+     * Get the number of requests awaiting a response.
+     * @return The number of pending requests.
+     */
+    int getPendingRequestCount() {
+        return pending.size();
+    }
+
+    private void checkFailure() {
+        ExternalProcessException err = failure;
+        if (err != null) {
+            throw new ExternalProcessException("worker " + name + " has failed", err);
+        }
+    }
+
+    private void readResponses() {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JsonNode response = mapper.readTree(line);
+                long id = response.path("id").asLong(-1);
+                CompletableFuture<ResultMap> future = pending.remove(id);
+                if (future == null) {
+                    logger.warn("worker {} sent response for unknown request {}", name, id);
+                    continue;
+                }
+                if (response.has("error")) {
+                    future.completeExceptionally(new ExternalProcessException(
+                            "worker " + name + " error: " + response.get("error").asText()));
+                } else {
+                    try {
+                        future.complete(parseResults(response));
+                    } catch (ExternalProcessException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            }
+            fail(new ExternalProcessException("worker " + name + " closed its output"));
+        } catch (IOException | RuntimeException e) {
+            fail(new ExternalProcessException("error reading from worker " + name, e));
+        }
+    }
+
+    private ResultMap parseResults(JsonNode response) {
+        JsonNode items = response.path("items");
+        JsonNode scores = response.path("scores");
+        if (items.size() != scores.size()) {
+            throw new ExternalProcessException("worker " + name + " returned " + items.size() + " items but "
+                                                       + scores.size() + " scores");
+        }
+        List<Result> results = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            results.add(Results.create(items.get(i).asLong(), scores.get(i).asDouble()));
+        }
+        return Results.newResultMap(results);
+    }
+
+    private void fail(ExternalProcessException err) {
+        failure = err;
+        for (Long id: new ArrayList<>(pending.keySet())) {
+            CompletableFuture<ResultMap> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(err);
+            }
+        }
+    }
+
+    /**
+     * Shut down the worker by closing its standard input and waiting for it to exit.  A worker that does not
+     * exit in time is destroyed.
+     *
+     * @throws IOException if there is an error closing the worker's input.
+     * @throws ExternalProcessException if the worker fails or does not exit in time.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (output) {
+            output.close();
+        }
+        long wait = timeoutMillis > 0 ? timeoutMillis : CLOSE_TIMEOUT_MILLIS;
+        int ec;
+        try {
+            if (!process.waitFor(wait, TimeUnit.MILLISECONDS)) {
+                process.destroy();
+                throw new ExternalProcessException("worker " + name + " did not exit within " + wait + "ms");
+            }
+            ec = process.exitValue();
+            reader.join(wait);
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new ExternalProcessException("interrupted waiting for worker " + name + " to exit", e);
+        }
+        if (ec != 0) {
+            logger.error("worker {} exited with code {}", name, ec);
+            throw new ExternalProcessException("worker " + name + " failed with code " + ec);
+        }
+    }
+}
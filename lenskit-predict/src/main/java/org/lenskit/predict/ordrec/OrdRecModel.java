@@ -63,6 +63,40 @@ class OrdRecModel {
         }
     }
 
+    /**
+     * Construct a model with known parameters.
+     * @param qtz The quantizer for ratings.
+     * @param params The parameters, as written by {@link #getParameters(double[], int)}.
+     * @param offset The position of the parameters in {@code params}.
+     */
+    OrdRecModel(Quantizer qtz, double[] params, int offset) {
+        qtzValues = qtz.getValues();
+        levelCount = qtzValues.getDimension();
+        t1 = params[offset];
+        beta = new ArrayRealVector(params, offset + 1, levelCount - 2);
+    }
+
+    /**
+     * Get the number of parameters in a model for a quantizer.
+     * @param levels The number of rating levels.
+     * @return The number of parameters (the first threshold and the betas).
+     */
+    static int parameterCount(int levels) {
+        return levels - 1;
+    }
+
+    /**
+     * Write this model's parameters to an array.
+     * @param out The array to receive the first threshold followed by the betas.
+     * @param offset The position at which to start writing.
+     */
+    void getParameters(double[] out, int offset) {
+        out[offset] = t1;
+        for (int k = 0; k < beta.getDimension(); k++) {
+            out[offset + 1 + k] = beta.getEntry(k);
+        }
+    }
+
     /**
      * Get the first threshold t1
      *
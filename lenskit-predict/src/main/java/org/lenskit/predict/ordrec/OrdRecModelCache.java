@@ -0,0 +1,124 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.predict.ordrec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import net.jcip.annotations.ThreadSafe;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.collections.LongUtils;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+/**
+ * Cache of per-user OrdRec models trained on demand by {@link OrdRecRatingPredictor}.  The cache is shared by all
+ * recommenders built from the same engine, so a user's model is reused across requests as long as their ratings are
+ * unchanged.  Cached models are not serialized with the engine.
+ *
+ * @since 3.0
+ */
+@Shareable
+@ThreadSafe
+public class OrdRecModelCache implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int cacheSize;
+    private transient Cache<Long, TrainedUser> cache;
+
+    /**
+     * Construct a new model cache.
+     * @param size The number of user models to cache; 0 disables caching.
+     */
+    @Inject
+    public OrdRecModelCache(@OrdRecCacheSize int size) {
+        cacheSize = size;
+        cache = makeCache(size);
+    }
+
+    /**
+     * Get a user's cached model.
+     * @param user The user ID.
+     * @param ratings The user's current ratings.
+     * @return The model, if one was cached for the user trained on {@code ratings}.
+     */
+    @Nullable
+    OrdRecModel get(long user, Long2DoubleMap ratings) {
+        if (cache == null) {
+            return null;
+        }
+        TrainedUser cached = cache.getIfPresent(user);
+        if (cached != null && cached.ratings.equals(ratings)) {
+            return cached.model;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Cache a user's model.
+     * @param user The user ID.
+     * @param ratings The ratings the model was trained on.
+     * @param model The model.
+     */
+    void put(long user, Long2DoubleMap ratings, OrdRecModel model) {
+        if (cache != null) {
+            cache.put(user, new TrainedUser(LongUtils.frozenMap(ratings), model));
+        }
+    }
+
+    @Nullable
+    private static Cache<Long, TrainedUser> makeCache(int size) {
+        if (size > 0) {
+            return CacheBuilder.newBuilder()
+                               .maximumSize(size)
+                               .build();
+        } else {
+            return null;
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        cache = makeCache(cacheSize);
+    }
+
+    /**
+     * A cached user model, with the ratings it was trained on.
+     */
+    private static class TrainedUser {
+        final Long2DoubleMap ratings;
+        final OrdRecModel model;
+
+        TrainedUser(Long2DoubleMap ratings, OrdRecModel model) {
+            this.ratings = ratings;
+            this.model = model;
+        }
+    }
+}
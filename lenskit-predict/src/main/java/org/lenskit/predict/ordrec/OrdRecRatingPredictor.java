@@ -41,11 +41,12 @@ import org.lenskit.data.ratings.Ratings;
 import org.lenskit.results.AbstractResult;
 import org.lenskit.results.Results;
 import org.lenskit.transform.quantize.Quantizer;
-import org.lenskit.util.math.Vectors;
+import org.lenskit.util.collections.LongUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -61,6 +62,10 @@ import java.util.Map;
  * CF methods, and upgrade them into being able to tackle ordinal feedback.
  * The implementation is based on <a href="http://dl.acm.org/citation.cfm?doid=2043932.2043956">Koren's paper</a>:
  *
+ * <p>Each user's thresholds are trained on their ratings.  If {@link OrdRecUserParameters} are available,
+ * users in that model are predicted with their precomputed thresholds; other users are trained on demand,
+ * and their models are kept in a shared {@link OrdRecModelCache} until their ratings change.</p>
+ *
  * @since 2.1
  */
 public class OrdRecRatingPredictor extends AbstractRatingPredictor {
@@ -69,9 +74,11 @@ public class OrdRecRatingPredictor extends AbstractRatingPredictor {
     private ItemScorer itemScorer;
     private DataAccessObject dao;
     private Quantizer quantizer;
-    private final double learningRate;
-    private final double regTerm;
-    private final int iterationCount;
+    private final OrdRecTrainer trainer;
+    @Nullable
+    private final OrdRecUserParameters userParameters;
+    @Nullable
+    private final OrdRecModelCache modelCache;
 
     /**
      * Construct a new OrdRec rating predictor.
@@ -82,17 +89,41 @@ public class OrdRecRatingPredictor extends AbstractRatingPredictor {
      * @param rate The learning rate for user profile training.
      * @param reg Regularization term for user profile training.
      */
-    @Inject
     public OrdRecRatingPredictor(ItemScorer scorer, DataAccessObject dao, Quantizer quantizer,
                                  @LearningRate double rate,
                                  @RegularizationTerm double reg,
                                  @IterationCount int niters) {
+        this(scorer, dao, quantizer, rate, reg, niters, null, null);
+    }
+
+    /**
+     * Construct a new OrdRec rating predictor.
+     *
+     * @param scorer The ItemScorer to produce the underlyign scores.
+     * @param dao The DAO to access user events.
+     * @param quantizer The quantizer to which ratings should be constrained.
+     * @param rate The learning rate for user profile training.
+     * @param reg Regularization term for user profile training.
+     * @param params Precomputed user parameters, or {@code null} to train every user on demand.
+     * @param cache The shared cache of on-demand user models, or {@code null} to train users on every request.
+     */
+    @Inject
+    public OrdRecRatingPredictor(ItemScorer scorer, DataAccessObject dao, Quantizer quantizer,
+                                 @LearningRate double rate,
+                                 @RegularizationTerm double reg,
+                                 @IterationCount int niters,
+                                 @Nullable OrdRecUserParameters params,
+                                 @Nullable OrdRecModelCache cache) {
         this.dao = dao;
         this.itemScorer = scorer;
         this.quantizer = quantizer;
-        this.learningRate = rate;
-        this.regTerm = reg;
-        this.iterationCount = niters;
+        trainer = new OrdRecTrainer(quantizer, rate, reg, niters);
+        if (params != null && params.getLevelCount() != quantizer.getCount()) {
+            throw new IllegalArgumentException("OrdRec parameters have " + params.getLevelCount()
+                                                       + " levels, but quantizer has " + quantizer.getCount());
+        }
+        userParameters = params;
+        modelCache = cache;
     }
 
     /**
@@ -102,12 +133,7 @@ public class OrdRecRatingPredictor extends AbstractRatingPredictor {
      * @param q The quantizer.
      */
     OrdRecRatingPredictor(ItemScorer scorer, DataAccessObject dao, Quantizer q) {
-        this.dao = dao;
-        this.itemScorer = scorer;
-        this.quantizer = q;
-        this.learningRate = 1e-3;
-        this.regTerm = 0.015;
-        this.iterationCount = 1000;
+        this(scorer, dao, q, 1e-3, 0.015, 1000);
     }
 
     /**
@@ -129,61 +155,6 @@ public class OrdRecRatingPredictor extends AbstractRatingPredictor {
         return vector;
     }
 
-    /**
-     * This is a helper function to calculate derivative of parameters.
-     * this function computes $\frac{d}{dx} (t_r - y_{ui})$, and that r specifies
-     * what t_r is used, and k speficies x (with k=0, $x = t_1$; for k &gt; 0, it is $x = β_k$).
-     *
-     * @param r The index of rth threshold
-     * @param k The index of kth parameters need to derivative
-     * @param beta The parameter need to derivative
-     * @return The derivative of beta
-     */
-    private static double dBeta(int r, int k, double beta) {
-        if(r >= 0 && k == 0) {
-            return 1.0;
-        } else if (k > 0 && r >= k) {
-            return Math.exp(beta);
-        } else {
-            return 0;
-        }
-    }
-
-    /**
-     * The train function of OrdRec. Get all parameters after learning process.
-     */
-    @SuppressWarnings("ConstantConditions")
-    private void trainModel(OrdRecModel model, Long2DoubleMap ratings, Map<Long, Double> scores) {
-        RealVector beta = model.getBeta();
-        RealVector deltaBeta = new ArrayRealVector(beta.getDimension());
-        double dt1;
-        // n is the number of iteration;
-        for (int j = 0; j < iterationCount; j++ ) {
-            for (Long2DoubleMap.Entry rating: Vectors.fastEntries(ratings)) {
-                long iid = rating.getLongKey();
-                double score = scores.get(iid);
-                int r = quantizer.index(rating.getDoubleValue());
-
-                double probEqualR = model.getProbEQ(score, r);
-                double probLessR = model.getProbLE(score, r);
-                double probLessR_1 = model.getProbLE(score, r - 1);
-
-                double t1 = model.getT1();
-                dt1 = learningRate / probEqualR * ( probLessR * (1 - probLessR) * dBeta(r, 0, t1)
-                        - probLessR_1 * (1 - probLessR_1) * dBeta(r - 1, 0, t1) - regTerm*t1);
-
-                double dbetaK;
-                for(int k = 0; k < beta.getDimension(); k++) {
-                    dbetaK = learningRate / probEqualR * ( probLessR * (1 - probLessR) *
-                            dBeta(r, k + 1, beta.getEntry(k)) - probLessR_1 * (1 - probLessR_1) *
-                            dBeta(r - 1, k + 1, beta.getEntry(k)) - regTerm*beta.getEntry(k));
-                    deltaBeta.setEntry(k, dbetaK);
-                }
-                model.update(dt1, deltaBeta);
-            }
-        }
-    }
-
     @Nonnull
     @Override
     public Map<Long, Double> predict(long user, @Nonnull Collection<Long> items) {
@@ -205,13 +176,28 @@ public class OrdRecRatingPredictor extends AbstractRatingPredictor {
     @Nonnull
     private ResultMap computePredictions(long user, @Nonnull Collection<Long> items, boolean includeDetails) {
         logger.debug("predicting {} items for {}", items.size(), user);
-        Long2DoubleMap ratings = makeUserVector(user, dao);
-        if (ratings == null) {
-            logger.warn("user {} has no ratings", user);
-            ratings = Long2DoubleMaps.EMPTY_MAP;
+        OrdRecModel params = null;
+        if (userParameters != null) {
+            params = userParameters.getUserModel(user, quantizer);
+        }
+
+        Long2DoubleMap ratings = null;
+        LongSet allItems = LongUtils.asLongSet(items);
+        if (params == null) {
+            ratings = makeUserVector(user, dao);
+            if (ratings == null) {
+                logger.warn("user {} has no ratings", user);
+                ratings = Long2DoubleMaps.EMPTY_MAP;
+            }
+            if (modelCache != null) {
+                params = modelCache.get(user, ratings);
+            }
+            if (params == null) {
+                // we need scores for the rated items to train the model
+                allItems = new LongOpenHashSet(ratings.keySet());
+                allItems.addAll(items);
+            }
         }
-        LongSet allItems = new LongOpenHashSet(ratings.keySet());
-        allItems.addAll(items);
 
         ResultMap baseResults = null;
         Map<Long,Double> scores;
@@ -222,9 +208,13 @@ public class OrdRecRatingPredictor extends AbstractRatingPredictor {
             scores = itemScorer.score(user, allItems);
         }
 
-        OrdRecModel params = new OrdRecModel(quantizer);
-        trainModel(params, ratings, scores);
-        logger.debug("trained parameters for {}: {}", user, params);
+        if (params == null) {
+            params = trainer.train(ratings, scores);
+            logger.debug("trained parameters for {}: {}", user, params);
+            if (modelCache != null) {
+                modelCache.put(user, ratings, params);
+            }
+        }
 
         RealVector probabilities = new ArrayRealVector(params.getLevelCount());
 
@@ -0,0 +1,118 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.predict.ordrec;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealVector;
+import org.lenskit.transform.quantize.Quantizer;
+import org.lenskit.util.math.Vectors;
+
+import java.util.Map;
+
+/**
+ * Trains per-user OrdRec thresholds by gradient descent over the user's ratings.
+ */
+class OrdRecTrainer {
+    private final Quantizer quantizer;
+    private final double learningRate;
+    private final double regTerm;
+    private final int iterationCount;
+
+    OrdRecTrainer(Quantizer quantizer, double rate, double reg, int niters) {
+        this.quantizer = quantizer;
+        learningRate = rate;
+        regTerm = reg;
+        iterationCount = niters;
+    }
+
+    Quantizer getQuantizer() {
+        return quantizer;
+    }
+
+    /**
+     * This is a helper function to calculate derivative of parameters.
+     * this function computes $\frac{d}{dx} (t_r - y_{ui})$, and that r specifies
+     * what t_r is used, and k speficies x (with k=0, $x = t_1$; for k &gt; 0, it is $x = β_k$).
+     *
+     * @param r The index of rth threshold
+     * @param k The index of kth parameters need to derivative
+     * @param beta The parameter need to derivative
+     * @return The derivative of beta
+     */
+    private static double dBeta(int r, int k, double beta) {
+        if(r >= 0 && k == 0) {
+            return 1.0;
+        } else if (k > 0 && r >= k) {
+            return Math.exp(beta);
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Train a user's OrdRec model.  Rated items without scores are skipped.
+     *
+     * @param ratings The user's ratings.
+     * @param scores The scores of (at least) the user's rated items.
+     * @return The trained model.
+     */
+    OrdRecModel train(Long2DoubleMap ratings, Map<Long, Double> scores) {
+        OrdRecModel model = new OrdRecModel(quantizer);
+        RealVector beta = model.getBeta();
+        RealVector deltaBeta = new ArrayRealVector(beta.getDimension());
+        double dt1;
+        // n is the number of iteration;
+        for (int j = 0; j < iterationCount; j++ ) {
+            for (Long2DoubleMap.Entry rating: Vectors.fastEntries(ratings)) {
+                long iid = rating.getLongKey();
+                Double boxedScore = scores.get(iid);
+                if (boxedScore == null) {
+                    continue;
+                }
+                double score = boxedScore;
+                int r = quantizer.index(rating.getDoubleValue());
+
+                double probEqualR = model.getProbEQ(score, r);
+                double probLessR = model.getProbLE(score, r);
+                double probLessR_1 = model.getProbLE(score, r - 1);
+
+                double t1 = model.getT1();
+                dt1 = learningRate / probEqualR * ( probLessR * (1 - probLessR) * dBeta(r, 0, t1)
+                        - probLessR_1 * (1 - probLessR_1) * dBeta(r - 1, 0, t1) - regTerm*t1);
+
+                double dbetaK;
+                for(int k = 0; k < beta.getDimension(); k++) {
+                    dbetaK = learningRate / probEqualR * ( probLessR * (1 - probLessR) *
+                            dBeta(r, k + 1, beta.getEntry(k)) - probLessR_1 * (1 - probLessR_1) *
+                            dBeta(r - 1, k + 1, beta.getEntry(k)) - regTerm*beta.getEntry(k));
+                    deltaBeta.setEntry(k, dbetaK);
+                }
+                model.update(dt1, deltaBeta);
+            }
+        }
+        return model;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.predict.ordrec;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.Immutable;
+import org.lenskit.inject.Shareable;
+import org.lenskit.transform.quantize.Quantizer;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+
+/**
+ * Precomputed per-user OrdRec parameters (the first threshold and the threshold gaps), trained at model
+ * build time by {@link OrdRecUserParametersProvider}.  When this model is available to an
+ * {@link OrdRecRatingPredictor}, predictions for the users it contains need no per-request training.
+ *
+ * <p>Like other precomputed models, the parameters are <strong>not</strong> refreshed with ratings added since
+ * the model was built.  To use them, bind this class to its provider:</p>
+ *
+ * <pre>{@code
+ * config.bind(OrdRecUserParameters.class).toProvider(OrdRecUserParametersProvider.class);
+ * }</pre>
+ */
+@Shareable
+@Immutable
+public class OrdRecUserParameters implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final SortedKeyIndex users;
+    private final int levelCount;
+    private final double[] parameters;
+
+    /**
+     * Construct a new parameter model.
+     *
+     * @param users The user index.
+     * @param levels The number of rating levels.
+     * @param params The parameters of each user, packed in index order; each user has one fewer parameters than
+     *               there are levels.
+     */
+    OrdRecUserParameters(SortedKeyIndex users, int levels, double[] params) {
+        Preconditions.checkArgument(params.length == users.size() * OrdRecModel.parameterCount(levels),
+                                    "parameter count mismatch");
+        this.users = users;
+        levelCount = levels;
+        parameters = params;
+    }
+
+    /**
+     * Get the index of users with precomputed parameters.
+     * @return The user index.
+     */
+    public SortedKeyIndex getUserIndex() {
+        return users;
+    }
+
+    /**
+     * Get the number of rating levels the parameters were trained for.
+     * @return The number of rating levels.
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * Get a user's model.
+     *
+     * @param user The user ID.
+     * @param qtz The quantizer; it must have {@link #getLevelCount()} values.
+     * @return The user's OrdRec model, or {@code null} if the user has no precomputed parameters.
+     */
+    @Nullable
+    OrdRecModel getUserModel(long user, Quantizer qtz) {
+        int idx = users.tryGetIndex(user);
+        if (idx < 0) {
+            return null;
+        }
+        return new OrdRecModel(qtz, parameters, idx * OrdRecModel.parameterCount(levelCount));
+    }
+}
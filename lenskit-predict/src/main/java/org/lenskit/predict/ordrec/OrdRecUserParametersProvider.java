@@ -0,0 +1,111 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.predict.ordrec;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.apache.commons.lang3.time.StopWatch;
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.grouplens.lenskit.iterative.LearningRate;
+import org.grouplens.lenskit.iterative.RegularizationTerm;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.inject.Transient;
+import org.lenskit.transform.quantize.Quantizer;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Train OrdRec parameters for every user with ratings.  Users are trained in parallel, so the item scorer
+ * must be safe to use from multiple threads.
+ */
+public class OrdRecUserParametersProvider implements Provider<OrdRecUserParameters> {
+    private static final Logger logger = LoggerFactory.getLogger(OrdRecUserParametersProvider.class);
+
+    private final ItemScorer itemScorer;
+    private final RatingVectorPDAO dao;
+    private final OrdRecTrainer trainer;
+
+    /**
+     * Construct a new parameter provider.
+     *
+     * @param scorer The item scorer to produce the underlying scores.
+     * @param dao The rating vector DAO.
+     * @param quantizer The quantizer to which ratings should be constrained.
+     * @param rate The learning rate for user profile training.
+     * @param reg Regularization term for user profile training.
+     * @param niters The number of training iterations per user.
+     */
+    @Inject
+    public OrdRecUserParametersProvider(@Transient ItemScorer scorer,
+                                        @Transient RatingVectorPDAO dao,
+                                        @Transient Quantizer quantizer,
+                                        @LearningRate double rate,
+                                        @RegularizationTerm double reg,
+                                        @IterationCount int niters) {
+        itemScorer = scorer;
+        this.dao = dao;
+        trainer = new OrdRecTrainer(quantizer, rate, reg, niters);
+    }
+
+    @Override
+    public OrdRecUserParameters get() {
+        List<IdBox<Long2DoubleMap>> users = new ArrayList<>();
+        try (ObjectStream<IdBox<Long2DoubleMap>> stream = dao.streamUsers()) {
+            for (IdBox<Long2DoubleMap> user: stream) {
+                users.add(user);
+            }
+        }
+        users.sort((u1, u2) -> Long.compare(u1.getId(), u2.getId()));
+
+        int levels = trainer.getQuantizer().getCount();
+        int np = OrdRecModel.parameterCount(levels);
+        long[] ids = new long[users.size()];
+        double[] params = new double[users.size() * np];
+        logger.info("training OrdRec parameters for {} users", users.size());
+        StopWatch timer = new StopWatch();
+        timer.start();
+        IntStream.range(0, users.size()).parallel().forEach(u -> {
+            IdBox<Long2DoubleMap> user = users.get(u);
+            ids[u] = user.getId();
+            Long2DoubleMap ratings = user.getValue();
+            Map<Long, Double> scores = itemScorer.score(user.getId(), ratings.keySet());
+            trainer.train(ratings, scores).getParameters(params, u * np);
+        });
+        timer.stop();
+        logger.info("trained OrdRec parameters for {} users in {}", users.size(), timer);
+
+        return new OrdRecUserParameters(SortedKeyIndex.wrap(ids, ids.length), levels, params);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.external;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+import org.lenskit.api.ResultMap;
+import org.lenskit.util.collections.LongUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ExternalWorkerItemScorerTest {
+    /**
+     * A worker that scores each item as the user ID plus the item ID / 1000, and skips negative items.
+     */
+    public static class EchoWorker {
+        public static void main(String[] args) throws IOException {
+            ObjectMapper mapper = new ObjectMapper();
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                JsonNode request = mapper.readTree(line);
+                long user = request.get("user").asLong();
+                ObjectNode response = mapper.createObjectNode();
+                response.put("id", request.get("id").asLong());
+                ArrayNode items = response.putArray("items");
+                ArrayNode scores = response.putArray("scores");
+                for (JsonNode item: request.get("items")) {
+                    long iid = item.asLong();
+                    if (iid >= 0) {
+                        items.add(iid);
+                        scores.add(user + iid / 1000.0);
+                    }
+                }
+                System.out.println(mapper.writeValueAsString(response));
+                System.out.flush();
+            }
+        }
+    }
+
+    /**
+     * A worker that reads requests but never answers them.
+     */
+    public static class SilentWorker {
+        public static void main(String[] args) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+            while (in.readLine() != null) {
+                // ignore the request
+            }
+        }
+    }
+
+    /**
+     * A worker that fails requests for negative users and never answers the others.
+     */
+    public static class FailingWorker {
+        public static void main(String[] args) throws IOException {
+            ObjectMapper mapper = new ObjectMapper();
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                JsonNode request = mapper.readTree(line);
+                if (request.get("user").asLong() < 0) {
+                    ObjectNode response = mapper.createObjectNode();
+                    response.put("id", request.get("id").asLong());
+                    response.put("error", "bad user");
+                    System.out.println(mapper.writeValueAsString(response));
+                    System.out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * A worker that ignores its input and never exits on its own.
+     */
+    public static class StuckWorker {
+        public static void main(String[] args) throws InterruptedException {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+
+    private ExternalProcessItemScorerBuilder workerBuilder(Class<?> worker) {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ExternalProcessItemScorerBuilder()
+                .setExecutable(java)
+                .addArguments("-cp", System.getProperty("java.class.path"), worker.getName());
+    }
+
+    private ExternalWorkerItemScorer startWorker() {
+        return workerBuilder(EchoWorker.class).buildWorker();
+    }
+
+    @Test
+    public void testScoreItems() throws IOException {
+        try (ExternalWorkerItemScorer scorer = startWorker()) {
+            ResultMap results = scorer.scoreWithDetails(42, LongUtils.packedSet(-1, 10, 20));
+            assertThat(results.size(), equalTo(2));
+            assertThat(results.getScore(10), closeTo(42.01, 1.0e-9));
+            assertThat(results.getScore(20), closeTo(42.02, 1.0e-9));
+            assertThat(results.get(-1), nullValue());
+
+            // the worker stays up for later requests
+            results = scorer.scoreWithDetails(7, LongUtils.packedSet(5));
+            assertThat(results.getScore(5), closeTo(7.005, 1.0e-9));
+        }
+    }
+
+    @Test
+    public void testScoreUsers() throws IOException {
+        List<Long> users = new ArrayList<>();
+        for (long user = 1; user <= 50; user++) {
+            users.add(user);
+        }
+        try (ExternalWorkerItemScorer scorer = startWorker()) {
+            Map<Long, Map<Long, Double>> results = scorer.scoreUsers(users, Arrays.asList(-1L, 3L));
+            assertThat(results.keySet(), contains(users.toArray()));
+            for (long user = 1; user <= 50; user++) {
+                Map<Long, Double> scores = results.get(user);
+                assertThat(scores.size(), equalTo(1));
+                assertThat(scores.get(3L), closeTo(user + 0.003, 1.0e-9));
+            }
+        }
+    }
+
+    @Test
+    public void testScoreUsersWithDetails() throws IOException {
+        Map<Long, List<Long>> requests = new LinkedHashMap<>();
+        for (long user = 1; user <= 50; user++) {
+            requests.put(user, Arrays.asList(user, user + 1));
+        }
+        try (ExternalWorkerItemScorer scorer = startWorker()) {
+            Map<Long, ResultMap> results = scorer.scoreUsersWithDetails(requests);
+            assertThat(results.keySet(), equalTo(requests.keySet()));
+            for (long user = 1; user <= 50; user++) {
+                ResultMap rm = results.get(user);
+                assertThat(rm.size(), equalTo(2));
+                assertThat(rm.getScore(user + 1), closeTo(user + (user + 1) / 1000.0, 1.0e-9));
+            }
+        }
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        try (ExternalWorkerItemScorer scorer = workerBuilder(SilentWorker.class)
+                .setWorkerTimeout(200, TimeUnit.MILLISECONDS)
+                .buildWorker()) {
+            try {
+                scorer.scoreWithDetails(42, LongUtils.packedSet(10));
+                fail("unanswered request should time out");
+            } catch (ExternalProcessException e) {
+                assertThat(e.getCause(), instanceOf(TimeoutException.class));
+            }
+        }
+    }
+
+    @Test
+    public void testFailedBatchDropsPendingRequests() throws IOException {
+        Map<Long, List<Long>> requests = new LinkedHashMap<>();
+        requests.put(-1L, Arrays.asList(10L));
+        requests.put(2L, Arrays.asList(10L));
+        requests.put(3L, Arrays.asList(10L));
+        try (ExternalWorkerItemScorer scorer = workerBuilder(FailingWorker.class)
+                .setWorkerTimeout(200, TimeUnit.MILLISECONDS)
+                .buildWorker()) {
+            try {
+                scorer.scoreUsersWithDetails(requests);
+                fail("failed request should fail the batch");
+            } catch (ExternalProcessException e) {
+                assertThat(e.getMessage(), containsString("bad user"));
+            }
+            assertThat(scorer.getPendingRequestCount(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testCloseDestroysStuckWorker() throws IOException {
+        ExternalWorkerItemScorer scorer = workerBuilder(StuckWorker.class)
+                .setWorkerTimeout(200, TimeUnit.MILLISECONDS)
+                .buildWorker();
+        try {
+            scorer.close();
+            fail("close should give up on a worker that does not exit");
+        } catch (ExternalProcessException e) {
+            assertThat(e.getMessage(), containsString("did not exit"));
+        }
+    }
+}
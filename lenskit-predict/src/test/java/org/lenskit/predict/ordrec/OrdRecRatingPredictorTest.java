@@ -33,6 +33,7 @@ import org.lenskit.basic.PrecomputedItemScorer;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.dao.file.StaticDataSource;
 import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
 import org.lenskit.transform.quantize.Quantizer;
 import org.lenskit.transform.quantize.ValueArrayQuantizer;
 import org.lenskit.util.collections.LongUtils;
@@ -41,6 +42,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
 
 public class OrdRecRatingPredictorTest {
@@ -159,4 +161,51 @@ public class OrdRecRatingPredictorTest {
         assertThat(preds.getScore(11), equalTo(2.0));
         assertThat(preds.getScore(12), equalTo(3.0));
     }
+
+    /**
+     * Test that precomputed user parameters and cached on-demand models give the same predictions
+     * as per-request training.
+     */
+    @Test
+    public void testPrecomputedParameters() {
+        ItemScorer scorer = PrecomputedItemScorer.newBuilder()
+                .addScore(42, 1, 5)
+                .addScore(42, 2, 2)
+                .addScore(42, 3, 8)
+                .addScore(42, 4, 8.2)
+                .addScore(42, 5, 2.1)
+                .addScore(42, 6, 4.9)
+                .addScore(42, 7, 5)
+                .addScore(42, 8, 8)
+                .addScore(42, 9, 2)
+                .addScore(42, 10, 1.9)
+                .addScore(42, 11, 4.8)
+                .addScore(42, 12, 8.2)
+                .build();
+
+        OrdRecUserParameters params =
+                new OrdRecUserParametersProvider(scorer, new StandardRatingVectorPDAO(dao), qtz,
+                                                 1e-3, 0.015, 1000).get();
+        assertThat(params.getUserIndex().size(), equalTo(1));
+        assertThat(params.getLevelCount(), equalTo(3));
+
+        OrdRecRatingPredictor ordrec = new OrdRecRatingPredictor(scorer, dao, qtz, 1e-3, 0.015, 1000,
+                                                                 params, new OrdRecModelCache(10));
+        ResultMap preds = ordrec.predictWithDetails(42, LongUtils.packedSet(10, 11, 12));
+        assertThat(preds.getScore(10), equalTo(1.0));
+        assertThat(preds.getScore(11), equalTo(2.0));
+        assertThat(preds.getScore(12), equalTo(3.0));
+
+        // the model cache is shared across predictors, as it is across recommenders
+        OrdRecModelCache cache = new OrdRecModelCache(10);
+        for (int i = 0; i < 2; i++) {
+            OrdRecRatingPredictor cached = new OrdRecRatingPredictor(scorer, dao, qtz, 1e-3, 0.015, 1000,
+                                                                     null, cache);
+            preds = cached.predictWithDetails(42, LongUtils.packedSet(10, 11, 12));
+            assertThat(preds.getScore(10), equalTo(1.0));
+            assertThat(preds.getScore(11), equalTo(2.0));
+            assertThat(preds.getScore(12), equalTo(3.0));
+            assertThat(cache.get(42, new StandardRatingVectorPDAO(dao).userRatingVector(42)), notNullValue());
+        }
+    }
 }
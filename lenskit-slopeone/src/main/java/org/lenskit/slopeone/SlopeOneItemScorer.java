@@ -34,6 +34,7 @@ import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.data.ratings.PreferenceDomain;
 import org.lenskit.data.ratings.RatingVectorPDAO;
 import org.lenskit.results.Results;
+import org.lenskit.util.keys.SortedKeyIndex;
 import org.lenskit.util.math.Vectors;
 
 import javax.annotation.Nonnull;
@@ -45,54 +46,119 @@ import java.util.List;
 
 /**
  * An {@link ItemScorer} that implements the Slope One algorithm.
+ *
+ * <p>The user's ratings are mapped to the model's item indices once per request; each predictee's
+ * deviation row is then merged against them in a single pass.</p>
  */
 public class SlopeOneItemScorer extends AbstractItemScorer {
     protected final RatingVectorPDAO dao;
     protected SlopeOneModel model;
     protected final PreferenceDomain domain;
+    private final boolean weighted;
 
     @Inject
     public SlopeOneItemScorer(RatingVectorPDAO dao,
                               SlopeOneModel model,
                               @Nullable PreferenceDomain dom) {
+        this(dao, model, dom, false);
+    }
+
+    /**
+     * Construct a slope-one scorer.
+     *
+     * @param weighted {@code true} to weight each item's deviation by its number of co-rating users.
+     */
+    protected SlopeOneItemScorer(RatingVectorPDAO dao,
+                                 SlopeOneModel model,
+                                 @Nullable PreferenceDomain dom,
+                                 boolean weighted) {
         this.dao = dao;
         this.model = model;
         domain = dom;
+        this.weighted = weighted;
     }
 
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
         Long2DoubleMap ratings = dao.userRatingVector(user);
+        SortedKeyIndex index = model.getItemIndex();
+
+        // the user's known ratings, ordered by item index
+        int[] rated = new int[ratings.size()];
+        double[] values = new double[ratings.size()];
+        int nrated = 0;
+        for (Long2DoubleMap.Entry e: Vectors.fastEntries(ratings)) {
+            int idx = index.tryGetIndex(e.getLongKey());
+            if (idx >= 0) {
+                rated[nrated] = idx;
+                values[nrated] = e.getDoubleValue();
+                nrated++;
+            }
+        }
+        sortByIndex(rated, values, nrated);
 
         List<Result> results = new ArrayList<>();
         LongIterator iter = LongIterators.asLongIterator(items.iterator());
         while (iter.hasNext()) {
             final long predicteeItem = iter.nextLong();
-            if (!ratings.containsKey(predicteeItem)) {
-                double total = 0;
-                int nitems = 0;
-                for (Long2DoubleMap.Entry e: Vectors.fastEntries(ratings)) {
-                    long currentItem = e.getLongKey();
-                    int nusers = model.getCoratings(predicteeItem, currentItem);
-                    if (nusers != 0) {
-                        double currentDev = model.getDeviation(predicteeItem, currentItem);
-                        total += currentDev + e.getDoubleValue();
+            if (ratings.containsKey(predicteeItem)) {
+                continue;
+            }
+            int row = index.tryGetIndex(predicteeItem);
+            if (row < 0) {
+                continue;
+            }
+
+            double total = 0;
+            int nitems = 0;
+            int pos = model.rowStart(row);
+            int end = model.rowEnd(row);
+            int j = 0;
+            while (pos < end && j < nrated) {
+                int col = model.columnAt(pos);
+                if (col < rated[j]) {
+                    pos++;
+                } else if (col > rated[j]) {
+                    j++;
+                } else {
+                    double pred = model.deviationAt(pos) + values[j];
+                    if (weighted) {
+                        int weight = model.coratingsAt(pos);
+                        total += pred * weight;
+                        nitems += weight;
+                    } else {
+                        total += pred;
                         nitems++;
                     }
+                    pos++;
+                    j++;
                 }
-                if (nitems != 0) {
-                    double predValue = total / nitems;
-                    if (domain != null) {
-                        predValue = domain.clampValue(predValue);
-                    }
-                    results.add(Results.create(predicteeItem, predValue));
+            }
+
+            if (nitems != 0) {
+                double predValue = total / nitems;
+                if (domain != null) {
+                    predValue = domain.clampValue(predValue);
                 }
+                results.add(Results.create(predicteeItem, predValue));
             }
         }
         return Results.newResultMap(results);
     }
 
+    private static void sortByIndex(int[] indices, double[] values, int n) {
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, n, (i1, i2) -> Integer.compare(indices[i1], indices[i2]),
+                                               (i1, i2) -> {
+                                                   int ti = indices[i1];
+                                                   indices[i1] = indices[i2];
+                                                   indices[i2] = ti;
+                                                   double tv = values[i1];
+                                                   values[i1] = values[i2];
+                                                   values[i2] = tv;
+                                               });
+    }
+
     public SlopeOneModel getModel() {
         return model;
     }
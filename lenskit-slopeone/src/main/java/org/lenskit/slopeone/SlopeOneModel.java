@@ -24,107 +24,162 @@
  */
 package org.lenskit.slopeone;
 
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.inject.Shareable;
-import org.lenskit.util.keys.KeyedObject;
-import org.lenskit.util.keys.KeyedObjectMap;
 import org.lenskit.util.keys.SortedKeyIndex;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
  * A model for a {@link SlopeOneItemScorer} or {@link WeightedSlopeOneItemScorer}.
  * Stores calculated deviation values and number of co-rating users for each item pair.
+ *
+ * <p>The pairs are stored in packed compressed-row form over a shared item index: row <var>i</var>
+ * holds, in increasing order of item index, the items paired with item <var>i</var>, the deviation of
+ * <var>i</var> from each of them, and their co-rating counts.  Each pair therefore appears in the rows
+ * of both its items.  If the model was pruned to a maximum number of pairs per item, a pair may be
+ * kept in one item's row but not the other's.</p>
+ *
+ * <p>An unpruned model can be refreshed with new ratings by a {@link SlopeOneModelUpdater}.</p>
  */
 @DefaultProvider(SlopeOneModelProvider.class)
 @Shareable
 public class SlopeOneModel implements Serializable {
-    private static final long serialVersionUID = 2L;
+    private static final long serialVersionUID = 5L;
+
+    private final SortedKeyIndex items;
+    private final int[] offsets;
+    private final int[] columns;
+    private final double[] deviations;
+    private final int[] coratings;
+    private final double damping;
+    private final boolean pruned;
 
-    private final KeyedObjectMap<ModelRow> matrix;
+    /**
+     * Construct a new slope-one model from packed rows.  The arrays are used as-is, not copied.
+     *
+     * @param items The item index.
+     * @param offsets The start of each item's row, followed by the total number of entries.
+     * @param columns The item indices of each row's entries, sorted within each row.
+     * @param devs The deviation of the row item from each column item.
+     * @param counts The co-rating count of each entry.
+     * @param damping The damping term used to compute the deviations.
+     * @param pruned Whether pairs were dropped from the model.
+     */
+    SlopeOneModel(SortedKeyIndex items, int[] offsets, int[] columns, double[] devs, int[] counts,
+                  double damping, boolean pruned) {
+        Preconditions.checkArgument(offsets.length == items.size() + 1, "offset count mismatch");
+        Preconditions.checkArgument(columns.length == offsets[items.size()], "entry count mismatch");
+        Preconditions.checkArgument(devs.length == columns.length, "deviation count mismatch");
+        Preconditions.checkArgument(counts.length == columns.length, "co-rating count mismatch");
+        this.items = items;
+        this.offsets = offsets;
+        this.columns = columns;
+        deviations = devs;
+        coratings = counts;
+        this.damping = damping;
+        this.pruned = pruned;
+    }
 
-    public SlopeOneModel(KeyedObjectMap<ModelRow> matrix) {
-        this.matrix = matrix;
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (offsets.length != items.size() + 1 || offsets[items.size()] != columns.length
+                || deviations.length != columns.length || coratings.length != columns.length) {
+            throw new InvalidObjectException("inconsistent slope-one model data");
+        }
     }
 
     public double getDeviation(long item1, long item2) {
         if (item1 == item2) {
             return 0;
-        } else if (item1 < item2) {
-            ModelRow row = matrix.get(item1);
-            if (row == null) {
-                return Double.NaN;
-            } else {
-                return row.getDeviation(item2);
-            }
-        } else {
-            ModelRow row = matrix.get(item2);
-            if (row == null) {
-                return Double.NaN;
-            } else {
-                return -row.getDeviation(item1);
-            }
         }
+        int pos = find(item1, item2);
+        return pos >= 0 ? deviations[pos] : Double.NaN;
     }
 
     public int getCoratings(long item1, long item2) {
         if (item1 == item2) {
             return 0;
-        } else if (item1 < item2) {
-            ModelRow row = matrix.get(item1);
-            if (row == null) {
-                return 0;
-            } else {
-                return row.getCoratings(item2);
-            }
-        } else {
-            ModelRow row = matrix.get(item2);
-            if (row == null) {
-                return 0;
-            } else {
-                return row.getCoratings(item1);
-            }
         }
+        int pos = find(item1, item2);
+        return pos >= 0 ? coratings[pos] : 0;
     }
 
-    static class ModelRow implements Serializable, KeyedObject {
-        private static final long serialVersionUID = 1L;
-
-        private final long item;
-        private final SortedKeyIndex items;
-        private final double[] deviations;
-        private final int[] coratings;
-
-        ModelRow(long i, SortedKeyIndex is, double[] ds, int[] crs) {
-            assert ds.length == is.size();
-            assert crs.length == is.size();
-            item = i;
-            items = is;
-            deviations = ds;
-            coratings = crs;
-        }
+    /**
+     * Get the index of items in this model.
+     * @return The item index.
+     */
+    public SortedKeyIndex getItemIndex() {
+        return items;
+    }
 
-        @Override
-        public long getKey() {
-            return item;
-        }
+    /**
+     * Get the damping term used to compute this model's deviations.
+     * @return The deviation damping term.
+     */
+    public double getDamping() {
+        return damping;
+    }
 
-        double getDeviation(long item) {
-            int idx = items.tryGetIndex(item);
-            if (idx >= 0) {
-                return deviations[idx];
-            } else {
-                return Double.NaN;
-            }
-        }
+    /**
+     * Query whether item pairs were pruned from this model by minimum support or neighbor count.
+     * Pruned models cannot be incrementally updated.
+     * @return {@code true} if the model is missing some co-rated pairs.
+     */
+    public boolean isPruned() {
+        return pruned;
+    }
 
-        int getCoratings(long item) {
-            int idx = items.tryGetIndex(item);
-            if (idx >= 0) {
-                return coratings[idx];
-            } else {
-                return 0;
-            }
+    /**
+     * Get the total number of stored entries, counting each pair once per row it appears in.
+     * @return The number of entries.
+     */
+    public int getEntryCount() {
+        return columns.length;
+    }
+
+    private int find(long item1, long item2) {
+        int i1 = items.tryGetIndex(item1);
+        int i2 = items.tryGetIndex(item2);
+        if (i1 < 0 || i2 < 0) {
+            return -1;
         }
+        int pos = IntArrays.binarySearch(columns, offsets[i1], offsets[i1 + 1], i2);
+        return pos >= 0 ? pos : -1;
+    }
+
+    /**
+     * Get the start of an item's row.
+     * @param idx The item index.
+     * @return The position of the row's first entry.
+     */
+    int rowStart(int idx) {
+        return offsets[idx];
+    }
+
+    /**
+     * Get the end of an item's row.
+     * @param idx The item index.
+     * @return The position after the row's last entry.
+     */
+    int rowEnd(int idx) {
+        return offsets[idx + 1];
+    }
+
+    int columnAt(int pos) {
+        return columns[pos];
+    }
+
+    double deviationAt(int pos) {
+        return deviations[pos];
+    }
+
+    int coratingsAt(int pos) {
+        return coratings[pos];
     }
 }
@@ -24,17 +24,26 @@
  */
 package org.lenskit.slopeone;
 
-import it.unimi.dsi.fastutil.longs.*;
-import org.apache.commons.lang3.tuple.Pair;
-import org.lenskit.util.keys.KeyedObjectMap;
-import org.lenskit.util.keys.KeyedObjectMapBuilder;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.Long2DoubleSortedMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.util.keys.SortedKeyIndex;
 
-import java.util.Map;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
+/**
+ * Accumulates deviation sums and co-rating counts for item pairs.
+ *
+ * <p>Each pair is stored in the row of its lesser item, as a sparse row of primitive arrays indexed by
+ * the greater item's index.  Accumulators are not thread-safe, except that
+ * {@link #putAllUserRatings(long[][], double[][], int)} fills disjoint ranges of rows in parallel.</p>
+ */
 public class SlopeOneModelDataAccumulator {
-
-    private Long2ObjectMap<Pair<Long2DoubleMap, Long2IntMap>> workMatrix;
+    private final SortedKeyIndex itemIndex;
+    private Row[] rows;
     private double damping;
 
     /**
@@ -46,14 +55,8 @@ public class SlopeOneModelDataAccumulator {
      */
     public SlopeOneModelDataAccumulator(double damping, LongSet items) {
         this.damping = damping;
-
-        workMatrix = new Long2ObjectOpenHashMap<>(items.size());
-        LongIterator iter = items.iterator();
-        while (iter.hasNext()) {
-            long item = iter.nextLong();
-            workMatrix.put(item, Pair.<Long2DoubleMap, Long2IntMap>of(new Long2DoubleOpenHashMap(),
-                                                                      new Long2IntOpenHashMap()));
-        }
+        itemIndex = SortedKeyIndex.fromCollection(items);
+        rows = new Row[itemIndex.size()];
     }
 
     /**
@@ -63,9 +66,12 @@ public class SlopeOneModelDataAccumulator {
      * @param itemVec1 The rating vector of the first item.
      * @param id2      The id of the second item.
      * @param itemVec2 The rating vector of the second item.
+     * @deprecated Use {@link #putUserRatings(long[], double[], int)}, which visits each rating pair once
+     *             instead of intersecting item vectors.
      */
+    @Deprecated
     public void putItemPair(long id1, Long2DoubleSortedMap itemVec1, long id2, Long2DoubleSortedMap itemVec2) {
-        if (workMatrix == null) {
+        if (rows == null) {
             throw new IllegalStateException("Model is already built");
         }
 
@@ -81,45 +87,426 @@ public class SlopeOneModelDataAccumulator {
                     deviation += itemVec1.get(u) - itemVec2.get(u);
                 }
             }
-            deviation = (coratings == 0) ? Double.NaN : deviation;
+            if (coratings > 0) {
+                getRow(itemIndex.getIndex(id1)).set(itemIndex.getIndex(id2), deviation, coratings);
+            }
+        }
+    }
+
+    /**
+     * Accumulate the deviations between all pairs of one user's ratings.
+     *
+     * @param items  The user's rated items, in increasing order of ID.
+     * @param values The user's (normalized) ratings, parallel to {@code items}.
+     * @param n      The number of ratings.
+     */
+    public void putUserRatings(long[] items, double[] values, int n) {
+        accumulateUser(items, values, n, 1);
+    }
+
+    /**
+     * Subtract the deviations between all pairs of one user's ratings.  This is used with
+     * {@link #updateModel(SlopeOneModel)} to retract a user's old ratings from a model.
+     *
+     * @param items  The user's previously-rated items, in increasing order of ID.
+     * @param values The user's previous (normalized) ratings, parallel to {@code items}.
+     * @param n      The number of ratings.
+     */
+    public void removeUserRatings(long[] items, double[] values, int n) {
+        accumulateUser(items, values, n, -1);
+    }
+
+    private void accumulateUser(long[] items, double[] values, int n, int sign) {
+        if (rows == null) {
+            throw new IllegalStateException("Model is already built");
+        }
+
+        int[] indices = new int[n];
+        for (int j = 0; j < n; j++) {
+            indices[j] = itemIndex.getIndex(items[j]);
+        }
+        for (int j1 = 0; j1 < n; j1++) {
+            Row row = getRow(indices[j1]);
+            double v1 = values[j1];
+            for (int j2 = j1 + 1; j2 < n; j2++) {
+                row.add(indices[j2], sign * (v1 - values[j2]), sign);
+            }
+        }
+    }
+
+    /**
+     * Accumulate the deviations between all pairs of many users' ratings in parallel.  The work is split by
+     * the lesser item of each pair: each task owns a contiguous range of rows, chosen to balance the number of
+     * pairs, and walks every user's ratings adding only the pairs whose lesser item falls in its range.  Tasks
+     * never share a row, so each row is held once no matter how many tasks run.
+     *
+     * @param items  Each user's rated items, in increasing order of ID.
+     * @param values Each user's (normalized) ratings, parallel to {@code items}.
+     * @param ntasks The number of row ranges to fill in parallel.
+     */
+    public void putAllUserRatings(long[][] items, double[][] values, int ntasks) {
+        if (rows == null) {
+            throw new IllegalStateException("Model is already built");
+        }
+        final int nusers = items.length;
+        final int nrows = rows.length;
+
+        // map each user's items to row indices, counting the pairs each row will receive
+        final int[][] indices = new int[nusers][];
+        long[] work = new long[nrows + 1];
+        for (int u = 0; u < nusers; u++) {
+            long[] uitems = items[u];
+            int n = uitems.length;
+            int[] idx = new int[n];
+            for (int j = 0; j < n; j++) {
+                idx[j] = itemIndex.getIndex(uitems[j]);
+                work[idx[j] + 1] += n - j - 1;
+            }
+            indices[u] = idx;
+        }
+        for (int i = 0; i < nrows; i++) {
+            work[i + 1] += work[i];
+        }
 
-            Pair<Long2DoubleMap, Long2IntMap> row = workMatrix.get(id1);
-            row.getLeft().put(id2, deviation);
-            row.getRight().put(id2, coratings);
+        // split the rows into ranges with roughly equal numbers of pairs
+        final int nranges = Math.max(1, Math.min(ntasks, nrows));
+        final int[] bounds = new int[nranges + 1];
+        bounds[nranges] = nrows;
+        for (int r = 1; r < nranges; r++) {
+            long target = work[nrows] * r / nranges;
+            int b = Arrays.binarySearch(work, bounds[r - 1], nrows + 1, target);
+            if (b < 0) {
+                b = -b - 1;
+            }
+            bounds[r] = Math.min(b, nrows);
         }
+
+        IntStream.range(0, nranges).parallel().forEach(r -> {
+            final int lo = bounds[r];
+            final int hi = bounds[r + 1];
+            if (lo >= hi) {
+                return;
+            }
+            for (int u = 0; u < nusers; u++) {
+                int[] idx = indices[u];
+                double[] uvals = values[u];
+                int n = idx.length;
+                int start = Arrays.binarySearch(idx, lo);
+                if (start < 0) {
+                    start = -start - 1;
+                }
+                for (int j1 = start; j1 < n && idx[j1] < hi; j1++) {
+                    Row row = getRow(idx[j1]);
+                    double v1 = uvals[j1];
+                    for (int j2 = j1 + 1; j2 < n; j2++) {
+                        row.add(idx[j2], v1 - uvals[j2], 1);
+                    }
+                }
+            }
+        });
     }
 
     /**
-     * @return A matrix of item deviation and corating values to be used by
+     * Build the model with all accumulated pairs.
+     *
+     * @return A model of item deviation and corating values to be used by
+     *         a {@code SlopeOneItemScorer}.
+     */
+    public SlopeOneModel buildModel() {
+        return buildModel(1, 0);
+    }
+
+    /**
+     * Build the model, pruning pairs with little support.
+     *
+     * @param minSupport The minimum number of co-rating users for a pair to be kept.
+     * @param maxNeighbors The maximum number of pairs to keep for each item, choosing those with
+     *                     the most co-rating users; 0 for no limit.
+     * @return A model of item deviation and corating values to be used by
      *         a {@code SlopeOneItemScorer}.
      */
-    public KeyedObjectMap<SlopeOneModel.ModelRow> buildMatrix() {
-        if (workMatrix == null) {
+    public SlopeOneModel buildModel(int minSupport, int maxNeighbors) {
+        if (rows == null) {
             throw new IllegalStateException("Model is already built");
         }
+        final int n = rows.length;
+        final int support = Math.max(minSupport, 1);
 
-        KeyedObjectMapBuilder<SlopeOneModel.ModelRow> builder = KeyedObjectMap.newBuilder();
+        // count each row's entries; a pair is stored in the rows of both its items
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            Row row = rows[i];
+            if (row == null) {
+                continue;
+            }
+            for (int s = 0; s < row.size; s++) {
+                if (row.counts[s] >= support) {
+                    offsets[i + 1] += 1;
+                    offsets[row.columns[s] + 1] += 1;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
 
-        for (Map.Entry<Long, Pair<Long2DoubleMap, Long2IntMap>> e : workMatrix.entrySet()) {
-            Long2DoubleMap vec = e.getValue().getLeft();
-            Long2IntMap cor = e.getValue().getRight();
-            SortedKeyIndex idx = SortedKeyIndex.fromCollection(vec.keySet());
-            int n = idx.size();
-            double[] deviations = new double[n];
-            int[] counts = new int[n];
+        int total = offsets[n];
+        int[] columns = new int[total];
+        double[] deviations = new double[total];
+        int[] counts = new int[total];
+        int[] cursors = Arrays.copyOf(offsets, n);
+        for (int i = 0; i < n; i++) {
+            Row row = rows[i];
+            if (row == null) {
+                continue;
+            }
+            for (int s = 0; s < row.size; s++) {
+                int count = row.counts[s];
+                if (count < support) {
+                    continue;
+                }
+                int j = row.columns[s];
+                double dev = row.sums[s] / (count + damping);
+                int p1 = cursors[i]++;
+                columns[p1] = j;
+                deviations[p1] = dev;
+                counts[p1] = count;
+                int p2 = cursors[j]++;
+                columns[p2] = i;
+                deviations[p2] = -dev;
+                counts[p2] = count;
+            }
+            rows[i] = null;
+        }
+        rows = null;
+
+        final int[] offs = offsets;
+        IntStream.range(0, n).parallel().forEach(i -> {
+            int lb = offs[i];
+            int ub = offs[i + 1];
+            if (maxNeighbors > 0 && ub - lb > maxNeighbors) {
+                // bring the best-supported entries to the front of the row
+                sortSegment(columns, deviations, counts, lb, ub,
+                            (p1, p2) -> counts[p1] != counts[p2]
+                                    ? Integer.compare(counts[p2], counts[p1])
+                                    : Integer.compare(columns[p1], columns[p2]));
+                ub = lb + maxNeighbors;
+            }
+            sortSegment(columns, deviations, counts, lb, ub,
+                        (p1, p2) -> Integer.compare(columns[p1], columns[p2]));
+        });
 
+        if (maxNeighbors > 0) {
+            // compact the truncated rows
+            int[] newOffsets = new int[n + 1];
             for (int i = 0; i < n; i++) {
-                long item = idx.getKey(i);
-                double deviation = vec.get(item);
-                int coratings = cor.get(item);
-                deviations[i] = deviation / (coratings + damping);
-                counts[i] = coratings;
+                newOffsets[i + 1] = newOffsets[i] + Math.min(offsets[i + 1] - offsets[i], maxNeighbors);
+            }
+            int kept = newOffsets[n];
+            int[] newColumns = new int[kept];
+            double[] newDeviations = new double[kept];
+            int[] newCounts = new int[kept];
+            for (int i = 0; i < n; i++) {
+                int len = newOffsets[i + 1] - newOffsets[i];
+                System.arraycopy(columns, offsets[i], newColumns, newOffsets[i], len);
+                System.arraycopy(deviations, offsets[i], newDeviations, newOffsets[i], len);
+                System.arraycopy(counts, offsets[i], newCounts, newOffsets[i], len);
+            }
+            return new SlopeOneModel(itemIndex, newOffsets, newColumns, newDeviations, newCounts, damping, true);
+        } else {
+            return new SlopeOneModel(itemIndex, offsets, columns, deviations, counts, damping, support > 1);
+        }
+    }
+
+    /**
+     * Build a model by adding this accumulator's sums to those of a previous model.  Only the rows of
+     * items with accumulated pairs are recomputed; all other rows are copied.  Pairs whose co-rating
+     * count drops to zero are removed.
+     *
+     * @param previous The model to update.  It must not be pruned, and all of its items must be in
+     *                 this accumulator's item set.
+     * @return The updated model, using this accumulator's damping term.
+     */
+    public SlopeOneModel updateModel(SlopeOneModel previous) {
+        if (rows == null) {
+            throw new IllegalStateException("Model is already built");
+        }
+        if (previous.isPruned()) {
+            throw new IllegalArgumentException("cannot update a pruned model");
+        }
+        final int n = rows.length;
+        final SortedKeyIndex prevItems = previous.getItemIndex();
+        final double prevDamping = previous.getDamping();
+
+        // map between the previous model's item indices and ours; both are sorted, so it is monotonic
+        final int[] newIndex = new int[prevItems.size()];
+        final int[] oldIndex = new int[n];
+        Arrays.fill(oldIndex, -1);
+        for (int k = 0; k < newIndex.length; k++) {
+            long item = prevItems.getKey(k);
+            int i = itemIndex.tryGetIndex(item);
+            if (i < 0) {
+                throw new IllegalArgumentException("item " + item + " of previous model is not in accumulator");
+            }
+            newIndex[k] = i;
+            oldIndex[i] = k;
+        }
+
+        // spread the accumulated pairs into the rows of both their items
+        final Row[] changed = new Row[n];
+        for (int i = 0; i < n; i++) {
+            Row row = rows[i];
+            if (row == null) {
+                continue;
+            }
+            for (int s = 0; s < row.size; s++) {
+                int j = row.columns[s];
+                changedRow(changed, i).add(j, row.sums[s], row.counts[s]);
+                changedRow(changed, j).add(i, -row.sums[s], row.counts[s]);
             }
+            rows[i] = null;
+        }
+        rows = null;
+
+        // fold the previous model's entries into the changed rows
+        IntStream.range(0, n).parallel().forEach(i -> {
+            Row row = changed[i];
+            int k = oldIndex[i];
+            if (row == null || k < 0) {
+                return;
+            }
+            for (int pos = previous.rowStart(k), end = previous.rowEnd(k); pos < end; pos++) {
+                int count = previous.coratingsAt(pos);
+                row.add(newIndex[previous.columnAt(pos)],
+                        previous.deviationAt(pos) * (count + prevDamping),
+                        count);
+            }
+        });
 
-            builder.add(new SlopeOneModel.ModelRow(e.getKey(), idx, deviations, counts));
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            int len = 0;
+            Row row = changed[i];
+            if (row != null) {
+                for (int s = 0; s < row.size; s++) {
+                    if (row.counts[s] > 0) {
+                        len++;
+                    }
+                }
+            } else if (oldIndex[i] >= 0) {
+                len = previous.rowEnd(oldIndex[i]) - previous.rowStart(oldIndex[i]);
+            }
+            offsets[i + 1] = offsets[i] + len;
         }
 
-        workMatrix = null;
-        return builder.build();
+        int total = offsets[n];
+        int[] columns = new int[total];
+        double[] deviations = new double[total];
+        int[] counts = new int[total];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            int p = offsets[i];
+            Row row = changed[i];
+            if (row != null) {
+                for (int s = 0; s < row.size; s++) {
+                    int count = row.counts[s];
+                    if (count > 0) {
+                        columns[p] = row.columns[s];
+                        deviations[p] = row.sums[s] / (count + damping);
+                        counts[p] = count;
+                        p++;
+                    }
+                }
+                sortSegment(columns, deviations, counts, offsets[i], p,
+                            (p1, p2) -> Integer.compare(columns[p1], columns[p2]));
+            } else if (oldIndex[i] >= 0) {
+                for (int pos = previous.rowStart(oldIndex[i]), end = previous.rowEnd(oldIndex[i]); pos < end; pos++) {
+                    columns[p] = newIndex[previous.columnAt(pos)];
+                    deviations[p] = previous.deviationAt(pos);
+                    counts[p] = previous.coratingsAt(pos);
+                    p++;
+                }
+            }
+        });
+
+        return new SlopeOneModel(itemIndex, offsets, columns, deviations, counts, damping, false);
+    }
+
+    private static Row changedRow(Row[] changed, int idx) {
+        Row row = changed[idx];
+        if (row == null) {
+            row = new Row();
+            changed[idx] = row;
+        }
+        return row;
+    }
+
+    /**
+     * Sort a segment of the parallel entry arrays.
+     */
+    private static void sortSegment(int[] columns, double[] deviations, int[] counts, int lb, int ub,
+                                    IntComparator order) {
+        it.unimi.dsi.fastutil.Arrays.quickSort(lb, ub, order, (p1, p2) -> {
+            int c = columns[p1];
+            columns[p1] = columns[p2];
+            columns[p2] = c;
+            double d = deviations[p1];
+            deviations[p1] = deviations[p2];
+            deviations[p2] = d;
+            int n = counts[p1];
+            counts[p1] = counts[p2];
+            counts[p2] = n;
+        });
+    }
+
+    private Row getRow(int idx) {
+        Row row = rows[idx];
+        if (row == null) {
+            row = new Row();
+            rows[idx] = row;
+        }
+        return row;
+    }
+
+    /**
+     * A sparse row of deviation sums and co-rating counts.
+     */
+    private static class Row {
+        private final Int2IntOpenHashMap slots = new Int2IntOpenHashMap();
+        private int[] columns = new int[4];
+        private double[] sums = new double[4];
+        private int[] counts = new int[4];
+        private int size;
+
+        Row() {
+            slots.defaultReturnValue(-1);
+        }
+
+        private int slot(int column) {
+            int s = slots.get(column);
+            if (s < 0) {
+                s = size++;
+                if (s == columns.length) {
+                    int cap = columns.length * 2;
+                    columns = Arrays.copyOf(columns, cap);
+                    sums = Arrays.copyOf(sums, cap);
+                    counts = Arrays.copyOf(counts, cap);
+                }
+                columns[s] = column;
+                slots.put(column, s);
+            }
+            return s;
+        }
+
+        void add(int column, double deviation, int n) {
+            int s = slot(column);
+            sums[s] += deviation;
+            counts[s] += n;
+        }
+
+        void set(int column, double deviation, int n) {
+            int s = slot(column);
+            sums[s] = deviation;
+            counts[s] = n;
+        }
     }
 }
@@ -25,31 +25,56 @@
 package org.lenskit.slopeone;
 
 import it.unimi.dsi.fastutil.longs.Long2DoubleSortedMap;
-import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.apache.commons.lang3.time.StopWatch;
 import org.lenskit.inject.Transient;
 import org.lenskit.knn.item.model.ItemItemBuildContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
+import java.util.stream.IntStream;
 
 /**
  * Pre-computes the deviations and number of mutual rating users for every pair
  * of items and stores the results in a {@code DeviationMatrix} and
  * {@code CoratingMatrix}. These matrices are later used by a
  * {@code SlopeOneItemScorer}.
+ *
+ * <p>The build accumulates every pair of each user's items from the user's ratings.  It is
+ * parallelized by item rather than by user: each thread fills the rows of a range of items in
+ * a single shared {@link SlopeOneModelDataAccumulator}, so peak memory stays at one copy of the
+ * pair matrix regardless of the number of threads.</p>
+ *
+ * <p>Pairs with fewer than {@link DeviationMinSupport} co-rating users are dropped, and if
+ * {@link DeviationNeighborCount} is positive, only that many best-supported pairs are kept
+ * for each item.</p>
  */
 public class SlopeOneModelProvider implements Provider<SlopeOneModel> {
-    private final SlopeOneModelDataAccumulator accumulator;
+    private static final Logger logger = LoggerFactory.getLogger(SlopeOneModelProvider.class);
+
+    private final double damping;
+    private final int minSupport;
+    private final int maxNeighbors;
 
     private final ItemItemBuildContext buildContext;
 
-    @Inject
     public SlopeOneModelProvider(@Transient ItemItemBuildContext context,
                                  @DeviationDamping double damping) {
+        this(context, damping, 1, 0);
+    }
+
+    @Inject
+    public SlopeOneModelProvider(@Transient ItemItemBuildContext context,
+                                 @DeviationDamping double damping,
+                                 @DeviationMinSupport int minSupport,
+                                 @DeviationNeighborCount int maxNeighbors) {
 
         buildContext = context;
-        accumulator = new SlopeOneModelDataAccumulator(damping, context.getItems());
+        this.damping = damping;
+        this.minSupport = minSupport;
+        this.maxNeighbors = maxNeighbors;
     }
 
     /**
@@ -57,20 +82,34 @@ public class SlopeOneModelProvider implements Provider<SlopeOneModel> {
      */
     @Override
     public SlopeOneModel get() {
-        LongSet items = buildContext.getItems();
-        LongIterator outer = items.iterator();
-        while (outer.hasNext()) {
-            final long item1 = outer.nextLong();
-            final Long2DoubleSortedMap vec1 = buildContext.itemVector(item1);
-            LongIterator inner = items.iterator();
-            while (inner.hasNext()) {
-                final long item2 = inner.nextLong();
-                if (item1 != item2) {
-                    Long2DoubleSortedMap vec2 = buildContext.itemVector(item2);
-                    accumulator.putItemPair(item1, vec1, item2, vec2);
-                }
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        final LongSortedSet items = buildContext.getItems();
+        final long[] users = buildContext.getUsers().toLongArray();
+        final long[][] userItems = new long[users.length][];
+        final double[][] userValues = new double[users.length][];
+        IntStream.range(0, users.length).parallel().forEach(u -> {
+            long[] itemIds = buildContext.getUserItems(users[u]).toLongArray();
+            double[] values = new double[itemIds.length];
+            for (int j = 0; j < itemIds.length; j++) {
+                Long2DoubleSortedMap vec = buildContext.itemVector(itemIds[j]);
+                values[j] = vec.get(users[u]);
             }
-        }
-        return new SlopeOneModel(accumulator.buildMatrix());
+            userItems[u] = itemIds;
+            userValues[u] = values;
+        });
+
+        // several ranges per thread, so a slow range does not hold up the others
+        int ntasks = 4 * Runtime.getRuntime().availableProcessors();
+        logger.info("accumulating item pairs for {} items from {} users in {} row ranges",
+                    items.size(), users.length, ntasks);
+        SlopeOneModelDataAccumulator accumulator = new SlopeOneModelDataAccumulator(damping, items);
+        accumulator.putAllUserRatings(userItems, userValues, ntasks);
+
+        SlopeOneModel model = accumulator.buildModel(minSupport, maxNeighbors);
+        timer.stop();
+        logger.info("built slope-one model with {} entries in {}", model.getEntryCount(), timer);
+        return model;
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.slopeone;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleSortedMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.apache.commons.lang3.time.StopWatch;
+import org.lenskit.util.collections.LongUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a batch of rating changes to a previously-built {@link SlopeOneModel}.
+ *
+ * <p>Since slope-one deviations are sums over users, a user's changed ratings can be folded into a model
+ * by subtracting the pairs of their old ratings and adding the pairs of their new ones.  The updater
+ * buffers the changed users, and {@link #build()} recomputes only the rows of items that changed users
+ * have rated; every other row is copied from the previous model.  New items are added to the model.</p>
+ *
+ * <p>Ratings must be normalized the same way as those the previous model was built from.  The previous
+ * model must not be pruned (see {@link SlopeOneModel#isPruned()}), since its dropped pairs could not be
+ * updated.</p>
+ */
+public class SlopeOneModelUpdater {
+    private static final Logger logger = LoggerFactory.getLogger(SlopeOneModelUpdater.class);
+
+    private final SlopeOneModel model;
+    private final double damping;
+    private final List<Long2DoubleSortedMap> oldRatings = new ArrayList<>();
+    private final List<Long2DoubleSortedMap> newRatings = new ArrayList<>();
+
+    /**
+     * Create an updater that uses the previous model's damping term.
+     *
+     * @param model The model to update.
+     */
+    public SlopeOneModelUpdater(SlopeOneModel model) {
+        this(model, model.getDamping());
+    }
+
+    /**
+     * Create an updater.
+     *
+     * @param model   The model to update.
+     * @param damping The damping term for the updated deviations.
+     */
+    public SlopeOneModelUpdater(SlopeOneModel model, double damping) {
+        if (model.isPruned()) {
+            throw new IllegalArgumentException("cannot update a pruned model");
+        }
+        this.model = model;
+        this.damping = damping;
+    }
+
+    /**
+     * Record a change to one user's ratings.
+     *
+     * @param previous The user's ratings that are reflected in the previous model (empty for new users).
+     * @param current  The user's current ratings.
+     */
+    public void updateUser(Long2DoubleMap previous, Long2DoubleMap current) {
+        oldRatings.add(LongUtils.frozenMap(previous));
+        newRatings.add(LongUtils.frozenMap(current));
+    }
+
+    /**
+     * Build the updated model.
+     *
+     * @return A new model reflecting the recorded rating changes.
+     */
+    public SlopeOneModel build() {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        LongSet items = new LongOpenHashSet(model.getItemIndex().getKeyList());
+        for (int u = 0; u < oldRatings.size(); u++) {
+            items.addAll(oldRatings.get(u).keySet());
+            items.addAll(newRatings.get(u).keySet());
+        }
+
+        SlopeOneModelDataAccumulator accumulator = new SlopeOneModelDataAccumulator(damping, items);
+        for (int u = 0; u < oldRatings.size(); u++) {
+            Long2DoubleSortedMap old = oldRatings.get(u);
+            accumulator.removeUserRatings(old.keySet().toLongArray(),
+                                          old.values().toDoubleArray(), old.size());
+            Long2DoubleSortedMap cur = newRatings.get(u);
+            accumulator.putUserRatings(cur.keySet().toLongArray(),
+                                       cur.values().toDoubleArray(), cur.size());
+        }
+
+        SlopeOneModel updated = accumulator.updateModel(model);
+        timer.stop();
+        logger.info("applied rating changes for {} users to slope-one model in {}", oldRatings.size(), timer);
+        return updated;
+    }
+}
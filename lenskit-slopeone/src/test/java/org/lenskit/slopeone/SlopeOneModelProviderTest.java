@@ -24,17 +24,18 @@
  */
 package org.lenskit.slopeone;
 
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.junit.Test;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.dao.file.StaticDataSource;
 import org.lenskit.data.ratings.Rating;
 import org.lenskit.data.ratings.RatingVectorPDAO;
 import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.knn.item.model.ItemItemBuildContext;
 import org.lenskit.knn.item.model.ItemItemBuildContextProvider;
 import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 import static org.junit.Assert.assertEquals;
 
@@ -184,4 +185,119 @@ public class SlopeOneModelProviderTest {
         assertEquals(-1, model4.getDeviation(6, 7), EPSILON);
         assertEquals(1, model4.getDeviation(7, 6), EPSILON);
     }
+
+    @Test
+    public void testMatchesBruteForce() {
+        Random rng = new Random(42);
+        List<Rating> rs = new ArrayList<>();
+        Map<Long, Map<Long, Double>> userRatings = new HashMap<>();
+        for (long user = 1; user <= 50; user++) {
+            Map<Long, Double> urs = new HashMap<>();
+            for (long item = 1; item <= 30; item++) {
+                if (rng.nextDouble() < 0.3) {
+                    double v = 1 + rng.nextInt(5);
+                    rs.add(Rating.create(user, item, v));
+                    urs.put(item, v);
+                }
+            }
+            userRatings.put(user, urs);
+        }
+
+        DataAccessObject dao = StaticDataSource.fromList(rs).get();
+        ItemItemBuildContext context = new ItemItemBuildContextProvider(
+                new StandardRatingVectorPDAO(dao), new DefaultUserVectorNormalizer()).get();
+        LongSet items = context.getItems();
+        List<SlopeOneModel> models = new ArrayList<>();
+        models.add(getModel(rs));
+        // split the rows into varying numbers of ranges, including more ranges than items
+        long[] users = context.getUsers().toLongArray();
+        long[][] userItems = new long[users.length][];
+        double[][] userValues = new double[users.length][];
+        for (int u = 0; u < users.length; u++) {
+            userItems[u] = context.getUserItems(users[u]).toLongArray();
+            userValues[u] = new double[userItems[u].length];
+            for (int j = 0; j < userItems[u].length; j++) {
+                userValues[u][j] = userRatings.get(users[u]).get(userItems[u][j]);
+            }
+        }
+        for (int ntasks: new int[]{1, 3, 64}) {
+            SlopeOneModelDataAccumulator acc = new SlopeOneModelDataAccumulator(0, items);
+            acc.putAllUserRatings(userItems, userValues, ntasks);
+            models.add(acc.buildModel());
+        }
+
+        for (long i1: items) {
+            for (long i2: items) {
+                if (i1 == i2) {
+                    continue;
+                }
+                int count = 0;
+                double sum = 0;
+                for (Map<Long, Double> urs: userRatings.values()) {
+                    if (urs.containsKey(i1) && urs.containsKey(i2)) {
+                        count += 1;
+                        sum += urs.get(i1) - urs.get(i2);
+                    }
+                }
+                for (SlopeOneModel model: models) {
+                    assertEquals(count, model.getCoratings(i1, i2));
+                    if (count == 0) {
+                        assertEquals(Double.NaN, model.getDeviation(i1, i2), 0);
+                    } else {
+                        assertEquals(sum / count, model.getDeviation(i1, i2), EPSILON);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPruneBySupport() {
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(1, 4, 3.5));
+        rs.add(Rating.create(2, 4, 5));
+        rs.add(Rating.create(3, 5, 4.25));
+        rs.add(Rating.create(2, 6, 3));
+        rs.add(Rating.create(1, 7, 4));
+        rs.add(Rating.create(2, 7, 4));
+        rs.add(Rating.create(3, 7, 1.5));
+
+        DataAccessObject dao = StaticDataSource.fromList(rs).get();
+        ItemItemBuildContext context = new ItemItemBuildContextProvider(
+                new StandardRatingVectorPDAO(dao), new DefaultUserVectorNormalizer()).get();
+
+        SlopeOneModel model = new SlopeOneModelProvider(context, 0, 2, 0).get();
+        assertEquals(2, model.getEntryCount());
+        assertEquals(2, model.getCoratings(4, 7));
+        assertEquals(-0.25, model.getDeviation(7, 4), EPSILON);
+        assertEquals(0, model.getCoratings(4, 6));
+        assertEquals(Double.NaN, model.getDeviation(5, 7), 0);
+    }
+
+    @Test
+    public void testPruneByNeighborCount() {
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(1, 4, 3.5));
+        rs.add(Rating.create(2, 4, 5));
+        rs.add(Rating.create(3, 5, 4.25));
+        rs.add(Rating.create(2, 6, 3));
+        rs.add(Rating.create(1, 7, 4));
+        rs.add(Rating.create(2, 7, 4));
+        rs.add(Rating.create(3, 7, 1.5));
+
+        DataAccessObject dao = StaticDataSource.fromList(rs).get();
+        ItemItemBuildContext context = new ItemItemBuildContextProvider(
+                new StandardRatingVectorPDAO(dao), new DefaultUserVectorNormalizer()).get();
+
+        SlopeOneModel model = new SlopeOneModelProvider(context, 0, 1, 1).get();
+        // item 7's best-supported neighbor is 4; item 6's is 4 (tie with 7 broken by index)
+        assertEquals(2, model.getCoratings(7, 4));
+        assertEquals(0, model.getCoratings(7, 5));
+        assertEquals(0, model.getCoratings(7, 6));
+        assertEquals(1, model.getCoratings(6, 4));
+        assertEquals(0, model.getCoratings(6, 7));
+        assertEquals(1, model.getCoratings(5, 7));
+        assertEquals(2, model.getCoratings(4, 7));
+        assertEquals(4, model.getEntryCount());
+    }
 }
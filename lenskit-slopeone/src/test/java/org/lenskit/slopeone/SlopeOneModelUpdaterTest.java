@@ -0,0 +1,190 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.slopeone;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.junit.Test;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.knn.item.model.ItemItemBuildContext;
+import org.lenskit.knn.item.model.ItemItemBuildContextProvider;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class SlopeOneModelUpdaterTest {
+    public static final double EPSILON = 1.0e-5;
+
+    private ItemItemBuildContext getContext(List<Rating> ratings) {
+        DataAccessObject dao = StaticDataSource.fromList(ratings).get();
+        return new ItemItemBuildContextProvider(new StandardRatingVectorPDAO(dao),
+                                                new DefaultUserVectorNormalizer()).get();
+    }
+
+    private Long2DoubleMap userRatings(List<Rating> ratings, long user) {
+        Long2DoubleMap map = new Long2DoubleOpenHashMap();
+        for (Rating r: ratings) {
+            if (r.getUserId() == user) {
+                map.put(r.getItemId(), r.getValue());
+            }
+        }
+        return map;
+    }
+
+    @Test
+    public void testUpdateMatchesRebuild() {
+        Random rng = new Random(42);
+        List<Rating> before = new ArrayList<>();
+        for (long user = 1; user <= 40; user++) {
+            for (long item = 1; item <= 25; item++) {
+                if (rng.nextDouble() < 0.3) {
+                    before.add(Rating.create(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+
+        // users 1-5 change their ratings, user 41 is new, and item 26 is new
+        List<Rating> after = new ArrayList<>();
+        for (Rating r: before) {
+            if (r.getUserId() > 5) {
+                after.add(r);
+            }
+        }
+        for (long user = 1; user <= 5; user++) {
+            for (long item = 1; item <= 26; item++) {
+                if (rng.nextDouble() < 0.4) {
+                    after.add(Rating.create(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+        after.add(Rating.create(41, 3, 4));
+        after.add(Rating.create(41, 26, 2));
+
+        SlopeOneModel model = new SlopeOneModelProvider(getContext(before), 1).get();
+        SlopeOneModelUpdater updater = new SlopeOneModelUpdater(model);
+        for (long user = 1; user <= 5; user++) {
+            updater.updateUser(userRatings(before, user), userRatings(after, user));
+        }
+        updater.updateUser(new Long2DoubleOpenHashMap(), userRatings(after, 41));
+        SlopeOneModel updated = updater.build();
+
+        ItemItemBuildContext context = getContext(after);
+        SlopeOneModel expected = new SlopeOneModelProvider(context, 1).get();
+        LongSet items = context.getItems();
+        assertThat(updated.getItemIndex().getKeyList(), equalTo(expected.getItemIndex().getKeyList()));
+        assertThat(updated.getEntryCount(), equalTo(expected.getEntryCount()));
+        for (long i1: items) {
+            for (long i2: items) {
+                assertEquals(expected.getCoratings(i1, i2), updated.getCoratings(i1, i2));
+                double dev = expected.getDeviation(i1, i2);
+                if (Double.isNaN(dev)) {
+                    assertEquals(Double.NaN, updated.getDeviation(i1, i2), 0);
+                } else {
+                    assertEquals(dev, updated.getDeviation(i1, i2), EPSILON);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSuccessiveUpdatesMatchRebuild() {
+        Random rng = new Random(7);
+        List<Rating> current = new ArrayList<>();
+        for (long user = 1; user <= 30; user++) {
+            for (long item = 1; item <= 20; item++) {
+                if (rng.nextDouble() < 0.3) {
+                    current.add(Rating.create(user, item, 0.5 + rng.nextInt(10) / 2.0));
+                }
+            }
+        }
+
+        SlopeOneModel model = new SlopeOneModelProvider(getContext(current), 1.5).get();
+        for (int round = 0; round < 10; round++) {
+            // each round, a few users re-rate their items
+            List<Rating> next = new ArrayList<>();
+            List<Long> changed = new ArrayList<>();
+            for (long user = 1; user <= 30; user++) {
+                if (rng.nextDouble() < 0.2) {
+                    changed.add(user);
+                    for (long item = 1; item <= 20; item++) {
+                        if (rng.nextDouble() < 0.3) {
+                            next.add(Rating.create(user, item, 0.5 + rng.nextInt(10) / 2.0));
+                        }
+                    }
+                }
+            }
+            for (Rating r: current) {
+                if (!changed.contains(r.getUserId())) {
+                    next.add(r);
+                }
+            }
+
+            SlopeOneModelUpdater updater = new SlopeOneModelUpdater(model);
+            for (long user: changed) {
+                updater.updateUser(userRatings(current, user), userRatings(next, user));
+            }
+            model = updater.build();
+            current = next;
+        }
+
+        ItemItemBuildContext context = getContext(current);
+        SlopeOneModel expected = new SlopeOneModelProvider(context, 1.5).get();
+        assertThat(model.getEntryCount(), equalTo(expected.getEntryCount()));
+        for (long i1: context.getItems()) {
+            for (long i2: context.getItems()) {
+                assertEquals(expected.getCoratings(i1, i2), model.getCoratings(i1, i2));
+                double dev = expected.getDeviation(i1, i2);
+                if (Double.isNaN(dev)) {
+                    assertEquals(Double.NaN, model.getDeviation(i1, i2), 0);
+                } else {
+                    assertEquals(dev, model.getDeviation(i1, i2), 1.0e-10);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectPrunedModel() {
+        List<Rating> rs = new ArrayList<>();
+        rs.add(Rating.create(1, 4, 3.5));
+        rs.add(Rating.create(2, 4, 5));
+        rs.add(Rating.create(1, 7, 4));
+        rs.add(Rating.create(2, 7, 4));
+        rs.add(Rating.create(3, 7, 1.5));
+
+        SlopeOneModel model = new SlopeOneModelProvider(getContext(rs), 0, 2, 0).get();
+        new SlopeOneModelUpdater(model);
+    }
+}